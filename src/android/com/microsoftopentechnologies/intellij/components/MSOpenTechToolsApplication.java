@@ -158,7 +158,8 @@ public class MSOpenTechToolsApplication extends ApplicationComponent.Adapter imp
                     AppSettingsNames.AZURE_AUTHENTICATION_MODE,
                     AppSettingsNames.AZURE_AUTHENTICATION_TOKEN,
                     AppSettingsNames.O365_AUTHENTICATION_TOKEN,
-                    AppSettingsNames.SUBSCRIPTION_FILE
+                    AppSettingsNames.SUBSCRIPTION_FILE,
+                    AppSettingsNames.MANAGEMENT_RESPONSE_CACHE
             };
 
             for (String setting : settings) {
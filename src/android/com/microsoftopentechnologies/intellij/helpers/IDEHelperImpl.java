@@ -20,6 +20,7 @@ import com.google.common.util.concurrent.SettableFuture;
 import com.intellij.ide.util.PropertiesComponent;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.application.PathManager;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
 import com.intellij.openapi.fileEditor.FileEditorManager;
 import com.intellij.openapi.fileTypes.FileType;
@@ -55,6 +56,7 @@ import java.io.InputStream;
 import java.util.Enumeration;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Executor;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipFile;
 
@@ -319,6 +321,20 @@ public class IDEHelperImpl implements IDEHelper {
         ApplicationManager.getApplication().executeOnPooledThread(runnable);
     }
 
+    @Nullable
+    @Override
+    public Executor createNetworkExecutor(@NotNull String name, int maxThreads) {
+        // the application pool is shared with indexing and other IDE work and is not bounded;
+        // let the plugin use its own executors
+        return null;
+    }
+
+    @NotNull
+    @Override
+    public File getCacheFolder() {
+        return new File(PathManager.getSystemPath(), "com.microsoftopentechnologies.intellij");
+    }
+
     @Nullable
     @Override
     public String getProperty(@NotNull String name) {
@@ -22,6 +22,7 @@ import com.intellij.openapi.fileEditor.FileEditor;
 import com.intellij.openapi.fileEditor.FileEditorLocation;
 import com.intellij.openapi.fileEditor.FileEditorState;
 import com.intellij.openapi.fileEditor.FileEditorStateLevel;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
@@ -38,6 +39,10 @@ import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
 import javax.swing.event.ListSelectionEvent;
 import javax.swing.event.ListSelectionListener;
 import javax.swing.table.DefaultTableModel;
@@ -58,8 +63,14 @@ import java.util.LinkedList;
 import java.util.List;
 import java.util.concurrent.Callable;
 import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 public class BlobExplorerFileEditor implements FileEditor {
+    private static final int BLOB_PAGE_SIZE = 500;
+    private static final int LOAD_MORE_THRESHOLD_ROWS = 100;
+    private static final int QUERY_DELAY_MS = 300;
+
     private JPanel mainPanel;
     private JTextField queryTextField;
     private JTable blobListTable;
@@ -77,7 +88,13 @@ public class BlobExplorerFileEditor implements FileEditor {
     private Project project;
 
     private LinkedList<BlobDirectory> directoryQueue = new LinkedList<BlobDirectory>();
-    private List<BlobItem> blobItems;
+    private List<BlobItem> blobItems = new ArrayList<BlobItem>();
+
+    // the state of the listing shown in the grid; only accessed from the event dispatch thread
+    private String listingPrefix;
+    private String continuationToken;
+    private boolean loadingSegment;
+    private int listingGeneration;
 
     public BlobExplorerFileEditor() {
         blobListTable.getSelectionModel().setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
@@ -218,6 +235,17 @@ public class BlobExplorerFileEditor implements FileEditor {
             }
         });
 
+        // the rest of a large directory is listed as the user scrolls down to it, or as the grid
+        // grows taller than what was listed so far
+        if (blobListTable.getParent() instanceof JViewport) {
+            ((JViewport) blobListTable.getParent()).addChangeListener(new ChangeListener() {
+                @Override
+                public void stateChanged(ChangeEvent changeEvent) {
+                    loadNextSegmentIfNeeded();
+                }
+            });
+        }
+
         blobListTable.addKeyListener(new KeyListener() {
             @Override
             public void keyTyped(KeyEvent keyEvent) {
@@ -245,6 +273,26 @@ public class BlobExplorerFileEditor implements FileEditor {
         refreshButton.addActionListener(queryAction);
         queryButton.addActionListener(queryAction);
 
+        // the search text is sent to the service as a prefix once the user stops typing
+        final Timer queryTimer = new Timer(QUERY_DELAY_MS, queryAction);
+        queryTimer.setRepeats(false);
+
+        queryTextField.getDocument().addDocumentListener(new DocumentListener() {
+            @Override
+            public void insertUpdate(DocumentEvent documentEvent) {
+                queryTimer.restart();
+            }
+
+            @Override
+            public void removeUpdate(DocumentEvent documentEvent) {
+                queryTimer.restart();
+            }
+
+            @Override
+            public void changedUpdate(DocumentEvent documentEvent) {
+            }
+        });
+
         deleteButton.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent actionEvent) {
@@ -277,6 +325,11 @@ public class BlobExplorerFileEditor implements FileEditor {
     public void fillGrid() {
         setUIState(true);
 
+        // segments of the previous listing that are still on their way are dropped
+        final int generation = ++listingGeneration;
+        final String prefix = queryTextField.getText();
+        loadingSegment = true;
+
         ProgressManager.getInstance().run(new Task.Backgroundable(project, "Loading blobs...", false) {
             @Override
             public void run(@NotNull ProgressIndicator progressIndicator) {
@@ -287,52 +340,23 @@ public class BlobExplorerFileEditor implements FileEditor {
                         directoryQueue.addLast(StorageClientSDKManagerImpl.getManager().getRootDirectory(storageAccount, blobContainer));
                     }
 
-                    blobItems = StorageClientSDKManagerImpl.getManager().getBlobItems(storageAccount, directoryQueue.peekLast());
-                    
-                    if (!queryTextField.getText().isEmpty()) {
-                        for (int i = blobItems.size() - 1; i >= 0; i--) {
-                            BlobItem blobItem = blobItems.get(i);
-
-                            if (blobItem instanceof BlobFile && !blobItem.getName().startsWith(queryTextField.getText())) {
-                                blobItems.remove(i);
-                            }
-                        }
-                    }
+                    final BlobDirectory directory = directoryQueue.peekLast();
+                    final BlobItemSegment segment = StorageClientSDKManagerImpl.getManager().getBlobItemSegment(
+                            storageAccount, directory, prefix, null, null, BLOB_PAGE_SIZE);
 
                     ApplicationManager.getApplication().invokeLater(new Runnable() {
                         @Override
                         public void run() {
-
-                            pathLabel.setText(directoryQueue.peekLast().getPath());
-                            DefaultTableModel model = (DefaultTableModel) blobListTable.getModel();
-
-                            while (model.getRowCount() > 0) {
-                                model.removeRow(0);
+                            if (generation != listingGeneration) {
+                                return;
                             }
 
-                            for (BlobItem blobItem : blobItems) {
-                                if (blobItem instanceof BlobDirectory) {
-                                    model.addRow(new Object[]{
-                                            UIHelperImpl.loadIcon("storagefolder.png"),
-                                            blobItem.getName(),
-                                            "",
-                                            "",
-                                            "",
-                                            blobItem.getUri()
-                                    });
-                                } else {
-                                    BlobFile blobFile = (BlobFile) blobItem;
-
-                                    model.addRow(new String[]{
-                                            "",
-                                            blobFile.getName(),
-                                            UIHelperImpl.readableFileSize(blobFile.getSize()),
-                                            new SimpleDateFormat().format(blobFile.getLastModified().getTime()),
-                                            blobFile.getContentType(),
-                                            blobFile.getUri()
-                                    });
-                                }
-                            }
+                            pathLabel.setText(directory.getPath());
+                            ((DefaultTableModel) blobListTable.getModel()).setRowCount(0);
+                            blobItems = new ArrayList<BlobItem>();
+                            listingPrefix = prefix;
+
+                            addSegment(segment);
 
                             setUIState(false);
 
@@ -346,6 +370,98 @@ public class BlobExplorerFileEditor implements FileEditor {
         });
     }
 
+    private void loadNextSegmentIfNeeded() {
+        if (loadingSegment || continuationToken == null) {
+            return;
+        }
+
+        Rectangle visibleRect = blobListTable.getVisibleRect();
+
+        if (visibleRect.height == 0) {
+            // not shown yet
+            return;
+        }
+
+        int lastVisibleRow = blobListTable.rowAtPoint(new Point(0, visibleRect.y + visibleRect.height - 1));
+
+        if (lastVisibleRow >= 0 && lastVisibleRow < blobListTable.getRowCount() - LOAD_MORE_THRESHOLD_ROWS) {
+            return;
+        }
+
+        final int generation = listingGeneration;
+        final BlobDirectory directory = directoryQueue.peekLast();
+        final String prefix = listingPrefix;
+        final String token = continuationToken;
+        loadingSegment = true;
+
+        ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final BlobItemSegment segment = StorageClientSDKManagerImpl.getManager().getBlobItemSegment(
+                            storageAccount, directory, prefix, null, token, BLOB_PAGE_SIZE);
+
+                    ApplicationManager.getApplication().invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            if (generation == listingGeneration) {
+                                addSegment(segment);
+                            }
+                        }
+                    });
+                } catch (AzureCmdException ex) {
+                    ApplicationManager.getApplication().invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            // scrolling again tries the same segment again
+                            if (generation == listingGeneration) {
+                                loadingSegment = false;
+                            }
+                        }
+                    });
+
+                    DefaultLoader.getUIHelper().showException("Error querying blob list.", ex, "Error querying blobs", false, true);
+                }
+            }
+        });
+    }
+
+    private void addSegment(@NotNull BlobItemSegment segment) {
+        DefaultTableModel model = (DefaultTableModel) blobListTable.getModel();
+
+        for (BlobItem blobItem : segment.getItems()) {
+            blobItems.add(blobItem);
+
+            if (blobItem instanceof BlobDirectory) {
+                model.addRow(new Object[]{
+                        UIHelperImpl.loadIcon("storagefolder.png"),
+                        blobItem.getName(),
+                        "",
+                        "",
+                        "",
+                        blobItem.getUri()
+                });
+            } else {
+                BlobFile blobFile = (BlobFile) blobItem;
+
+                model.addRow(new String[]{
+                        "",
+                        blobFile.getName(),
+                        UIHelperImpl.readableFileSize(blobFile.getSize()),
+                        new SimpleDateFormat().format(blobFile.getLastModified().getTime()),
+                        blobFile.getContentType(),
+                        blobFile.getUri()
+                });
+            }
+        }
+
+        continuationToken = segment.getContinuationToken();
+        loadingSegment = false;
+
+        // the segment may not have filled the grid, in which case no scrolling will ask for the next
+        loadNextSegmentIfNeeded();
+    }
+
     private void setUIState(boolean loading) {
         if (loading) {
             blobListTable.setEnabled(false);
@@ -476,7 +592,7 @@ public class BlobExplorerFileEditor implements FileEditor {
                         try {
                             StorageClientSDKManagerImpl.getManager().deleteBlobFile(storageAccount, blobItem);
 
-                            if (blobItems.size() <= 1) {
+                            if (blobItems.size() <= 1 && continuationToken == null) {
                                 directoryQueue.clear();
                                 directoryQueue.addLast(StorageClientSDKManagerImpl.getManager().getRootDirectory(storageAccount, blobContainer));
 
@@ -537,57 +653,51 @@ public class BlobExplorerFileEditor implements FileEditor {
             ProgressManager.getInstance().run(new Task.Backgroundable(project, "Downloading blob...", true) {
                 @Override
                 public void run(@NotNull final ProgressIndicator progressIndicator) {
-                    try {
-                        progressIndicator.setIndeterminate(false);
+                    progressIndicator.setIndeterminate(false);
 
-                        if (!targetFile.exists()) {
-                            if (!targetFile.createNewFile()) {
-                                throw new IOException("File not created");
-                            }
-                        }
+                    final CallableSingleArg<Void, Long> callable = new CallableSingleArg<Void, Long>() {
+                        @Override
+                        public Void call(Long downloadedBytes) throws Exception {
+                            double progress = fileSelection.getSize() > 0 ?
+                                    (double) downloadedBytes / fileSelection.getSize() : 1;
+
+                            progressIndicator.setFraction(progress);
+                            progressIndicator.setText2(String.format("%s%% downloaded", (int) (progress * 100)));
 
-                        final BufferedOutputStream bufferedOutputStream = new BufferedOutputStream(new FileOutputStream(targetFile), 65536) {
-                            private long runningCount = 0;
+                            return null;
+                        }
+                    };
 
-                            @Override
-                            public synchronized void write(@NotNull byte[] bytes, int i, int i1) throws IOException {
-                                super.write(bytes, i, i1);
+                    Future<?> future = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                StorageClientSDKManagerImpl.getManager().downloadBlobFile(storageAccount, fileSelection, targetFile, callable);
+                            } catch (AzureCmdException e) {
+                                Throwable connectionFault = e.getCause().getCause();
 
-                                runningCount += i1;
+                                if (connectionFault == null) {
+                                    connectionFault = e.getCause();
+                                }
 
-                                double progress = (double) runningCount / fileSelection.getSize();
-                                progressIndicator.setFraction(progress);
-                                progressIndicator.setText2(String.format("%s%% downloaded", (int) (progress * 100)));
+                                progressIndicator.setText("Error downloading Blob");
+                                progressIndicator.setText2((connectionFault instanceof SocketTimeoutException) ? "Connection timed out" : connectionFault.getMessage());
                             }
-                        };
+                        }
+                    });
 
+                    while (!future.isDone()) {
                         try {
-                            Future<?> future = ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
-                                @Override
-                                public void run() {
-                                    try {
-                                        StorageClientSDKManagerImpl.getManager().downloadBlobFileContent(storageAccount, fileSelection, bufferedOutputStream);
-                                    } catch (AzureCmdException e) {
-                                        Throwable connectionFault = e.getCause().getCause();
-
-                                        progressIndicator.setText("Error downloading Blob");
-                                        progressIndicator.setText2((connectionFault instanceof SocketTimeoutException) ? "Connection timed out" : connectionFault.getMessage());
-                                    }
-                                }
-                            });
-
-                            while (!future.isDone()) {
-                                progressIndicator.checkCanceled();
+                            future.get(500, TimeUnit.MILLISECONDS);
+                        } catch (TimeoutException ignored) {
+                        } catch (Exception ignored) {
+                            break;
+                        }
 
-                                if (progressIndicator.isCanceled()) {
-                                    future.cancel(true);
-                                }
-                            }
-                        } finally {
-                            bufferedOutputStream.close();
+                        if (progressIndicator.isCanceled()) {
+                            // the partially downloaded file is deleted by the downloader
+                            future.cancel(true);
                         }
-                    } catch (IOException e) {
-                        DefaultLoader.getUIHelper().showException("Error downloading Blob", e, "Error downloading Blob", false, true);
                     }
                 }
             });
@@ -623,107 +733,91 @@ public class BlobExplorerFileEditor implements FileEditor {
         ProgressManager.getInstance().run(new Task.Backgroundable(project, "Uploading blob...", true) {
             @Override
             public void run(@NotNull final ProgressIndicator progressIndicator) {
-                try {
-                    final BlobDirectory blobDirectory = directoryQueue.peekLast();
-
-                    final BufferedInputStream bufferedInputStream = new BufferedInputStream(new FileInputStream(selectedFile));
+                progressIndicator.setIndeterminate(false);
+                progressIndicator.setText("Uploading blob...");
+                progressIndicator.setText2("0% uploaded");
 
-                    progressIndicator.setIndeterminate(false);
-                    progressIndicator.setText("Uploading blob...");
-                    progressIndicator.setText2("0% uploaded");
+                try {
+                    final CallableSingleArg<Void, Long> callable = new CallableSingleArg<Void, Long>() {
+                        @Override
+                        public Void call(Long uploadedBytes) throws Exception {
+                            double progress = ((double) uploadedBytes) / selectedFile.length();
 
-                    try {
-                        final CallableSingleArg<Void, Long> callable = new CallableSingleArg<Void, Long>() {
-                            @Override
-                            public Void call(Long uploadedBytes) throws Exception {
-                                double progress = ((double) uploadedBytes) / selectedFile.length();
+                            progressIndicator.setFraction(progress);
+                            progressIndicator.setText2(String.format("%s%% uploaded", (int) (progress * 100)));
 
-                                progressIndicator.setFraction(progress);
-                                progressIndicator.setText2(String.format("%s%% uploaded", (int) (progress * 100)));
+                            return null;
+                        }
+                    };
 
-                                return null;
-                            }
-                        };
-
-                        Future<Void> future = ApplicationManager.getApplication().executeOnPooledThread(new Callable<Void>() {
-                            @Override
-                            public Void call() throws AzureCmdException {
-                                try {
-                                    StorageClientSDKManagerImpl.getManager().uploadBlobFileContent(
-                                            storageAccount,
-                                            blobContainer,
-                                            path,
-                                            bufferedInputStream,
-                                            callable,
-                                            1024 * 1024,
-                                            selectedFile.length());
-                                } finally {
-                                    try {
-                                        bufferedInputStream.close();
-                                    } catch (IOException ignored) {
-                                    }
-                                }
+                    Future<Void> future = ApplicationManager.getApplication().executeOnPooledThread(new Callable<Void>() {
+                        @Override
+                        public Void call() throws AzureCmdException {
+                            StorageClientSDKManagerImpl.getManager().uploadBlobFile(
+                                    storageAccount,
+                                    blobContainer,
+                                    path,
+                                    selectedFile,
+                                    callable);
+
+                            return null;
+                        }
+                    });
 
-                                return null;
-                            }
-                        });
+                    while (!future.isDone()) {
+                        try {
+                            future.get(500, TimeUnit.MILLISECONDS);
+                        } catch (TimeoutException ignored) {
+                        }
 
-                        while (!future.isDone()) {
-                            Thread.sleep(500);
+                        if (progressIndicator.isCanceled()) {
+                            // stopping the upload before it commits the block list leaves the blocks
+                            // uploaded so far uncommitted, so that uploading the same file again
+                            // resumes from where this upload stopped
+                            future.cancel(true);
                             progressIndicator.checkCanceled();
-
-                            if (progressIndicator.isCanceled()) {
-                                future.cancel(true);
-                                bufferedInputStream.close();
-
-                                for (BlobItem blobItem : StorageClientSDKManagerImpl.getManager().getBlobItems(storageAccount, blobDirectory)) {
-                                    if (blobItem instanceof BlobFile && blobItem.getPath().equals(path)) {
-                                        StorageClientSDKManagerImpl.getManager().deleteBlobFile(storageAccount, (BlobFile) blobItem);
-                                    }
-                                }
-                            }
                         }
+                    }
 
-                        try {
-                            directoryQueue.clear();
-                            directoryQueue.addLast(StorageClientSDKManagerImpl.getManager().getRootDirectory(storageAccount, blobContainer));
-
-                            for (String pathDir : path.split("/")) {
-                                for (BlobItem blobItem : StorageClientSDKManagerImpl.getManager().getBlobItems(storageAccount, directoryQueue.getLast())) {
-                                    if (blobItem instanceof BlobDirectory && blobItem.getName().equals(pathDir)) {
-                                        directoryQueue.addLast((BlobDirectory) blobItem);
-                                    }
+                    try {
+                        directoryQueue.clear();
+                        directoryQueue.addLast(StorageClientSDKManagerImpl.getManager().getRootDirectory(storageAccount, blobContainer));
+
+                        for (String pathDir : path.split("/")) {
+                            for (BlobItem blobItem : StorageClientSDKManagerImpl.getManager().getBlobItems(storageAccount, directoryQueue.getLast())) {
+                                if (blobItem instanceof BlobDirectory && blobItem.getName().equals(pathDir)) {
+                                    directoryQueue.addLast((BlobDirectory) blobItem);
                                 }
                             }
-                        } catch (AzureCmdException e) {
-                            DefaultLoader.getUIHelper().showException("Error showing new blob", e, "Error showing new blob", false, true);
                         }
+                    } catch (AzureCmdException e) {
+                        DefaultLoader.getUIHelper().showException("Error showing new blob", e, "Error showing new blob", false, true);
+                    }
 
-                        ApplicationManager.getApplication().invokeLater(new Runnable() {
-                            @Override
-                            public void run() {
-                                fillGrid();
-                            }
-                        });
-                    } catch (Exception e) {
-                        Throwable connectionFault = e.getCause();
-                        Throwable realFault = null;
-
-                        if (connectionFault != null) {
-                            realFault = connectionFault.getCause();
+                    ApplicationManager.getApplication().invokeLater(new Runnable() {
+                        @Override
+                        public void run() {
+                            fillGrid();
                         }
+                    });
+                } catch (ProcessCanceledException e) {
+                    throw e;
+                } catch (Exception e) {
+                    Throwable connectionFault = e.getCause();
+                    Throwable realFault = null;
+
+                    if (connectionFault != null) {
+                        realFault = connectionFault.getCause();
+                    }
 
-                        progressIndicator.setText("Error uploading Blob");
-                        String message = realFault == null ? null : realFault.getMessage();
-
-                        if (connectionFault != null && message == null) {
-                            message = "Error type " + connectionFault.getClass().getName();
-                        }
+                    progressIndicator.setText("Error uploading Blob");
+                    String message = realFault == null ? null : realFault.getMessage();
 
-                        progressIndicator.setText2((connectionFault instanceof SocketTimeoutException) ? "Connection timed out" : message);
+                    if (connectionFault != null && message == null) {
+                        message = "Error type " + connectionFault.getClass().getName();
                     }
-                } catch (IOException e) {
-                    DefaultLoader.getUIHelper().showException("Error uploading Blob", e, "Error uploading Blob", false, true);
+
+                    progressIndicator.setText2((connectionFault instanceof SocketTimeoutException) ? "Connection timed out" : message);
                 }
             }
         });
@@ -29,6 +29,7 @@ import com.microsoftopentechnologies.intellij.forms.CreateStorageAccountForm;
 import com.microsoftopentechnologies.intellij.helpers.UIHelperImpl;
 import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzurePartialResultException;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk.AzureSDKManagerImpl;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.StorageAccount;
 import com.microsoftopentechnologies.tooling.msservices.model.vm.CloudService;
@@ -217,8 +218,18 @@ public class CloudServiceStep extends WizardStep<CreateVMWizardModel> {
                 try {
                     if (cloudServices == null) {
                         try {
-                            List<CloudService> services = AzureSDKManagerImpl.getManager()
-                                    .getCloudServices(model.getSubscription().getId().toString());
+                            List<CloudService> services;
+
+                            try {
+                                services = AzureSDKManagerImpl.getManager()
+                                        .getCloudServices(model.getSubscription().getId().toString());
+                            } catch (AzurePartialResultException e) {
+                                // offer the cloud services that could be loaded
+                                services = e.getLoadedItems();
+                                DefaultLoader.getUIHelper().showException("Some cloud services could not be retrieved and are not listed",
+                                        e, "Error Retrieving Cloud Services", false, true);
+                            }
+
                             cloudServices = new TreeMap<String, CloudService>();
 
                             for (CloudService cloudService : services) {
@@ -16,6 +16,7 @@
 package com.microsoftopentechnologies.intellij.wizards.createvm;
 
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.progress.ProgressManager;
 import com.intellij.openapi.progress.Task;
@@ -25,9 +26,10 @@ import com.intellij.ui.wizard.WizardNavigationState;
 import com.intellij.ui.wizard.WizardStep;
 import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
-import com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk.AzureSDKManagerImpl;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk.VirtualMachineImageCatalog;
 import com.microsoftopentechnologies.tooling.msservices.model.vm.VirtualMachineImage;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import javax.swing.*;
 import javax.swing.event.HyperlinkEvent;
@@ -197,7 +199,7 @@ public class SelectImageStep extends WizardStep<CreateVMWizardModel> {
         imageLabelList.addListSelectionListener(new ListSelectionListener() {
             @Override
             public void valueChanged(ListSelectionEvent listSelectionEvent) {
-                VirtualMachineImage virtualMachineImage = (VirtualMachineImage) imageLabelList.getSelectedValue();
+                final VirtualMachineImage virtualMachineImage = (VirtualMachineImage) imageLabelList.getSelectedValue();
                 model.setVirtualMachineImage(virtualMachineImage);
 
                 if (virtualMachineImage != null) {
@@ -206,6 +208,31 @@ public class SelectImageStep extends WizardStep<CreateVMWizardModel> {
                     model.getCurrentNavigationState().NEXT.setEnabled(true);
 
                     model.setSize(null);
+
+                    // the catalog only keeps the description and license links of the images on
+                    // disk; they are read when the image is selected
+                    ApplicationManager.getApplication().executeOnPooledThread(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                final VirtualMachineImage detailedImage = VirtualMachineImageCatalog.getCatalog()
+                                        .loadDetails(model.getSubscription().getId().toString(), virtualMachineImage);
+
+                                ApplicationManager.getApplication().invokeLater(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        if (imageLabelList.getSelectedValue() == virtualMachineImage) {
+                                            model.setVirtualMachineImage(detailedImage);
+                                            imageDescriptionTextPane.setText(model.getHtmlFromVMImage(detailedImage));
+                                            imageDescriptionTextPane.setCaretPosition(0);
+                                        }
+                                    }
+                                }, ModalityState.any());
+                            } catch (AzureCmdException ignored) {
+                                // the image is still shown, only without its description
+                            }
+                        }
+                    });
                 }
             }
         });
@@ -244,42 +271,42 @@ public class SelectImageStep extends WizardStep<CreateVMWizardModel> {
                     progressIndicator.setIndeterminate(true);
 
                     try {
-                        for (VirtualMachineImage virtualMachineImage : AzureSDKManagerImpl.getManager().getVirtualMachineImages(model.getSubscription().getId().toString())) {
-                            if (virtualMachineImage.isShowInGui()) {
-                                Enum type = null;
-
-                                if (virtualMachineImage.getCategory().equals("Public")) {
-                                    for (PublicImages publicImage : PublicImages.values()) {
-                                        if (virtualMachineImage.getPublisherName().contains(publicImage.toString())) {
-                                            type = publicImage;
-                                        } else if (virtualMachineImage.getOperatingSystemType().equals(publicImage.toString())) {
-                                            type = publicImage;
-                                        }
-                                    }
+                        String subscriptionId = model.getSubscription().getId().toString();
+                        VirtualMachineImageCatalog catalog = VirtualMachineImageCatalog.getCatalog();
+                        List<VirtualMachineImage> images = catalog.getImages(subscriptionId);
+
+                        // every image starts in the "Other" group of its category and is then moved
+                        // to the last group whose name is in its publisher or is its OS type; the
+                        // groups are looked up in the catalog index instead of checking every image
+                        Map<String, Enum> imageTypes = new HashMap<String, Enum>();
+
+                        for (VirtualMachineImage virtualMachineImage : images) {
+                            String category = virtualMachineImage.getCategory();
+
+                            imageTypes.put(virtualMachineImage.getName(),
+                                    category.equals("Public") ? PublicImages.Other :
+                                            category.equals("Private") || category.equals("User") ?
+                                                    PrivateImages.VMImages :
+                                                    MSDNImages.Other);
+                        }
 
-                                    if (type == null) {
-                                        type = PublicImages.Other;
-                                    }
-                                } else if (virtualMachineImage.getCategory().equals("Private")
-                                        || virtualMachineImage.getCategory().equals("User")) {
-                                    type = PrivateImages.VMImages;
-                                } else {
-                                    for (MSDNImages msdnImages : MSDNImages.values()) {
-                                        if (virtualMachineImage.getPublisherName().contains(msdnImages.toString())) {
-                                            type = msdnImages;
-                                        } else if (virtualMachineImage.getOperatingSystemType().equals(msdnImages.toString())) {
-                                            type = msdnImages;
-                                        }
-                                    }
+                        for (PublicImages publicImage : PublicImages.values()) {
+                            if (publicImage != PublicImages.Other) {
+                                classify(imageTypes, catalog, subscriptionId, "Public", publicImage, PublicImages.class);
+                            }
+                        }
 
-                                    if (type == null) {
-                                        type = MSDNImages.Other;
-                                    }
-                                }
+                        for (MSDNImages msdnImage : MSDNImages.values()) {
+                            if (msdnImage != MSDNImages.Other) {
+                                classify(imageTypes, catalog, subscriptionId, null, msdnImage, MSDNImages.class);
+                            }
+                        }
 
-                                if (virtualMachineImages == null) {
-                                    virtualMachineImages = new HashMap<Enum, List<VirtualMachineImage>>();
-                                }
+                        virtualMachineImages = new HashMap<Enum, List<VirtualMachineImage>>();
+
+                        for (VirtualMachineImage virtualMachineImage : images) {
+                            if (virtualMachineImage.isShowInGui()) {
+                                Enum type = imageTypes.get(virtualMachineImage.getName());
 
                                 if (!virtualMachineImages.containsKey(type)) {
                                     virtualMachineImages.put(type, new ArrayList<VirtualMachineImage>());
@@ -309,6 +336,24 @@ public class SelectImageStep extends WizardStep<CreateVMWizardModel> {
         return rootPanel;
     }
 
+    private static void classify(@NotNull Map<String, Enum> imageTypes,
+                                 @NotNull VirtualMachineImageCatalog catalog,
+                                 @NotNull String subscriptionId,
+                                 @Nullable String category,
+                                 @NotNull Enum type,
+                                 @NotNull Class<? extends Enum> group) throws AzureCmdException {
+        List<VirtualMachineImage> matches = new ArrayList<VirtualMachineImage>();
+        matches.addAll(catalog.search(subscriptionId, category, type.toString(), null, null));
+        matches.addAll(catalog.search(subscriptionId, category, null, type.toString(), null));
+
+        for (VirtualMachineImage image : matches) {
+            // images of other categories are only moved between the groups of their own category
+            if (group.isInstance(imageTypes.get(image.getName()))) {
+                imageTypes.put(image.getName(), type);
+            }
+        }
+    }
+
     private void fillList() {
         model.getCurrentNavigationState().NEXT.setEnabled(false);
 
@@ -0,0 +1,188 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package com.microsoftopentechnologies.intellij.diagnostics;
+
+import com.intellij.openapi.Disposable;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.wm.ToolWindow;
+import com.intellij.openapi.wm.ToolWindowFactory;
+import com.intellij.ui.components.JBScrollPane;
+import com.intellij.ui.table.TableView;
+import com.intellij.util.ui.ColumnInfo;
+import com.intellij.util.ui.ListTableModel;
+import com.microsoftopentechnologies.tooling.msservices.helpers.metrics.OperationStatistics;
+import com.microsoftopentechnologies.tooling.msservices.helpers.metrics.ServiceMetrics;
+import org.jetbrains.annotations.NotNull;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+
+/**
+ * Shows the call counts, latencies and bytes transferred of the service manager methods, along with
+ * the state of the network executors, so that the calls dominating explorer refreshes and
+ * deployments can be spotted.
+ */
+public class AzureDiagnosticsToolWindowFactory implements ToolWindowFactory {
+    private static final int REFRESH_INTERVAL_MS = 5000;
+
+    private TableView<OperationStatistics> table;
+    private JTextArea executorStatistics;
+
+    @Override
+    public void createToolWindowContent(@NotNull Project project, @NotNull final ToolWindow toolWindow) {
+        table = new TableView<OperationStatistics>(new ListTableModel<OperationStatistics>(
+                NAME, CALLS, ERRORS, TOTAL, P50, P95, P99, MAX, BYTES));
+        table.setSelectionMode(ListSelectionModel.SINGLE_SELECTION);
+
+        executorStatistics = new JTextArea(4, 0);
+        executorStatistics.setEditable(false);
+
+        JButton refreshButton = new JButton("Refresh");
+        refreshButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                refresh();
+            }
+        });
+
+        JButton resetButton = new JButton("Reset");
+        resetButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                ServiceMetrics.getMetrics().reset();
+                refresh();
+            }
+        });
+
+        JPanel buttons = new JPanel(new FlowLayout(FlowLayout.LEFT));
+        buttons.add(refreshButton);
+        buttons.add(resetButton);
+
+        JPanel panel = new JPanel(new BorderLayout());
+        panel.add(buttons, BorderLayout.NORTH);
+        panel.add(new JBScrollPane(table), BorderLayout.CENTER);
+        panel.add(new JBScrollPane(executorStatistics), BorderLayout.SOUTH);
+
+        toolWindow.getComponent().add(panel);
+
+        // keep the figures current while the tool window is open; the timer fires on the event
+        // dispatch thread
+        final Timer timer = new Timer(REFRESH_INTERVAL_MS, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (toolWindow.isVisible()) {
+                    refresh();
+                }
+            }
+        });
+        timer.start();
+
+        Disposer.register(project, new Disposable() {
+            @Override
+            public void dispose() {
+                timer.stop();
+            }
+        });
+
+        refresh();
+    }
+
+    private void refresh() {
+        ServiceMetrics metrics = ServiceMetrics.getMetrics();
+        table.getListTableModel().setItems(metrics.getOperationStatistics());
+
+        StringBuilder text = new StringBuilder();
+
+        for (String line : metrics.getExecutorStatistics()) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+
+            text.append(line);
+        }
+
+        executorStatistics.setText(text.toString());
+    }
+
+    private static abstract class LongColumnInfo extends ColumnInfo<OperationStatistics, Long> {
+        public LongColumnInfo(String name) {
+            super(name);
+        }
+
+        @Override
+        public Class getColumnClass() {
+            return Long.class;
+        }
+    }
+
+    private static final ColumnInfo<OperationStatistics, String> NAME = new ColumnInfo<OperationStatistics, String>("Operation") {
+        public String valueOf(OperationStatistics object) {
+            return object.getName();
+        }
+    };
+
+    private static final ColumnInfo<OperationStatistics, Long> CALLS = new LongColumnInfo("Calls") {
+        public Long valueOf(OperationStatistics object) {
+            return object.getCallCount();
+        }
+    };
+
+    private static final ColumnInfo<OperationStatistics, Long> ERRORS = new LongColumnInfo("Errors") {
+        public Long valueOf(OperationStatistics object) {
+            return object.getErrorCount();
+        }
+    };
+
+    private static final ColumnInfo<OperationStatistics, Long> TOTAL = new LongColumnInfo("Total (ms)") {
+        public Long valueOf(OperationStatistics object) {
+            return object.getTotalMillis();
+        }
+    };
+
+    private static final ColumnInfo<OperationStatistics, Long> P50 = new LongColumnInfo("p50 (ms)") {
+        public Long valueOf(OperationStatistics object) {
+            return object.getP50Millis();
+        }
+    };
+
+    private static final ColumnInfo<OperationStatistics, Long> P95 = new LongColumnInfo("p95 (ms)") {
+        public Long valueOf(OperationStatistics object) {
+            return object.getP95Millis();
+        }
+    };
+
+    private static final ColumnInfo<OperationStatistics, Long> P99 = new LongColumnInfo("p99 (ms)") {
+        public Long valueOf(OperationStatistics object) {
+            return object.getP99Millis();
+        }
+    };
+
+    private static final ColumnInfo<OperationStatistics, Long> MAX = new LongColumnInfo("Max (ms)") {
+        public Long valueOf(OperationStatistics object) {
+            return object.getMaxMillis();
+        }
+    };
+
+    private static final ColumnInfo<OperationStatistics, Long> BYTES = new LongColumnInfo("Bytes") {
+        public Long valueOf(OperationStatistics object) {
+            return object.getBytesTransferred();
+        }
+    };
+}
@@ -13,4 +13,5 @@ public class AppSettingsNames {
     public static final String AZURE_AUTHENTICATION_TOKEN = "com.microsoftopentechnologies.intellij.AzureAuthenticationToken";
     public static final String CURRENT_PLUGIN_VERSION = "com.microsoftopentechnologies.intellij.PluginVersion";
     public static final String EXTERNAL_STORAGE_ACCOUNT_LIST = "com.microsoftopentechnologies.intellij.ExternalStorageAccountList";
+    public static final String MANAGEMENT_RESPONSE_CACHE = "com.microsoftopentechnologies.intellij.ManagementResponseCache";
 }
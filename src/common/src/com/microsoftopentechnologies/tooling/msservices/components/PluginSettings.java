@@ -25,6 +25,19 @@ public class PluginSettings {
     private String adAuthority;
     private String graphApiVersion;
     private String pluginVersion;
+    private int hostedServiceParallelism;
+    private int subscriptionParallelism;
+    private int storageParallelism;
+    private boolean useVirtualThreads;
+    private int restConnectTimeout;
+    private int restReadTimeout;
+    private boolean persistManagementCache;
+    private double managementRequestsPerSecond;
+    private int managementRequestBurst;
+    private int blobUploadBlockSize;
+    private int blobUploadParallelism;
+    private int blobDownloadRangeSize;
+    private int blobDownloadParallelism;
 
     public String getClientId() {
         return clientId;
@@ -57,4 +70,56 @@ public class PluginSettings {
     public String getPluginVersion() {
         return pluginVersion;
     }
+
+    public int getHostedServiceParallelism() {
+        return hostedServiceParallelism;
+    }
+
+    public int getSubscriptionParallelism() {
+        return subscriptionParallelism;
+    }
+
+    public int getStorageParallelism() {
+        return storageParallelism;
+    }
+
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    public int getRestConnectTimeout() {
+        return restConnectTimeout;
+    }
+
+    public int getRestReadTimeout() {
+        return restReadTimeout;
+    }
+
+    public boolean isPersistManagementCache() {
+        return persistManagementCache;
+    }
+
+    public double getManagementRequestsPerSecond() {
+        return managementRequestsPerSecond;
+    }
+
+    public int getManagementRequestBurst() {
+        return managementRequestBurst;
+    }
+
+    public int getBlobUploadBlockSize() {
+        return blobUploadBlockSize;
+    }
+
+    public int getBlobUploadParallelism() {
+        return blobUploadParallelism;
+    }
+
+    public int getBlobDownloadRangeSize() {
+        return blobDownloadRangeSize;
+    }
+
+    public int getBlobDownloadParallelism() {
+        return blobDownloadParallelism;
+    }
 }
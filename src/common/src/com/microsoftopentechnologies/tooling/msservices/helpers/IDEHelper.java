@@ -26,6 +26,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 public interface IDEHelper {
     void openFile(@NotNull File file, @NotNull Node node);
@@ -70,6 +71,21 @@ public interface IDEHelper {
 
     void executeOnPooledThread(@NotNull Runnable runnable);
 
+    /**
+     * Returns an executor the plugin should use for network calls to Azure instead of its own
+     * thread pool, or null to let the plugin create one. Implementations must not run more than
+     * maxThreads tasks at the same time.
+     */
+    @Nullable
+    Executor createNetworkExecutor(@NotNull String name, int maxThreads);
+
+    /**
+     * Returns the folder the plugin keeps its caches in. Unlike the temporary folder, it belongs to
+     * the current user and IDE installation and isn't cleaned up by the operating system.
+     */
+    @NotNull
+    File getCacheFolder();
+
     @Nullable
     String getProperty(@NotNull String name);
 
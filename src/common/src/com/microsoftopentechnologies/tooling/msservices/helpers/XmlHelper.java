@@ -26,6 +26,10 @@ import javax.xml.namespace.QName;
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 import javax.xml.transform.Transformer;
 import javax.xml.transform.TransformerException;
 import javax.xml.transform.TransformerFactory;
@@ -38,20 +42,108 @@ import javax.xml.xpath.XPathFactory;
 import java.io.IOException;
 import java.io.StringReader;
 import java.io.StringWriter;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 public class XmlHelper {
+    private static final int MAX_CACHED_EXPRESSIONS = 64;
+
+    // DocumentBuilder and XPath instances are not thread safe, so we keep one of each per thread
+    // along with a small LRU cache of the expressions compiled on that thread
+    private static final ThreadLocal<DocumentBuilder> documentBuilder = new ThreadLocal<DocumentBuilder>();
+
+    private static final ThreadLocal<XPath> xPath = new ThreadLocal<XPath>() {
+        @Override
+        protected XPath initialValue() {
+            return XPathFactory.newInstance().newXPath();
+        }
+    };
+
+    private static final ThreadLocal<Map<String, XPathExpression>> xPathExpressions =
+            new ThreadLocal<Map<String, XPathExpression>>() {
+                @Override
+                protected Map<String, XPathExpression> initialValue() {
+                    return new LinkedHashMap<String, XPathExpression>(16, 0.75f, true) {
+                        @Override
+                        protected boolean removeEldestEntry(Map.Entry<String, XPathExpression> eldest) {
+                            return size() > MAX_CACHED_EXPRESSIONS;
+                        }
+                    };
+                }
+            };
+
+    private static final XMLInputFactory xmlInputFactory = XMLInputFactory.newInstance();
 
     public static Object getXMLValue(String xml, String xQuery, QName resultType) throws XPathExpressionException, IOException, SAXException, ParserConfigurationException {
-        DocumentBuilderFactory dbf = DocumentBuilderFactory.newInstance();
-        DocumentBuilder db = dbf.newDocumentBuilder();
+        Document doc = parse(xml);
+
+        return getXPathExpression(xQuery).evaluate(doc, resultType);
+    }
+
+    /**
+     * Returns the text of the first element with the given local name, or null if there is none.
+     * This is a fast path for simple lookups such as the status of an asynchronous operation; the
+     * document is streamed and no DOM is built.
+     */
+    public static String getElementText(String xml, String elementName) throws XMLStreamException {
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(new StringReader(xml));
+
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(elementName)) {
+                    return reader.getElementText();
+                }
+            }
+
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Returns the value of the given attribute on the first element with the given local name,
+     * or null if there is none. Like {@link #getElementText} no DOM is built.
+     */
+    public static String getElementAttribute(String xml, String elementName, String attributeName) throws XMLStreamException {
+        XMLStreamReader reader = xmlInputFactory.createXMLStreamReader(new StringReader(xml));
+
+        try {
+            while (reader.hasNext()) {
+                if (reader.next() == XMLStreamConstants.START_ELEMENT && reader.getLocalName().equals(elementName)) {
+                    return reader.getAttributeValue(null, attributeName);
+                }
+            }
+
+            return null;
+        } finally {
+            reader.close();
+        }
+    }
+
+    private static Document parse(String xml) throws ParserConfigurationException, IOException, SAXException {
+        DocumentBuilder db = documentBuilder.get();
+
+        if (db == null) {
+            db = DocumentBuilderFactory.newInstance().newDocumentBuilder();
+            documentBuilder.set(db);
+        } else {
+            db.reset();
+        }
+
+        return db.parse(new InputSource(new StringReader(xml)));
+    }
 
-        Document doc = db.parse(new InputSource(new StringReader(xml)));
+    private static XPathExpression getXPathExpression(String xQuery) throws XPathExpressionException {
+        Map<String, XPathExpression> expressions = xPathExpressions.get();
+        XPathExpression xPathExpression = expressions.get(xQuery);
 
-        XPathFactory xPathfactory = XPathFactory.newInstance();
+        if (xPathExpression == null) {
+            xPathExpression = xPath.get().compile(xQuery);
+            expressions.put(xQuery, xPathExpression);
+        }
 
-        XPath xPath = xPathfactory.newXPath();
-        XPathExpression xPathExpression = xPath.compile(xQuery);
-        return xPathExpression.evaluate(doc, resultType);
+        return xPathExpression;
     }
 
     public static String getAttributeValue(Node node, String attributeName) {
@@ -0,0 +1,142 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
+import com.microsoftopentechnologies.tooling.msservices.components.PluginSettings;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded executors for network calls to Azure, one per service family, so that blocking I/O
+ * neither competes with the IDE's own pooled threads nor grows without limit.
+ * <p/>
+ * The IDE can supply its own executor for a family through
+ * {@link com.microsoftopentechnologies.tooling.msservices.helpers.IDEHelper#createNetworkExecutor}. Otherwise a
+ * fixed size pool of daemon threads is used, or a thread-per-task executor running virtual threads
+ * when enabled in the plugin settings and supported by the runtime.
+ */
+public class AzureExecutors {
+    public enum Family {
+        Compute,
+        Storage,
+        Management
+    }
+
+    private static final int DEFAULT_PARALLELISM = 8;
+    private static final long KEEP_ALIVE_SECONDS = 60;
+
+    private static final Map<Family, InstrumentedExecutor> executors =
+            new EnumMap<Family, InstrumentedExecutor>(Family.class);
+
+    private AzureExecutors() {
+    }
+
+    @NotNull
+    public static synchronized InstrumentedExecutor getExecutor(@NotNull Family family) {
+        InstrumentedExecutor executor = executors.get(family);
+
+        if (executor == null) {
+            executor = createExecutor(family);
+            executors.put(family, executor);
+        }
+
+        return executor;
+    }
+
+    @NotNull
+    public static synchronized List<InstrumentedExecutor.Statistics> getStatistics() {
+        List<InstrumentedExecutor.Statistics> statistics = new ArrayList<InstrumentedExecutor.Statistics>();
+
+        for (InstrumentedExecutor executor : executors.values()) {
+            statistics.add(executor.getStatistics());
+        }
+
+        return statistics;
+    }
+
+    @NotNull
+    private static InstrumentedExecutor createExecutor(@NotNull Family family) {
+        String name = "azure-" + family.name().toLowerCase();
+        int parallelism = getParallelism(family);
+
+        Executor ideExecutor = DefaultLoader.getIdeHelper().createNetworkExecutor(name, parallelism);
+
+        if (ideExecutor != null) {
+            return new InstrumentedExecutor(name, ideExecutor, 0);
+        }
+
+        if (DefaultLoader.getPluginComponent().getSettings().isUseVirtualThreads()) {
+            Executor virtualThreadExecutor = createVirtualThreadExecutor();
+
+            if (virtualThreadExecutor != null) {
+                // one virtual thread per task; the decorator enforces the family's limit
+                return new InstrumentedExecutor(name, virtualThreadExecutor, parallelism);
+            }
+        }
+
+        ThreadPoolExecutor threadPoolExecutor = new ThreadPoolExecutor(parallelism, parallelism,
+                KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                new ThreadFactoryBuilder().setNameFormat(name + "-%d").setDaemon(true).build());
+        threadPoolExecutor.allowCoreThreadTimeOut(true);
+
+        return new InstrumentedExecutor(name, threadPoolExecutor, 0);
+    }
+
+    private static int getParallelism(@NotNull Family family) {
+        PluginSettings settings = DefaultLoader.getPluginComponent().getSettings();
+        int parallelism = 0;
+
+        switch (family) {
+            case Compute:
+                parallelism = settings.getHostedServiceParallelism();
+                break;
+            case Storage:
+                parallelism = settings.getStorageParallelism();
+                break;
+            case Management:
+                parallelism = settings.getSubscriptionParallelism();
+                break;
+        }
+
+        return parallelism > 0 ? parallelism : DEFAULT_PARALLELISM;
+    }
+
+    @Nullable
+    private static Executor createVirtualThreadExecutor() {
+        // the plugin is built against runtimes that predate virtual threads, so look the factory
+        // method up at runtime
+        try {
+            Method method = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+            return (Executor) method.invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,147 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Polls long running Azure operations from a small shared scheduler instead of parking one thread
+ * per operation in a sleep loop. Polls start fast and back off exponentially up to a maximum delay,
+ * so short operations are detected quickly while long ones don't flood the service with requests.
+ * <p/>
+ * The scheduler only decides when each poll is due; the poll itself, which blocks on the network
+ * and possibly on the management rate limiter, runs on the management executor.
+ */
+public class AzureOperationTracker {
+    public interface OperationPoll<T> {
+        /**
+         * Checks the status of the operation.
+         *
+         * @return the outcome of the operation once it has completed, or null while it is still
+         * in progress
+         */
+        @Nullable
+        T poll() throws Exception;
+    }
+
+    private static final int SCHEDULER_THREADS = 1;
+    private static final long INITIAL_DELAY_MS = 1000;
+    private static final long MAX_DELAY_MS = 30000;
+    private static final long DEFAULT_TIMEOUT_MS = TimeUnit.HOURS.toMillis(2);
+
+    private static AzureOperationTracker tracker;
+
+    private final ScheduledExecutorService scheduler;
+    private final AtomicInteger inFlightCount = new AtomicInteger();
+
+    private AzureOperationTracker() {
+        scheduler = Executors.newScheduledThreadPool(SCHEDULER_THREADS,
+                new ThreadFactoryBuilder().setNameFormat("azure-operation-tracker-%d").setDaemon(true).build());
+    }
+
+    @NotNull
+    public static synchronized AzureOperationTracker getTracker() {
+        if (tracker == null) {
+            tracker = new AzureOperationTracker();
+        }
+
+        return tracker;
+    }
+
+    @NotNull
+    public <T> ListenableFuture<T> track(@NotNull OperationPoll<T> poll) {
+        return track(poll, INITIAL_DELAY_MS, MAX_DELAY_MS, DEFAULT_TIMEOUT_MS);
+    }
+
+    @NotNull
+    public <T> ListenableFuture<T> track(@NotNull OperationPoll<T> poll, long initialDelayMs, long maxDelayMs) {
+        return track(poll, initialDelayMs, maxDelayMs, DEFAULT_TIMEOUT_MS);
+    }
+
+    @NotNull
+    public <T> ListenableFuture<T> track(@NotNull OperationPoll<T> poll,
+                                         long initialDelayMs,
+                                         long maxDelayMs,
+                                         long timeoutMs) {
+        SettableFuture<T> future = SettableFuture.create();
+        inFlightCount.incrementAndGet();
+        schedule(future, poll, initialDelayMs, maxDelayMs, System.currentTimeMillis() + timeoutMs);
+
+        return future;
+    }
+
+    /**
+     * Number of operations currently being polled.
+     */
+    public int getInFlightCount() {
+        return inFlightCount.get();
+    }
+
+    private <T> void schedule(@NotNull final SettableFuture<T> future,
+                              @NotNull final OperationPoll<T> poll,
+                              final long delayMs,
+                              final long maxDelayMs,
+                              final long deadline) {
+        final Runnable pollTask = new Runnable() {
+            @Override
+            public void run() {
+                if (future.isCancelled()) {
+                    inFlightCount.decrementAndGet();
+                    return;
+                }
+
+                try {
+                    T result = poll.poll();
+
+                    if (result != null) {
+                        inFlightCount.decrementAndGet();
+                        future.set(result);
+                    } else if (System.currentTimeMillis() >= deadline) {
+                        inFlightCount.decrementAndGet();
+                        future.setException(new AzureCmdException("Timed out waiting for the operation to complete",
+                                ""));
+                    } else {
+                        schedule(future, poll, Math.min(delayMs * 2, maxDelayMs), maxDelayMs, deadline);
+                    }
+                } catch (Throwable t) {
+                    inFlightCount.decrementAndGet();
+                    future.setException(t);
+                }
+            }
+        };
+
+        scheduler.schedule(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    AzureExecutors.getExecutor(AzureExecutors.Family.Management).execute(pollTask);
+                } catch (Throwable t) {
+                    inFlightCount.decrementAndGet();
+                    future.setException(t);
+                }
+            }
+        }, delayMs, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,58 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure;
+
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Thrown when some of the items of a list could not be retrieved. The items that were retrieved
+ * are still available, so callers can show them and report the missing ones as they see fit.
+ */
+public class AzurePartialResultException extends AzureCmdException {
+    private final List<?> loadedItems;
+    private final List<String> failedItems;
+
+    public AzurePartialResultException(@NotNull String message,
+                                       @NotNull Throwable firstError,
+                                       @NotNull List<?> loadedItems,
+                                       @NotNull List<String> failedItems) {
+        super(message, firstError);
+
+        this.loadedItems = Collections.unmodifiableList(new ArrayList<Object>(loadedItems));
+        this.failedItems = Collections.unmodifiableList(new ArrayList<String>(failedItems));
+    }
+
+    /**
+     * The items that were retrieved, of the type the failed call returns.
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    public <T> List<T> getLoadedItems() {
+        return (List<T>) loadedItems;
+    }
+
+    /**
+     * The names of the items that could not be retrieved.
+     */
+    @NotNull
+    public List<String> getFailedItems() {
+        return failedItems;
+    }
+}
@@ -0,0 +1,203 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor decorator that keeps track of how many tasks are waiting, how many are running and how
+ * long they take. When the underlying executor is not bounded by itself (a thread-per-task executor
+ * for instance) it can also cap the number of tasks running at the same time.
+ */
+public class InstrumentedExecutor implements Executor {
+    public static class Statistics {
+        private final String name;
+        private final int queueDepth;
+        private final int activeCount;
+        private final long completedCount;
+        private final long averageWaitMillis;
+        private final long averageRunMillis;
+        private final long maxLatencyMillis;
+
+        private Statistics(@NotNull String name, int queueDepth, int activeCount, long completedCount,
+                           long averageWaitMillis, long averageRunMillis, long maxLatencyMillis) {
+            this.name = name;
+            this.queueDepth = queueDepth;
+            this.activeCount = activeCount;
+            this.completedCount = completedCount;
+            this.averageWaitMillis = averageWaitMillis;
+            this.averageRunMillis = averageRunMillis;
+            this.maxLatencyMillis = maxLatencyMillis;
+        }
+
+        @NotNull
+        public String getName() {
+            return name;
+        }
+
+        public int getQueueDepth() {
+            return queueDepth;
+        }
+
+        public int getActiveCount() {
+            return activeCount;
+        }
+
+        public long getCompletedCount() {
+            return completedCount;
+        }
+
+        /**
+         * Average time between submitting a task and the task starting to run.
+         */
+        public long getAverageWaitMillis() {
+            return averageWaitMillis;
+        }
+
+        public long getAverageRunMillis() {
+            return averageRunMillis;
+        }
+
+        /**
+         * Longest time between submitting a task and the task completing.
+         */
+        public long getMaxLatencyMillis() {
+            return maxLatencyMillis;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s: %d queued, %d active, %d completed, %d ms avg wait, %d ms avg run, %d ms max",
+                    name, queueDepth, activeCount, completedCount, averageWaitMillis, averageRunMillis,
+                    maxLatencyMillis);
+        }
+    }
+
+    private final String name;
+    private final Executor delegate;
+    private final Semaphore permits;
+
+    private final AtomicInteger queueDepth = new AtomicInteger();
+    private final AtomicInteger activeCount = new AtomicInteger();
+    private final AtomicLong completedCount = new AtomicLong();
+    private final AtomicLong totalWaitNanos = new AtomicLong();
+    private final AtomicLong totalRunNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    /**
+     * @param maxConcurrency the maximum number of tasks allowed to run at the same time, or 0 if
+     *                       the delegate executor is already bounded
+     */
+    public InstrumentedExecutor(@NotNull String name, @NotNull Executor delegate, int maxConcurrency) {
+        this.name = name;
+        this.delegate = delegate;
+        this.permits = maxConcurrency > 0 ? new Semaphore(maxConcurrency, true) : null;
+    }
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    @NotNull
+    public <T> ListenableFuture<T> submit(@NotNull Callable<T> callable) {
+        ListenableFutureTask<T> task = ListenableFutureTask.create(callable);
+        execute(task);
+
+        return task;
+    }
+
+    @Override
+    public void execute(@NotNull final Runnable command) {
+        final long submitted = System.nanoTime();
+        queueDepth.incrementAndGet();
+
+        try {
+            delegate.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean acquired = false;
+
+                    try {
+                        if (permits != null) {
+                            permits.acquire();
+                            acquired = true;
+                        }
+                    } catch (InterruptedException e) {
+                        queueDepth.decrementAndGet();
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+
+                    queueDepth.decrementAndGet();
+                    activeCount.incrementAndGet();
+                    long started = System.nanoTime();
+
+                    try {
+                        command.run();
+                    } finally {
+                        long finished = System.nanoTime();
+                        activeCount.decrementAndGet();
+
+                        if (acquired) {
+                            permits.release();
+                        }
+
+                        record(started - submitted, finished - started, finished - submitted);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            // rejected by the delegate
+            queueDepth.decrementAndGet();
+            throw e;
+        }
+    }
+
+    @NotNull
+    public Statistics getStatistics() {
+        long completed = completedCount.get();
+
+        return new Statistics(name,
+                queueDepth.get(),
+                activeCount.get(),
+                completed,
+                completed > 0 ? TimeUnit.NANOSECONDS.toMillis(totalWaitNanos.get() / completed) : 0,
+                completed > 0 ? TimeUnit.NANOSECONDS.toMillis(totalRunNanos.get() / completed) : 0,
+                TimeUnit.NANOSECONDS.toMillis(maxLatencyNanos.get()));
+    }
+
+    private void record(long waitNanos, long runNanos, long latencyNanos) {
+        completedCount.incrementAndGet();
+        totalWaitNanos.addAndGet(waitNanos);
+        totalRunNanos.addAndGet(runNanos);
+
+        long max;
+
+        do {
+            max = maxLatencyNanos.get();
+        } while (latencyNanos > max && !maxLatencyNanos.compareAndSet(max, latencyNanos));
+    }
+}
@@ -0,0 +1,272 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure;
+
+import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
+import com.microsoftopentechnologies.tooling.msservices.components.PluginSettings;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+import com.microsoftopentechnologies.tooling.msservices.helpers.StringHelper;
+import org.apache.http.client.utils.DateUtils;
+
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the management traffic of the plugin within the request rate the service accepts, with a
+ * token bucket per subscription and endpoint that both the SDK clients and the REST helper take a
+ * token from before sending a request.
+ * <p/>
+ * A bucket refills at the configured rate up to the configured burst, so short bursts such as the
+ * parallel loads of the explorer go out at once while sustained traffic is spread out. When the
+ * service throttles a request anyway, the bucket is paused for as long as its Retry-After header
+ * asks, and later requests to the same subscription and endpoint wait for it instead of being
+ * throttled in turn.
+ */
+public class ManagementRateLimiter {
+    private static final double DEFAULT_REQUESTS_PER_SECOND = 10;
+    private static final int DEFAULT_REQUEST_BURST = 20;
+    private static final long DEFAULT_RETRY_AFTER_MS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_RETRY_AFTER_MS = TimeUnit.MINUTES.toMillis(2);
+
+    private static class Bucket {
+        private final double tokensPerMs;
+        private final double burst;
+        private double tokens;
+        private long lastRefill;
+        private long pausedUntil;
+        private long requestCount;
+        private long delayedCount;
+        private long throttledCount;
+        private long totalWaitMs;
+
+        private Bucket(double requestsPerSecond, int burst, long now) {
+            this.tokensPerMs = requestsPerSecond / 1000;
+            this.burst = burst;
+            this.tokens = burst;
+            this.lastRefill = now;
+        }
+
+        // must be called while holding the lock
+        private void refill(long now) {
+            if (now > lastRefill) {
+                tokens = Math.min(burst, tokens + (now - lastRefill) * tokensPerMs);
+                lastRefill = now;
+            }
+        }
+    }
+
+    private static ManagementRateLimiter limiter;
+
+    private final Map<String, Bucket> buckets = new HashMap<String, Bucket>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private ManagementRateLimiter() {
+    }
+
+    @NotNull
+    public static synchronized ManagementRateLimiter getLimiter() {
+        if (limiter == null) {
+            limiter = new ManagementRateLimiter();
+        }
+
+        return limiter;
+    }
+
+    /**
+     * Takes a token from the bucket of the subscription and endpoint, waiting for one to become
+     * available and for any pause requested by the service to be over.
+     */
+    public void acquire(@Nullable String subscriptionId, @NotNull URI endpoint) throws InterruptedException {
+        long waitMs;
+        lock.lock();
+
+        try {
+            long now = System.currentTimeMillis();
+            Bucket bucket = getBucket(getKey(subscriptionId, endpoint), now);
+            bucket.refill(now);
+
+            // the token is reserved right away, so that concurrent callers queue up behind each
+            // other instead of all waking up for the same token
+            bucket.tokens -= 1;
+            // while the bucket is paused it only starts refilling once the pause is over
+            waitMs = Math.max(bucket.lastRefill - now, 0);
+
+            if (bucket.tokens < 0) {
+                waitMs += (long) Math.ceil(-bucket.tokens / bucket.tokensPerMs);
+            }
+
+            bucket.requestCount++;
+
+            if (waitMs > 0) {
+                bucket.delayedCount++;
+                bucket.totalWaitMs += waitMs;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (waitMs > 0) {
+            Thread.sleep(waitMs);
+        }
+    }
+
+    /**
+     * Records that the service throttled a request to the subscription and endpoint, pausing their
+     * bucket for the time given by the Retry-After header of the response, if any.
+     *
+     * @return the time to wait before sending the request again, in milliseconds
+     */
+    public long onThrottled(@Nullable String subscriptionId, @NotNull URI endpoint, @Nullable String retryAfter) {
+        long delayMs = getRetryAfterMs(retryAfter);
+        lock.lock();
+
+        try {
+            long now = System.currentTimeMillis();
+            Bucket bucket = getBucket(getKey(subscriptionId, endpoint), now);
+            bucket.pausedUntil = Math.max(bucket.pausedUntil, now + delayMs);
+
+            // the service counts differently than we do; start over from an empty bucket once the
+            // pause is over
+            bucket.tokens = Math.min(bucket.tokens, 0);
+            bucket.lastRefill = Math.max(bucket.lastRefill, bucket.pausedUntil);
+            bucket.throttledCount++;
+
+            return bucket.pausedUntil - now;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether requests to the subscription and endpoint are currently held back because
+     * the service throttled one of them.
+     */
+    public boolean isThrottled(@Nullable String subscriptionId, @NotNull URI endpoint) {
+        lock.lock();
+
+        try {
+            Bucket bucket = buckets.get(getKey(subscriptionId, endpoint));
+            return bucket != null && bucket.pausedUntil > System.currentTimeMillis();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns whether the status code of a response means that the service rejected the request
+     * because too many were sent.
+     */
+    public static boolean isThrottlingStatus(int statusCode) {
+        // 503 is what the classic management endpoints answer with when throttling
+        return statusCode == 429 || statusCode == 503;
+    }
+
+    @NotNull
+    public List<String> getStatistics() {
+        List<String> statistics = new ArrayList<String>();
+        lock.lock();
+
+        try {
+            long now = System.currentTimeMillis();
+            long requestCount = 0;
+            long delayedCount = 0;
+            long throttledCount = 0;
+            List<String> bucketStatistics = new ArrayList<String>();
+
+            for (Map.Entry<String, Bucket> entry : new TreeMap<String, Bucket>(buckets).entrySet()) {
+                Bucket bucket = entry.getValue();
+                bucket.refill(now);
+                requestCount += bucket.requestCount;
+                delayedCount += bucket.delayedCount;
+                throttledCount += bucket.throttledCount;
+
+                bucketStatistics.add(String.format("  %s: %.1f tokens, %d requests, %d delayed (%d ms), %d throttled%s",
+                        entry.getKey(), Math.max(bucket.tokens, 0), bucket.requestCount, bucket.delayedCount,
+                        bucket.totalWaitMs, bucket.throttledCount,
+                        bucket.pausedUntil > now ? ", paused for " + (bucket.pausedUntil - now) + " ms" : ""));
+            }
+
+            statistics.add(String.format("management-rate-limiter: %d requests, %d delayed, %d throttled",
+                    requestCount, delayedCount, throttledCount));
+            statistics.addAll(bucketStatistics);
+        } finally {
+            lock.unlock();
+        }
+
+        return statistics;
+    }
+
+    public void resetStatistics() {
+        lock.lock();
+
+        try {
+            for (Bucket bucket : buckets.values()) {
+                bucket.requestCount = 0;
+                bucket.delayedCount = 0;
+                bucket.throttledCount = 0;
+                bucket.totalWaitMs = 0;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called while holding the lock
+    @NotNull
+    private Bucket getBucket(@NotNull String key, long now) {
+        Bucket bucket = buckets.get(key);
+
+        if (bucket == null) {
+            PluginSettings settings = DefaultLoader.getPluginComponent().getSettings();
+            double requestsPerSecond = settings.getManagementRequestsPerSecond() > 0 ?
+                    settings.getManagementRequestsPerSecond() : DEFAULT_REQUESTS_PER_SECOND;
+            int burst = settings.getManagementRequestBurst() > 0 ?
+                    settings.getManagementRequestBurst() : DEFAULT_REQUEST_BURST;
+
+            bucket = new Bucket(requestsPerSecond, burst, now);
+            buckets.put(key, bucket);
+        }
+
+        return bucket;
+    }
+
+    private static long getRetryAfterMs(@Nullable String retryAfter) {
+        long delayMs = DEFAULT_RETRY_AFTER_MS;
+
+        if (!StringHelper.isNullOrWhiteSpace(retryAfter)) {
+            // the header holds either a number of seconds or an HTTP date
+            try {
+                delayMs = TimeUnit.SECONDS.toMillis(Long.parseLong(retryAfter.trim()));
+            } catch (NumberFormatException e) {
+                Date date = DateUtils.parseDate(retryAfter.trim());
+
+                if (date != null) {
+                    delayMs = date.getTime() - System.currentTimeMillis();
+                }
+            }
+        }
+
+        return Math.min(Math.max(delayMs, 0), MAX_RETRY_AFTER_MS);
+    }
+
+    @NotNull
+    private static String getKey(@Nullable String subscriptionId, @NotNull URI endpoint) {
+        return (subscriptionId != null ? subscriptionId : "") + "|" + endpoint.getHost();
+    }
+}
@@ -0,0 +1,359 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.reflect.TypeToken;
+import com.microsoftopentechnologies.tooling.msservices.components.AppSettingsNames;
+import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+import com.microsoftopentechnologies.tooling.msservices.helpers.StringHelper;
+import com.microsoftopentechnologies.tooling.msservices.model.vm.*;
+
+import java.lang.reflect.Type;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Caches the results of management lookups that rarely change, such as locations or virtual
+ * machine sizes, per operation and subscription, so that the dialogs and wizard steps that list
+ * them open without waiting on the network.
+ * <p/>
+ * An entry is served as is while younger than the time to live of its operation. Past that it is
+ * still served, but reloaded in the background so that the next caller gets fresh data; only
+ * entries older than {@link #MAX_STALE_MS} are reloaded before returning. Entries of the
+ * operations marked as persistent are also saved in the IDE properties and survive restarts,
+ * unless persistence is turned off in the plugin settings.
+ */
+public class ManagementResponseCache {
+    public enum Operation {
+        Locations(TimeUnit.HOURS.toMillis(24), true, new TypeToken<List<Location>>() {
+        }.getType()),
+        AffinityGroups(TimeUnit.MINUTES.toMillis(10), false, new TypeToken<List<AffinityGroup>>() {
+        }.getType()),
+        VirtualMachineSizes(TimeUnit.HOURS.toMillis(24), true, new TypeToken<List<VirtualMachineSize>>() {
+        }.getType()),
+        VirtualNetworks(TimeUnit.MINUTES.toMillis(10), false, new TypeToken<List<VirtualNetwork>>() {
+        }.getType()),
+        MobileServiceRegions(TimeUnit.HOURS.toMillis(24), true, new TypeToken<List<String>>() {
+        }.getType());
+
+        private final long timeToLive;
+        private final boolean persistent;
+        private final Type type;
+
+        Operation(long timeToLive, boolean persistent, @NotNull Type type) {
+            this.timeToLive = timeToLive;
+            this.persistent = persistent;
+            this.type = type;
+        }
+    }
+
+    public interface Loader<T> {
+        @NotNull
+        List<T> load() throws AzureCmdException;
+    }
+
+    private static class Entry {
+        private final List<?> value;
+        private final long timestamp;
+
+        private Entry(@NotNull List<?> value, long timestamp) {
+            this.value = value;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private static class PersistedEntry {
+        private String operation;
+        private String subscriptionId;
+        private long timestamp;
+        private JsonElement value;
+    }
+
+    private static final long MAX_STALE_MS = TimeUnit.DAYS.toMillis(7);
+
+    private static ManagementResponseCache cache;
+
+    private final Gson gson = new Gson();
+    private final Map<String, Entry> entries = new HashMap<String, Entry>();
+    private final Set<String> revalidating = new HashSet<String>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private boolean persistedEntriesLoaded;
+
+    private ManagementResponseCache() {
+    }
+
+    @NotNull
+    public static synchronized ManagementResponseCache getCache() {
+        if (cache == null) {
+            cache = new ManagementResponseCache();
+        }
+
+        return cache;
+    }
+
+    /**
+     * Returns the cached result of the operation for the subscription, calling the loader only
+     * when there is none or it is too old to be served. The returned list and its items are a
+     * copy the caller may modify.
+     */
+    @NotNull
+    public <T> List<T> get(@NotNull Operation operation,
+                           @NotNull String subscriptionId,
+                           @NotNull Loader<T> loader) throws AzureCmdException {
+        String key = getKey(operation, subscriptionId);
+        Entry entry;
+        lock.lock();
+
+        try {
+            loadPersistedEntries();
+            entry = entries.get(key);
+        } finally {
+            lock.unlock();
+        }
+
+        long age = entry != null ? System.currentTimeMillis() - entry.timestamp : Long.MAX_VALUE;
+
+        if (age >= MAX_STALE_MS) {
+            return copy(operation, put(operation, subscriptionId, loader.load()));
+        }
+
+        if (age >= operation.timeToLive) {
+            revalidate(operation, subscriptionId, loader);
+        }
+
+        @SuppressWarnings("unchecked")
+        List<T> value = (List<T>) entry.value;
+
+        return copy(operation, value);
+    }
+
+    /**
+     * Drops the cached results of all operations for the subscription, so that they are reloaded
+     * on the next call; used when the user explicitly asks for a refresh or the subscription is
+     * removed.
+     */
+    public void invalidate(@NotNull String subscriptionId) {
+        lock.lock();
+
+        try {
+            loadPersistedEntries();
+
+            for (Operation operation : Operation.values()) {
+                entries.remove(getKey(operation, subscriptionId));
+            }
+
+            savePersistedEntries();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidate(@NotNull Operation operation, @NotNull String subscriptionId) {
+        lock.lock();
+
+        try {
+            loadPersistedEntries();
+            entries.remove(getKey(operation, subscriptionId));
+
+            if (operation.persistent) {
+                savePersistedEntries();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public void invalidateAll() {
+        lock.lock();
+
+        try {
+            entries.clear();
+            persistedEntriesLoaded = true;
+            savePersistedEntries();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    private <T> List<T> put(@NotNull Operation operation, @NotNull String subscriptionId, @NotNull List<T> value) {
+        // the cache keeps its own copy so that callers modifying the list they got, or the items in
+        // it, don't affect it
+        List<T> cachedValue = Collections.unmodifiableList(copy(operation, value));
+        lock.lock();
+
+        try {
+            entries.put(getKey(operation, subscriptionId), new Entry(cachedValue, System.currentTimeMillis()));
+
+            if (operation.persistent) {
+                savePersistedEntries();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return cachedValue;
+    }
+
+    private <T> void revalidate(@NotNull final Operation operation,
+                                @NotNull final String subscriptionId,
+                                @NotNull final Loader<T> loader) {
+        final String key = getKey(operation, subscriptionId);
+        lock.lock();
+
+        try {
+            // a single reload per entry is enough, however many callers see it stale meanwhile
+            if (!revalidating.add(key)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            AzureExecutors.getExecutor(AzureExecutors.Family.Management).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        put(operation, subscriptionId, loader.load());
+                    } catch (Throwable ignored) {
+                        // the stale entry keeps being served and the reload is attempted again on
+                        // the next call
+                    } finally {
+                        endRevalidation(key);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            endRevalidation(key);
+        }
+    }
+
+    private void endRevalidation(@NotNull String key) {
+        lock.lock();
+
+        try {
+            revalidating.remove(key);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called while holding the lock
+    private void loadPersistedEntries() {
+        if (persistedEntriesLoaded) {
+            return;
+        }
+
+        persistedEntriesLoaded = true;
+
+        if (!isPersistenceEnabled()) {
+            return;
+        }
+
+        try {
+            String json = DefaultLoader.getIdeHelper().getProperty(AppSettingsNames.MANAGEMENT_RESPONSE_CACHE);
+
+            if (StringHelper.isNullOrWhiteSpace(json)) {
+                return;
+            }
+
+            PersistedEntry[] persistedEntries = gson.fromJson(json, PersistedEntry[].class);
+
+            for (PersistedEntry persistedEntry : persistedEntries) {
+                Operation operation = getOperation(persistedEntry.operation);
+
+                if (operation != null && operation.persistent && persistedEntry.subscriptionId != null &&
+                        persistedEntry.value != null) {
+                    List<?> value = gson.fromJson(persistedEntry.value, operation.type);
+                    entries.put(getKey(operation, persistedEntry.subscriptionId),
+                            new Entry(Collections.unmodifiableList(value), persistedEntry.timestamp));
+                }
+            }
+        } catch (Throwable ignored) {
+            // entries saved by another version of the plugin may not be readable anymore; they are
+            // simply loaded again
+            entries.clear();
+        }
+    }
+
+    // must be called while holding the lock
+    private void savePersistedEntries() {
+        if (!isPersistenceEnabled()) {
+            return;
+        }
+
+        List<PersistedEntry> persistedEntries = new ArrayList<PersistedEntry>();
+
+        for (Map.Entry<String, Entry> mapEntry : entries.entrySet()) {
+            String[] key = mapEntry.getKey().split("\\|", 2);
+            Operation operation = getOperation(key[0]);
+
+            if (operation != null && operation.persistent) {
+                PersistedEntry persistedEntry = new PersistedEntry();
+                persistedEntry.operation = operation.name();
+                persistedEntry.subscriptionId = key[1];
+                persistedEntry.timestamp = mapEntry.getValue().timestamp;
+                persistedEntry.value = gson.toJsonTree(mapEntry.getValue().value, operation.type);
+                persistedEntries.add(persistedEntry);
+            }
+        }
+
+        try {
+            if (persistedEntries.isEmpty()) {
+                DefaultLoader.getIdeHelper().unsetProperty(AppSettingsNames.MANAGEMENT_RESPONSE_CACHE);
+            } else {
+                DefaultLoader.getIdeHelper().setProperty(AppSettingsNames.MANAGEMENT_RESPONSE_CACHE,
+                        gson.toJson(persistedEntries));
+            }
+        } catch (Throwable ignored) {
+            // the entries are still cached for this session
+        }
+    }
+
+    private static boolean isPersistenceEnabled() {
+        return DefaultLoader.getPluginComponent().getSettings().isPersistManagementCache();
+    }
+
+    @Nullable
+    private static Operation getOperation(@Nullable String name) {
+        for (Operation operation : Operation.values()) {
+            if (operation.name().equals(name)) {
+                return operation;
+            }
+        }
+
+        return null;
+    }
+
+    @NotNull
+    private static String getKey(@NotNull Operation operation, @NotNull String subscriptionId) {
+        return operation.name() + "|" + subscriptionId;
+    }
+
+    /**
+     * Copies the list and its items, through the same JSON form used to persist them.
+     */
+    @NotNull
+    private <T> List<T> copy(@NotNull Operation operation, @NotNull List<T> value) {
+        return gson.fromJson(gson.toJsonTree(value, operation.type), operation.type);
+    }
+}
@@ -0,0 +1,297 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure;
+
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.Uninterruptibles;
+import com.google.gson.*;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.lang.reflect.Type;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lets concurrent calls to the same service manager method with equal arguments share a single
+ * request, such as a module refresh clicked twice or two dialogs loading the locations of the same
+ * subscription at once. The first call runs; calls arriving while it is in flight wait for it and
+ * get its result, or its exception.
+ * <p/>
+ * Managers are wrapped by {@link #decorate}, and only the methods marked with {@link Coalesced}
+ * are shared. Results are deep-copied for each caller that shares a call, so that none of them
+ * sees changes another one makes to its list or to the model objects in it.
+ */
+public class RequestCoalescer {
+    private static class CallKey {
+        private final String operation;
+        private final List<Object> arguments;
+
+        private CallKey(@NotNull String operation, @Nullable Object[] arguments) {
+            this.operation = operation;
+            this.arguments = arguments != null ? Arrays.asList(arguments) : Collections.emptyList();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof CallKey)) {
+                return false;
+            }
+
+            CallKey other = (CallKey) o;
+
+            return operation.equals(other.operation) && arguments.equals(other.arguments);
+        }
+
+        @Override
+        public int hashCode() {
+            return operation.hashCode() * 31 + arguments.hashCode();
+        }
+    }
+
+    private static class Counters {
+        private final AtomicLong callCount = new AtomicLong();
+        private final AtomicLong sharedCount = new AtomicLong();
+    }
+
+    private static RequestCoalescer coalescer;
+
+    // Gson's default date adapters drop the milliseconds and the time zone
+    private static final Gson gson = new GsonBuilder()
+            .registerTypeAdapter(Date.class, new JsonSerializer<Date>() {
+                @Override
+                public JsonElement serialize(Date date, Type type, JsonSerializationContext context) {
+                    return new JsonPrimitive(date.getTime());
+                }
+            })
+            .registerTypeAdapter(Date.class, new JsonDeserializer<Date>() {
+                @Override
+                public Date deserialize(JsonElement json, Type type, JsonDeserializationContext context) {
+                    return new Date(json.getAsLong());
+                }
+            })
+            .registerTypeHierarchyAdapter(Calendar.class, new JsonSerializer<Calendar>() {
+                @Override
+                public JsonElement serialize(Calendar calendar, Type type, JsonSerializationContext context) {
+                    JsonObject json = new JsonObject();
+                    json.addProperty("time", calendar.getTimeInMillis());
+                    json.addProperty("zone", calendar.getTimeZone().getID());
+
+                    return json;
+                }
+            })
+            .registerTypeHierarchyAdapter(Calendar.class, new JsonDeserializer<Calendar>() {
+                @Override
+                public Calendar deserialize(JsonElement json, Type type, JsonDeserializationContext context) {
+                    Calendar calendar = Calendar.getInstance(
+                            TimeZone.getTimeZone(json.getAsJsonObject().get("zone").getAsString()));
+                    calendar.setTimeInMillis(json.getAsJsonObject().get("time").getAsLong());
+
+                    return calendar;
+                }
+            })
+            .create();
+
+    private final ConcurrentMap<CallKey, SettableFuture<Object>> inFlight =
+            new ConcurrentHashMap<CallKey, SettableFuture<Object>>();
+    private volatile ConcurrentMap<String, Counters> counters = new ConcurrentHashMap<String, Counters>();
+
+    // the calls the current thread is running, which it must not wait for if it makes them again
+    private final ThreadLocal<Set<CallKey>> runningCalls = new ThreadLocal<Set<CallKey>>() {
+        @Override
+        protected Set<CallKey> initialValue() {
+            return new HashSet<CallKey>();
+        }
+    };
+
+    private RequestCoalescer() {
+    }
+
+    @NotNull
+    public static synchronized RequestCoalescer getCoalescer() {
+        if (coalescer == null) {
+            coalescer = new RequestCoalescer();
+        }
+
+        return coalescer;
+    }
+
+    /**
+     * Wraps a service manager so that concurrent calls to its {@link Coalesced} methods with equal
+     * arguments share a single call to the manager.
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    public <T> T decorate(@NotNull final Class<T> managerInterface, @NotNull final T manager) {
+        return (T) Proxy.newProxyInstance(managerInterface.getClassLoader(),
+                new Class<?>[]{managerInterface},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class || !method.isAnnotationPresent(Coalesced.class)) {
+                            return invokeManager(manager, method, args);
+                        }
+
+                        return invokeCoalesced(managerInterface.getSimpleName() + "." + method.getName(),
+                                manager, method, args);
+                    }
+                });
+    }
+
+    /**
+     * Returns the number of calls and of shared calls per method, for tuning.
+     */
+    @NotNull
+    public List<String> getStatistics() {
+        long callCount = 0;
+        long sharedCount = 0;
+        List<String> methodStatistics = new ArrayList<String>();
+
+        for (Map.Entry<String, Counters> entry : new TreeMap<String, Counters>(counters).entrySet()) {
+            long methodCallCount = entry.getValue().callCount.get();
+            long methodSharedCount = entry.getValue().sharedCount.get();
+            callCount += methodCallCount;
+            sharedCount += methodSharedCount;
+
+            if (methodSharedCount > 0) {
+                methodStatistics.add(String.format("  %s: %d of %d calls shared",
+                        entry.getKey(), methodSharedCount, methodCallCount));
+            }
+        }
+
+        List<String> statistics = new ArrayList<String>();
+        statistics.add(String.format("request-coalescing: %d calls, %d shared, %d in flight",
+                callCount, sharedCount, inFlight.size()));
+        statistics.addAll(methodStatistics);
+
+        return statistics;
+    }
+
+    public void resetStatistics() {
+        counters = new ConcurrentHashMap<String, Counters>();
+    }
+
+    @Nullable
+    private Object invokeCoalesced(@NotNull String operation,
+                                   @NotNull Object manager,
+                                   @NotNull Method method,
+                                   @Nullable Object[] args) throws Throwable {
+        final CallKey key = new CallKey(operation, args);
+        Counters operationCounters = getCounters(operation);
+        operationCounters.callCount.incrementAndGet();
+
+        Set<CallKey> currentCalls = runningCalls.get();
+
+        if (currentCalls.contains(key)) {
+            return invokeManager(manager, method, args);
+        }
+
+        final SettableFuture<Object> future = SettableFuture.create();
+        SettableFuture<Object> runningFuture = inFlight.putIfAbsent(key, future);
+
+        if (runningFuture != null) {
+            operationCounters.sharedCount.incrementAndGet();
+
+            return copy(method, await(runningFuture));
+        }
+
+        currentCalls.add(key);
+
+        try {
+            Object result = invokeManager(manager, method, args);
+            future.set(result);
+
+            if (result instanceof ListenableFuture) {
+                // the future of an asynchronous method is shared until it completes
+                ((ListenableFuture<?>) result).addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        inFlight.remove(key, future);
+                    }
+                }, MoreExecutors.directExecutor());
+            } else {
+                inFlight.remove(key, future);
+            }
+
+            return result;
+        } catch (Throwable t) {
+            future.setException(t);
+            inFlight.remove(key, future);
+
+            throw t;
+        } finally {
+            currentCalls.remove(key);
+        }
+    }
+
+    @NotNull
+    private Counters getCounters(@NotNull String operation) {
+        ConcurrentMap<String, Counters> map = counters;
+        Counters operationCounters = map.get(operation);
+
+        if (operationCounters == null) {
+            Counters newCounters = new Counters();
+            operationCounters = map.putIfAbsent(operation, newCounters);
+
+            if (operationCounters == null) {
+                operationCounters = newCounters;
+            }
+        }
+
+        return operationCounters;
+    }
+
+    @Nullable
+    private static Object await(@NotNull SettableFuture<Object> future) throws Throwable {
+        try {
+            return Uninterruptibles.getUninterruptibly(future);
+        } catch (ExecutionException e) {
+            throw e.getCause();
+        }
+    }
+
+    @Nullable
+    private static Object copy(@NotNull Method method, @Nullable Object result) {
+        if (result == null || result instanceof ListenableFuture || result instanceof String
+                || result instanceof Number || result instanceof Boolean) {
+            return result;
+        }
+
+        // the results are plain model objects, so a round trip through their JSON tree copies them
+        Type type = method.getGenericReturnType();
+
+        return gson.fromJson(gson.toJsonTree(result, type), type);
+    }
+
+    @Nullable
+    private static Object invokeManager(@NotNull Object manager, @NotNull Method method, @Nullable Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(manager, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest;
+
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.microsoftopentechnologies.aad.adal4j.AuthenticationContext;
+import com.microsoftopentechnologies.aad.adal4j.AuthenticationResult;
+import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
+import com.microsoftopentechnologies.tooling.msservices.components.PluginSettings;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+import com.microsoftopentechnologies.tooling.msservices.helpers.StringHelper;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Redeems the refresh tokens of the AD authentication tokens held by {@link AzureRestAPIManagerImpl}.
+ * <p/>
+ * Concurrent refreshes of the same token are coalesced, so when many requests fail with a 401 at
+ * once only one of them goes to AD and the others wait for its result. Tokens are also refreshed
+ * ahead of time, {@link #REFRESH_MARGIN_MS} before they expire, so that requests rarely run into an
+ * expired token in the first place.
+ */
+class AuthenticationTokenRefresher {
+    private static final long REFRESH_MARGIN_MS = TimeUnit.MINUTES.toMillis(5);
+
+    // key used for the token that isn't bound to a subscription
+    private static final String DEFAULT_TOKEN_KEY = "";
+
+    private final AzureRestAPIManagerImpl apiManager;
+    private final ScheduledExecutorService scheduler;
+
+    private final ConcurrentMap<String, SettableFuture<AuthenticationResult>> inFlightRefreshes =
+            new ConcurrentHashMap<String, SettableFuture<AuthenticationResult>>();
+    private final ConcurrentMap<String, ScheduledFuture<?>> scheduledRefreshes =
+            new ConcurrentHashMap<String, ScheduledFuture<?>>();
+
+    AuthenticationTokenRefresher(@NotNull AzureRestAPIManagerImpl apiManager) {
+        this.apiManager = apiManager;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("azure-token-refresh-%d").setDaemon(true).build());
+    }
+
+    /**
+     * Refreshes the token of the subscription, or the default token if no subscription ID is given.
+     *
+     * @param staleToken the token the caller found to be rejected, if known; when the current token
+     *                   is already a different one it is returned without contacting AD
+     * @return the refreshed token, or null if there is no refresh token to redeem or AD rejected it
+     * and interactive authentication is needed
+     */
+    @Nullable
+    AuthenticationResult refresh(@Nullable String subscriptionId, @Nullable AuthenticationResult staleToken)
+            throws AzureCmdException {
+        String key = getKey(subscriptionId);
+        AuthenticationResult current = apiManager.getToken(subscriptionId);
+
+        if (current == null || StringHelper.isNullOrWhiteSpace(current.getRefreshToken())) {
+            return null;
+        }
+
+        if (staleToken != null && current != staleToken) {
+            // somebody else already replaced the token
+            return current;
+        }
+
+        SettableFuture<AuthenticationResult> future = SettableFuture.create();
+        SettableFuture<AuthenticationResult> inFlight = inFlightRefreshes.putIfAbsent(key, future);
+
+        if (inFlight != null) {
+            return waitFor(inFlight);
+        }
+
+        try {
+            // a refresh may have completed between reading the token and registering this one
+            AuthenticationResult latest = apiManager.getToken(subscriptionId);
+
+            if (latest != current) {
+                future.set(latest);
+                return latest;
+            }
+
+            AuthenticationResult token = redeem(subscriptionId, current);
+
+            if (token != null) {
+                apiManager.storeRefreshedToken(subscriptionId, token);
+            }
+
+            future.set(token);
+            return token;
+        } catch (AzureCmdException e) {
+            future.setException(e);
+            throw e;
+        } catch (RuntimeException e) {
+            future.setException(e);
+            throw e;
+        } finally {
+            inFlightRefreshes.remove(key, future);
+        }
+    }
+
+    /**
+     * Schedules the refresh of the token shortly before it expires, replacing any refresh
+     * previously scheduled for the same subscription. Passing a null token only cancels the
+     * scheduled refresh.
+     */
+    void schedule(@Nullable final String subscriptionId, @Nullable final AuthenticationResult token) {
+        String key = getKey(subscriptionId);
+        ScheduledFuture<?> previous;
+
+        if (token == null || token.getExpiresOn() <= 0 || StringHelper.isNullOrWhiteSpace(token.getRefreshToken())) {
+            previous = scheduledRefreshes.remove(key);
+        } else {
+            // expiresOn is in seconds since the epoch
+            long delay = Math.max(0, TimeUnit.SECONDS.toMillis(token.getExpiresOn()) - REFRESH_MARGIN_MS -
+                    System.currentTimeMillis());
+
+            ScheduledFuture<?> scheduled = scheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh(subscriptionId, token);
+                    } catch (Throwable ignored) {
+                        // requests that run into the expired token will refresh it or fall back to
+                        // interactive authentication
+                    }
+                }
+            }, delay, TimeUnit.MILLISECONDS);
+
+            previous = scheduledRefreshes.put(key, scheduled);
+        }
+
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    void cancelAll() {
+        for (String key : scheduledRefreshes.keySet()) {
+            ScheduledFuture<?> scheduled = scheduledRefreshes.remove(key);
+
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+    }
+
+    @Nullable
+    private static AuthenticationResult redeem(@Nullable String subscriptionId, @NotNull AuthenticationResult token)
+            throws AzureCmdException {
+        PluginSettings settings = DefaultLoader.getPluginComponent().getSettings();
+        AuthenticationContext context = null;
+
+        try {
+            context = new AuthenticationContext(settings.getAdAuthority());
+
+            return context.acquireTokenByRefreshToken(
+                    token,
+                    AzureRestAPIHelper.getTenantName(subscriptionId),
+                    settings.getAzureServiceManagementUri(),
+                    settings.getClientId());
+        } catch (IOException e) {
+            // if the error is HTTP status code 400 then we need to
+            // do interactive auth
+            if (e.getMessage() != null && e.getMessage().contains("HTTP status code 400")) {
+                return null;
+            }
+
+            throw new AzureCmdException("Error refreshing the authentication token", e);
+        } catch (AzureCmdException e) {
+            throw e;
+        } catch (Exception e) {
+            throw new AzureCmdException("Error refreshing the authentication token", e);
+        } finally {
+            if (context != null) {
+                context.dispose();
+            }
+        }
+    }
+
+    @Nullable
+    private static AuthenticationResult waitFor(@NotNull SettableFuture<AuthenticationResult> future)
+            throws AzureCmdException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AzureCmdException("Interrupted while waiting for the authentication token", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+
+            if (cause instanceof AzureCmdException) {
+                throw (AzureCmdException) cause;
+            }
+
+            throw new AzureCmdException("Error refreshing the authentication token", cause);
+        }
+    }
+
+    @NotNull
+    private static String getKey(@Nullable String subscriptionId) {
+        return StringHelper.isNullOrWhiteSpace(subscriptionId) ? DEFAULT_TOKEN_KEY : subscriptionId;
+    }
+}
@@ -17,6 +17,9 @@ package com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest;
 
 import com.google.common.base.Splitter;
 import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import com.google.common.io.Files;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.microsoftopentechnologies.aad.adal4j.AuthenticationContext;
 import com.microsoftopentechnologies.aad.adal4j.AuthenticationResult;
@@ -27,6 +30,12 @@ import com.microsoftopentechnologies.tooling.msservices.components.PluginSetting
 import com.microsoftopentechnologies.tooling.msservices.helpers.*;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureAuthenticationMode;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureOperationTracker;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.ManagementRateLimiter;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.ManagementResponseCache;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk.AzureManagementClientPool;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk.VirtualMachineImageCatalog;
+import com.microsoftopentechnologies.tooling.msservices.helpers.metrics.ServiceMetrics;
 import com.microsoftopentechnologies.tooling.msservices.model.ms.Subscription;
 import org.w3c.dom.Document;
 import org.w3c.dom.Node;
@@ -37,16 +46,23 @@ import sun.misc.BASE64Decoder;
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.KeyManagerFactory;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.transform.TransformerException;
 import javax.xml.xpath.XPathConstants;
 import javax.xml.xpath.XPathExpressionException;
 import java.io.*;
 import java.net.HttpURLConnection;
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 import java.security.*;
 import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class AzureRestAPIHelper {
 
@@ -57,6 +73,55 @@ public class AzureRestAPIHelper {
     public static final String AUTHORIZATION_HEADER = "Authorization";
     public static final String ACCEPT_HEADER = "Accept";
     public static final String CONTENT_TYPE_HEADER = "Content-Type";
+    public static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    private static final long OPERATION_POLL_INITIAL_DELAY_MS = 2000;
+    private static final long OPERATION_POLL_MAX_DELAY_MS = 15000;
+    private static final int MAX_FAILED_STATUS_POLLS = 5;
+    private static final int MAX_THROTTLED_RETRIES = 3;
+
+    private static class CertificateConnectionInfo {
+        private final String managementUrl;
+        private final SSLSocketFactory sslSocketFactory;
+
+        private CertificateConnectionInfo(String managementUrl, SSLSocketFactory sslSocketFactory) {
+            this.managementUrl = managementUrl;
+            this.sslSocketFactory = sslSocketFactory;
+        }
+    }
+
+    // cache of SSL socket factories for certificate based authentication by subscription ID; reusing
+    // the same factory lets JSSE resume TLS sessions and keep-alive connections across calls
+    private static final Map<String, CertificateConnectionInfo> certificateConnectionInfoMap =
+            new HashMap<String, CertificateConnectionInfo>();
+    private static final ReentrantLock certificateConnectionInfoLock = new ReentrantLock();
+
+    // serializes interactive sign in, see acquireTokenInteractive
+    private static final ReentrantLock interactiveAuthLock = new ReentrantLock();
+
+    private static AzureRestTransport transport;
+
+    private static class AzureRestRequest {
+        private final String method;
+        private final String path;
+        private final boolean jsonContent;
+        private final Map<String, String> headers = new LinkedHashMap<String, String>();
+        private byte[] body;
+
+        private AzureRestRequest(String method, String path, boolean jsonContent) {
+            this.method = method;
+            this.path = path;
+            this.jsonContent = jsonContent;
+        }
+
+        private void setHeader(String name, String value) {
+            headers.put(name, value);
+        }
+
+        private void setBody(byte[] body) {
+            this.body = body;
+        }
+    }
 
     public static void removeSubscription(String subscriptionId) throws SAXException, ParserConfigurationException, XPathExpressionException, IOException, TransformerException {
 
@@ -72,6 +137,11 @@ public class AzureRestAPIHelper {
 
         String savedXml = XmlHelper.saveXmlToStreamWriter(subscriptionList.item(0).getOwnerDocument());
         DefaultLoader.getIdeHelper().setProperty(AppSettingsNames.SUBSCRIPTION_FILE, savedXml);
+
+        clearCertificateConnectionCache();
+        AzureManagementClientPool.getPool().invalidate(subscriptionId);
+        ManagementResponseCache.getCache().invalidate(subscriptionId);
+        VirtualMachineImageCatalog.getCatalog().invalidate(subscriptionId);
     }
 
     public static void importSubscription(File publishSettingsFile) throws AzureCmdException {
@@ -117,6 +187,10 @@ public class AzureRestAPIHelper {
             } else {
                 DefaultLoader.getIdeHelper().setProperty(AppSettingsNames.SUBSCRIPTION_FILE, xml);
             }
+
+            // a re-imported subscription may come with a new management certificate
+            clearCertificateConnectionCache();
+            AzureManagementClientPool.getPool().invalidateAll();
         } catch (AzureCmdException ex) {
             throw ex;
         } catch (Exception ex) {
@@ -139,25 +213,93 @@ public class AzureRestAPIHelper {
             ExecutionException,
             InterruptedException {
 
-        AzureRestCallbackAdapter<String> callback = new AzureRestCallbackAdapter<String>() {
+        return getRestApiCommand(path, subscriptionId, new ResponseReader<String>() {
             @Override
-            public int apply(HttpsURLConnection sslConnection) throws IOException {
-                int response = sslConnection.getResponseCode();
-                if (sslConnection.getResponseCode() < 400) {
-                    setResult(readStream(sslConnection.getInputStream(), true));
+            public String read(@NotNull InputStream content) throws IOException {
+                return readLines(content, true);
+            }
+        });
+    }
+
+    /**
+     * Sends a GET request and hands the body of the response to the given reader as it arrives
+     * from the connection, so that it can be decoded without first being copied into a string.
+     */
+    public static <T> T getRestApiCommand(String path, String subscriptionId, @NotNull final ResponseReader<T> reader)
+            throws IOException,
+            SAXException,
+            ParserConfigurationException,
+            XPathExpressionException,
+            NoSuchAlgorithmException,
+            KeyStoreException,
+            CertificateException,
+            UnrecoverableKeyException,
+            KeyManagementException,
+            NoSubscriptionException,
+            AzureCmdException,
+            ExecutionException,
+            InterruptedException {
+
+        AzureRestCallbackAdapter<T> callback = new AzureRestCallbackAdapter<T>() {
+            @Override
+            public int apply(AzureRestTransport.Response response) throws IOException {
+                int responseCode = response.getStatusCode();
+                if (responseCode < 400) {
+                    CountingInputStream content = new CountingInputStream(response.getContent());
+
+                    try {
+                        setResult(reader.read(content));
+                    } finally {
+                        ServiceMetrics.getMetrics().recordBytes(content.getCount());
+                    }
                 }
 
-                return response;
+                return responseCode;
             }
         };
 
-        runWithSSLConnection(path, true, subscriptionId, callback);
+        runWithSSLConnection(new AzureRestRequest("GET", path, true), subscriptionId, callback);
         if (!callback.isOk()) {
             throw callback.getError();
         }
         return callback.getResult();
     }
 
+    /**
+     * Saves the body of a GET request to a file byte for byte; used for scripts, whose line
+     * endings and encoding must be preserved.
+     */
+    public static void downloadRestApiContent(String path, String subscriptionId, @NotNull final File file)
+            throws IOException,
+            SAXException,
+            ParserConfigurationException,
+            XPathExpressionException,
+            NoSuchAlgorithmException,
+            KeyStoreException,
+            CertificateException,
+            UnrecoverableKeyException,
+            KeyManagementException,
+            NoSubscriptionException,
+            AzureCmdException,
+            ExecutionException,
+            InterruptedException {
+
+        getRestApiCommand(path, subscriptionId, new ResponseReader<Void>() {
+            @Override
+            public Void read(@NotNull InputStream content) throws IOException {
+                OutputStream out = new FileOutputStream(file);
+
+                try {
+                    ByteStreams.copy(content, out);
+                } finally {
+                    out.close();
+                }
+
+                return null;
+            }
+        });
+    }
+
     public static String postRestApiCommand(String path, String postData, String subscriptionId, String asyncUrl, boolean jsonContent) throws IOException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, ParserConfigurationException, SAXException, KeyStoreException, XPathExpressionException, KeyManagementException, AzureCmdException, InterruptedException, NoSubscriptionException, ExecutionException {
         return restApiCommand("POST", path, postData, subscriptionId, asyncUrl, jsonContent);
     }
@@ -194,92 +336,111 @@ public class AzureRestAPIHelper {
         // This is a callback method that is invoked in a loop below after the request has been
         // sent. The purpose of this method is to check the status of the pending operation and check
         // if it is complete.
-        final AzureRestCallbackAdapter<Boolean> requestStatusCallback = new AzureRestCallbackAdapter<Boolean>() {
+        final AzureRestCallbackAdapter<String> requestStatusCallback = new AzureRestCallbackAdapter<String>() {
             @Override
-            public int apply(HttpsURLConnection sslConnection) throws IOException {
-                setResult(false);
+            public int apply(AzureRestTransport.Response response) throws IOException {
+                setResult(null);
+                setError(null);
 
-                try {
-                    int responseCode = sslConnection.getResponseCode();
-                    if (responseCode < 200 && responseCode > 299) {
-                        setError(new AzureCmdException("Operation interrupted", "Http error code: "
-                                + String.valueOf(responseCode)));
-                    } else {
-                        String pollres = readStream(sslConnection.getInputStream());
-                        NodeList nl = ((NodeList) XmlHelper.getXMLValue(pollres, "//Status", XPathConstants.NODESET));
-                        if (nl.getLength() > 0) {
-                            if (nl.item(0).getTextContent().equals("Succeeded")) {
-                                setResult(true);
-                            }
+                int responseCode = response.getStatusCode();
+
+                if (responseCode < 200 || responseCode > 299) {
+                    setError(new AzureCmdException("Operation interrupted", "Http error code: "
+                            + String.valueOf(responseCode)));
+                } else {
+                    try {
+                        String pollres = readStream(response.getContent());
+                        String status = XmlHelper.getElementText(pollres, "Status");
+
+                        if ("Failed".equals(status)) {
+                            String message = XmlHelper.getElementText(pollres, "Message");
+                            setError(new AzureCmdException("Operation failed", message != null ? message : pollres));
                         }
-                    }
 
-                    return responseCode;
-                } catch (Exception e) {
-                    setError(new AzureCmdException(e.getMessage(), e));
-                    return HttpURLConnection.HTTP_INTERNAL_ERROR;
+                        setResult(status);
+                    } catch (Exception e) {
+                        // reported to the poll, which decides whether to try again; the response
+                        // code is passed on so that the request itself isn't considered failed
+                        setError(new AzureCmdException(e.getMessage(), e));
+                    }
                 }
+
+                return responseCode;
             }
         };
 
         AzureRestCallbackAdapter<String> callback = new AzureRestCallbackAdapter<String>() {
             @Override
-            public int apply(HttpsURLConnection sslConnection) throws IOException {
+            public int apply(AzureRestTransport.Response response) throws IOException {
                 setError(null);
 
-                sslConnection.setRequestMethod(method);
-                sslConnection.setDoOutput(postData != null);
-                sslConnection.setRequestProperty("Accept", "");
-
-                if (postData != null) {
-                    DataOutputStream wr = new DataOutputStream(sslConnection.getOutputStream());
-                    wr.writeBytes(postData);
-                    wr.flush();
-                    wr.close();
-                }
-
-                int responseCode = sslConnection.getResponseCode();
+                int responseCode = response.getStatusCode();
                 if (responseCode >= 200 && responseCode < 300) {
-                    String response = readStream(sslConnection.getInputStream());
+                    String content = readStream(response.getContent());
 
                     if (responseCode == 202 && asyncUrl != null) {
-                        String operationURL = asyncUrl + sslConnection.getHeaderField("x-ms-request-id");
-                        sslConnection.disconnect();
-
-                        boolean succeed = false;
-                        while (!succeed) {
-                            try {
-                                runWithSSLConnection(operationURL, false, subscriptionId, requestStatusCallback);
-                                if (!requestStatusCallback.isOk()) {
-                                    setError(requestStatusCallback.getError());
-
-                                    // NOTE: setting "succeed" to false below means that the loop for
-                                    // checking the status of the request will continue running; the hope is
-                                    // that the error that occurred while checking for status is transient
-                                    // and won't occur again;
-                                    // TODO: A better approach might be to retry a few times and then bail.
-                                    succeed = false;
-                                } else {
-                                    succeed = requestStatusCallback.getResult();
-                                }
-
-                                if (!succeed) {
-                                    // wait for a while otherwise Azure complains with a
-                                    // "too many requests received" error
-                                    // TODO: This is a bit hacky. See if we can do better.
-                                    Thread.sleep(2000);
-                                }
-                            } catch (Exception e) {
-                                setError(new AzureCmdException(e.getMessage(), e));
-                                return responseCode;
-                            }
+                        final String operationURL = asyncUrl + response.getHeader("x-ms-request-id");
+
+                        // hand the connection back to the pool so the status polls can reuse it
+                        response.close();
+
+                        // poll the status of the operation from the shared operation tracker; the
+                        // first poll waits a couple of seconds otherwise Azure complains with a
+                        // "too many requests received" error
+                        ListenableFuture<Boolean> operation = AzureOperationTracker.getTracker().track(
+                                new AzureOperationTracker.OperationPoll<Boolean>() {
+                                    private int failedPolls = 0;
+
+                                    @Override
+                                    public Boolean poll() throws Exception {
+                                        AzureCmdException error;
+                                        requestStatusCallback.setResult(null);
+
+                                        try {
+                                            runWithSSLConnection(new AzureRestRequest("GET", operationURL, false),
+                                                    subscriptionId, requestStatusCallback);
+                                            error = requestStatusCallback.getError();
+                                        } catch (AzureCmdException e) {
+                                            error = e;
+                                        } catch (IOException e) {
+                                            error = new AzureCmdException(e.getMessage(), e);
+                                        }
+
+                                        if ("Failed".equals(requestStatusCallback.getResult())) {
+                                            throw requestStatusCallback.getError();
+                                        }
+
+                                        if (error != null) {
+                                            // errors while checking for status are assumed to be
+                                            // transient; bail out if they keep happening
+                                            if (++failedPolls >= MAX_FAILED_STATUS_POLLS) {
+                                                throw error;
+                                            }
+
+                                            return null;
+                                        }
+
+                                        failedPolls = 0;
+
+                                        return "Succeeded".equals(requestStatusCallback.getResult()) ? Boolean.TRUE : null;
+                                    }
+                                }, OPERATION_POLL_INITIAL_DELAY_MS, OPERATION_POLL_MAX_DELAY_MS);
+
+                        try {
+                            operation.get();
+                        } catch (ExecutionException e) {
+                            setError(new AzureCmdException(e.getCause().getMessage(), e.getCause()));
+                            return responseCode;
+                        } catch (Exception e) {
+                            setError(new AzureCmdException(e.getMessage(), e));
+                            return responseCode;
                         }
                     }
 
-                    setResult(response);
+                    setResult(content);
 
                 } else {
-                    String err = readStream(sslConnection.getErrorStream(), true);
+                    String err = readStream(response.getContent(), true);
                     setError(new AzureCmdException("Error uploading script: ", err));
                 }
 
@@ -287,16 +448,26 @@ public class AzureRestAPIHelper {
             }
         };
 
-        runWithSSLConnection(path, jsonContent, subscriptionId, callback);
+        AzureRestRequest request = new AzureRestRequest(method, path, jsonContent);
+        request.setHeader(ACCEPT_HEADER, "");
+
+        if (postData != null) {
+            request.setBody(postData.getBytes("UTF-8"));
+        }
+
+        runWithSSLConnection(request, subscriptionId, callback);
         if (!callback.isOk()) {
             throw callback.getError();
         }
         return callback.getResult();
     }
 
+    public interface ResponseReader<T> {
+        T read(@NotNull InputStream content) throws IOException;
+    }
+
     interface AzureRestCallback<T> {
-        @Nullable
-        int apply(HttpsURLConnection sslConnection) throws IOException;
+        int apply(@NotNull AzureRestTransport.Response response) throws IOException;
 
         T getResult();
 
@@ -342,9 +513,8 @@ public class AzureRestAPIHelper {
         }
     }
 
-    public static <T> void runWithSSLConnection(
-            String path,
-            boolean jsonContent,
+    private static <T> void runWithSSLConnection(
+            AzureRestRequest request,
             String subscriptionId,
             AzureRestCallback<T> callback)
             throws IOException,
@@ -364,39 +534,38 @@ public class AzureRestAPIHelper {
         AzureRestAPIManager apiManager = AzureRestAPIManagerImpl.getManager();
         AzureAuthenticationMode authMode = apiManager.getAuthenticationMode();
         if (authMode == AzureAuthenticationMode.ActiveDirectory) {
-            runWithSSLConnectionFromToken(path, jsonContent, subscriptionId, callback, apiManager);
+            runWithSSLConnectionFromToken(request, subscriptionId, callback, apiManager);
         } else if (authMode == AzureAuthenticationMode.SubscriptionSettings) {
-            runWithSSLConnectionFromCert(path, jsonContent, subscriptionId, callback);
+            runWithSSLConnectionFromCert(request, subscriptionId, callback);
         } else {
             throw new NoSubscriptionException("A valid Azure subscription has not been configured yet.");
         }
     }
 
     private static <T> void runWithSSLConnectionFromCert(
-            String path,
-            boolean jsonContent,
+            AzureRestRequest request,
             String subscriptionId,
             AzureRestCallback<T> callback) throws IOException, KeyManagementException, NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException, CertificateException, ParserConfigurationException, XPathExpressionException, SAXException, AzureCmdException {
 
-        HttpsURLConnection sslConnection = getSSLConnectionFromCert(path, jsonContent, subscriptionId);
-        int response = callback.apply(sslConnection);
-        if (response < 200 || response > 299) {
-            if (callback.getError() != null) {
-                throw callback.getError();
-            }
+        AzureRestTransport.Response response = sendWithCertificate(request, subscriptionId);
 
-            throw new AzureCmdException("Error connecting to service", readStream(sslConnection.getErrorStream()));
+        try {
+            int responseCode = callback.apply(response);
+            if (responseCode < 200 || responseCode > 299) {
+                throw getError(callback, response);
+            }
+        } finally {
+            response.close();
         }
     }
 
     private static <T> void runWithSSLConnectionFromToken(
-            String path,
-            boolean jsonContent,
+            AzureRestRequest request,
             String subscriptionId,
             AzureRestCallback<T> callback,
             AzureRestAPIManager apiManager) throws IOException, KeyManagementException, NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException, CertificateException, ParserConfigurationException, XPathExpressionException, SAXException, InterruptedException, ExecutionException, AzureCmdException, NoSubscriptionException {
 
-        HttpsURLConnection sslConnection;// there should already be a valid auth token by this time
+        // there should already be a valid auth token by this time
         boolean isForSubscription = !StringHelper.isNullOrWhiteSpace(subscriptionId);
 
         if (!isForSubscription && apiManager.getAuthenticationToken() == null) {
@@ -411,39 +580,63 @@ public class AzureRestAPIHelper {
             acquireTokenInteractive(subscriptionId, apiManager);
         }
 
-        sslConnection = getSSLConnectionFromAccessToken(path, jsonContent, subscriptionId, false);
-        int response = callback.apply(sslConnection);
+        AuthenticationResult token = isForSubscription ?
+                apiManager.getAuthenticationTokenForSubscription(subscriptionId) :
+                apiManager.getAuthenticationToken();
+        AzureRestTransport.Response response = sendWithToken(request, subscriptionId, token);
 
-        if (response == HttpURLConnection.HTTP_UNAUTHORIZED) {
-            // retry with refresh token
-            sslConnection = getSSLConnectionFromAccessToken(path, jsonContent, subscriptionId, true);
+        try {
+            int responseCode = callback.apply(response);
 
-            // sslConnection will be null if we don't have a refresh token; in which
-            // we fall through to the next "if" check where we attempt interactive auth
-            if (sslConnection != null) {
-                response = callback.apply(sslConnection);
-            }
+            if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                // drain the rejected response so its connection can be reused for the retry
+                response.close();
+
+                // retry with refresh token; concurrent requests rejected with the same token share a
+                // single refresh
+                token = apiManager.refreshAuthenticationToken(subscriptionId, token);
 
-            if (response == HttpURLConnection.HTTP_UNAUTHORIZED) {
-                // perform interactive authentication
-                acquireTokenInteractive(subscriptionId, apiManager);
-
-                // third time lucky?
-                sslConnection = getSSLConnectionFromAccessToken(path, jsonContent, subscriptionId, false);
-                response = callback.apply(sslConnection);
-                if (response < 200 || response > 299) {
-                    // clear the auth token
-                    apiManager.setAuthenticationToken(null);
-                    throw new AzureCmdException("Error connecting to service", readStream(sslConnection.getErrorStream()));
+                // the token will be null if we don't have a refresh token; in which
+                // case we fall through to the next "if" check where we attempt interactive auth
+                if (token != null) {
+                    response = sendWithToken(request, subscriptionId, token);
+                    responseCode = callback.apply(response);
                 }
-            } else if (response < 200 || response > 299) {
-                throw new AzureCmdException("Error connecting to service", readStream(sslConnection.getErrorStream()));
+
+                if (responseCode == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                    response.close();
+
+                    // perform interactive authentication
+                    token = acquireTokenInteractive(subscriptionId, apiManager);
+
+                    // third time lucky?
+                    response = sendWithToken(request, subscriptionId, token);
+                    responseCode = callback.apply(response);
+                    if (responseCode < 200 || responseCode > 299) {
+                        // clear the auth token
+                        apiManager.setAuthenticationToken(null);
+                        throw getError(callback, response);
+                    }
+                } else if (responseCode < 200 || responseCode > 299) {
+                    throw getError(callback, response);
+                }
+            } else if (responseCode < 200 || responseCode > 299) {
+                throw getError(callback, response);
             }
-        } else if (response < 200 || response > 299) {
-            throw new AzureCmdException("Error connecting to service", readStream(sslConnection.getErrorStream()));
+        } finally {
+            response.close();
         }
     }
 
+    private static <T> AzureCmdException getError(AzureRestCallback<T> callback, AzureRestTransport.Response response)
+            throws IOException {
+        if (callback.getError() != null) {
+            return callback.getError();
+        }
+
+        return new AzureCmdException("Error connecting to service", readStream(response.getContent()));
+    }
+
     public static AuthenticationResult acquireTokenInteractive(
             String subscriptionId, AzureRestAPIManager apiManager) throws IOException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, ExecutionException, ParserConfigurationException, InterruptedException, XPathExpressionException, SAXException, KeyManagementException, KeyStoreException, AzureCmdException, NoSubscriptionException {
 
@@ -451,8 +644,23 @@ public class AzureRestAPIHelper {
         AuthenticationContext context = null;
         AuthenticationResult token = null;
         boolean isForSubscription = !StringHelper.isNullOrWhiteSpace(subscriptionId);
+        AuthenticationResult previousToken = isForSubscription ?
+                apiManager.getAuthenticationTokenForSubscription(subscriptionId) :
+                apiManager.getAuthenticationToken();
+
+        // show one sign in window at a time; callers that had to wait use the token acquired by
+        // the window before theirs
+        interactiveAuthLock.lock();
 
         try {
+            token = isForSubscription ?
+                    apiManager.getAuthenticationTokenForSubscription(subscriptionId) :
+                    apiManager.getAuthenticationToken();
+
+            if (token != null && token != previousToken) {
+                return token;
+            }
+
             context = new AuthenticationContext(settings.getAdAuthority());
             String windowTitle = isForSubscription ?
                     "Sign in: " +
@@ -499,84 +707,122 @@ public class AzureRestAPIHelper {
             if (context != null) {
                 context.dispose();
             }
+
+            interactiveAuthLock.unlock();
         }
 
         return token;
     }
 
-    private static HttpsURLConnection getSSLConnectionFromAccessToken(
-            String path,
-            boolean jsonContent,
-            String subscriptionId,
-            boolean useRefreshToken) throws IOException, KeyManagementException, NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException, CertificateException, ParserConfigurationException, XPathExpressionException, SAXException, InterruptedException, ExecutionException, AzureCmdException, NoSubscriptionException {
+    private static AzureRestTransport.Response sendWithToken(AzureRestRequest request,
+                                                             String subscriptionId,
+                                                             AuthenticationResult token)
+            throws IOException {
 
         PluginSettings settings = DefaultLoader.getPluginComponent().getSettings();
-        AzureRestAPIManager apiManager = AzureRestAPIManagerImpl.getManager();
 
-        // get the default token if there is no subscription ID; otherwise fetch
-        // the token for the subscription
-        boolean isForSubscription = !StringHelper.isNullOrWhiteSpace(subscriptionId);
-        AuthenticationResult token = isForSubscription ?
-                apiManager.getAuthenticationTokenForSubscription(subscriptionId) :
-                apiManager.getAuthenticationToken();
+        String url = settings.getAzureServiceManagementUri();
+        URL myUrl = new URL(new URL(url), request.path);
 
-        // get a new access token if "useRefreshToken" is true
-        if (useRefreshToken) {
-            // check if we have a refresh token to redeem
-            if (StringHelper.isNullOrWhiteSpace(token.getRefreshToken())) {
-                return null;
-            }
+        Map<String, String> headers = getHeaders(request);
+
+        // set access token
+        headers.put(AUTHORIZATION_HEADER, "Bearer " + token.getAccessToken());
 
-            AuthenticationContext context = new AuthenticationContext(settings.getAdAuthority());
+        return send(request, subscriptionId, myUrl, headers, null);
+    }
+
+    private static AzureRestTransport.Response sendWithCertificate(AzureRestRequest request, String subscriptionId)
+            throws IOException,
+            KeyManagementException,
+            NoSuchAlgorithmException,
+            UnrecoverableKeyException,
+            KeyStoreException,
+            CertificateException,
+            ParserConfigurationException,
+            XPathExpressionException,
+            SAXException,
+            AzureCmdException {
+
+        CertificateConnectionInfo connectionInfo = getCertificateConnectionInfo(subscriptionId);
+
+        if (connectionInfo == null)
+            throw new AzureCmdException("Error connecting to service",
+                    "No management certificate found for subscription " + subscriptionId);
+
+        URL myUrl = new URL(connectionInfo.managementUrl + request.path);
+
+        return send(request, subscriptionId, myUrl, getHeaders(request), connectionInfo.sslSocketFactory);
+    }
+
+    private static AzureRestTransport.Response send(AzureRestRequest request,
+                                                    String subscriptionId,
+                                                    URL url,
+                                                    Map<String, String> headers,
+                                                    SSLSocketFactory sslSocketFactory) throws IOException {
+        ManagementRateLimiter rateLimiter = ManagementRateLimiter.getLimiter();
+        URI endpoint;
+
+        try {
+            endpoint = url.toURI();
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid request URL " + url, e);
+        }
+
+        for (int retries = 0; ; retries++) {
             try {
-                token = context.acquireTokenByRefreshToken(
-                        token,
-                        getTenantName(subscriptionId),
-                        settings.getAzureServiceManagementUri(),
-                        settings.getClientId());
-            } catch (IOException e) {
-                // if the error is HTTP status code 400 then we need to
-                // do interactive auth
-                if (e.getMessage().contains("HTTP status code 400")) {
-                    return null;
-                }
+                rateLimiter.acquire(subscriptionId, endpoint);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting to send a management request");
+            }
 
-                throw e;
-            } finally {
-                context.dispose();
+            if (request.body != null) {
+                ServiceMetrics.getMetrics().recordBytes(request.body.length);
             }
 
-            if (isForSubscription) {
-                apiManager.setAuthenticationTokenForSubscription(subscriptionId, token);
-            } else {
-                apiManager.setAuthenticationToken(token);
+            AzureRestTransport.Response response = getTransport().execute(request.method, url, headers,
+                    request.body, sslSocketFactory);
+
+            if (!ManagementRateLimiter.isThrottlingStatus(response.getStatusCode())) {
+                return response;
+            }
+
+            // the bucket of the endpoint is paused for as long as the service asks, so the retry
+            // below and any other request to it wait before going out
+            rateLimiter.onThrottled(subscriptionId, endpoint, response.getHeader(RETRY_AFTER_HEADER));
+
+            if (retries >= MAX_THROTTLED_RETRIES) {
+                return response;
             }
+
+            response.close();
         }
+    }
 
-        String url = settings.getAzureServiceManagementUri();
-        URL myUrl = new URL(new URL(url), path);
-
-        // Uncomment following two lines to capture traffic in Fiddler. You'll need to
-        // import the Fiddler cert as a trusted root cert in the JRE first though.
-        //Proxy proxy = new Proxy(Proxy.Type.HTTP, new InetSocketAddress("127.0.0.1", 8888));
-        //HttpsURLConnection conn = (HttpsURLConnection) myUrl.openConnection(proxy);
-
-        HttpsURLConnection conn = (HttpsURLConnection) myUrl.openConnection();
-        conn.addRequestProperty(USER_AGENT_HEADER, getPlatformUserAgent());
-        conn.addRequestProperty(TELEMETRY_HEADER, getPlatformUserAgent());
-        conn.addRequestProperty(X_MS_VERSION_HEADER, AZURE_API_VERSION);
-        if (jsonContent) {
-            conn.addRequestProperty(ACCEPT_HEADER, "application/json");
-            conn.addRequestProperty(CONTENT_TYPE_HEADER, "application/json");
+    private static Map<String, String> getHeaders(AzureRestRequest request) {
+        Map<String, String> headers = new LinkedHashMap<String, String>();
+        headers.put(USER_AGENT_HEADER, getPlatformUserAgent());
+        headers.put(TELEMETRY_HEADER, getPlatformUserAgent());
+        headers.put(X_MS_VERSION_HEADER, AZURE_API_VERSION);
+        if (request.jsonContent) {
+            headers.put(ACCEPT_HEADER, "application/json");
+            headers.put(CONTENT_TYPE_HEADER, "application/json");
         } else {
-            conn.addRequestProperty(ACCEPT_HEADER, "application/xml");
-            conn.addRequestProperty(CONTENT_TYPE_HEADER, "application/xml");
+            headers.put(ACCEPT_HEADER, "application/xml");
+            headers.put(CONTENT_TYPE_HEADER, "application/xml");
         }
 
-        // set access token
-        conn.addRequestProperty(AUTHORIZATION_HEADER, "Bearer " + token.getAccessToken());
+        // request specific headers; an empty value leaves the header out
+        for (Map.Entry<String, String> header : request.headers.entrySet()) {
+            if (header.getValue().isEmpty()) {
+                headers.remove(header.getKey());
+            } else {
+                headers.put(header.getKey(), header.getValue());
+            }
+        }
 
-        return conn;
+        return headers;
     }
 
     private static String getPlatformUserAgent() {
@@ -603,10 +849,7 @@ public class AzureRestAPIHelper {
         return tenantName;
     }
 
-    private static HttpsURLConnection getSSLConnectionFromCert(
-            String path,
-            boolean jsonContent,
-            String subscriptionId)
+    private static CertificateConnectionInfo getCertificateConnectionInfo(String subscriptionId)
             throws IOException,
             KeyManagementException,
             NoSuchAlgorithmException,
@@ -617,56 +860,94 @@ public class AzureRestAPIHelper {
             XPathExpressionException,
             SAXException {
 
-        String publishSettings = DefaultLoader.getIdeHelper().getProperty(AppSettingsNames.SUBSCRIPTION_FILE, "");
-        if (publishSettings.isEmpty())
-            return null;
+        certificateConnectionInfoLock.lock();
+
+        try {
+            CertificateConnectionInfo connectionInfo = certificateConnectionInfoMap.get(subscriptionId);
 
-        Node node = null;
+            if (connectionInfo != null)
+                return connectionInfo;
 
-        NodeList subslist = (NodeList) XmlHelper.getXMLValue(
-                publishSettings,
-                "//PublishData/PublishProfile/Subscription",
-                XPathConstants.NODESET);
-        for (int i = 0; i < subslist.getLength(); i++) {
-            String id = XmlHelper.getAttributeValue(subslist.item(i), "Id");
-            if (id.equals(subscriptionId))
-                node = subslist.item(i);
-        }
+            String publishSettings = DefaultLoader.getIdeHelper().getProperty(AppSettingsNames.SUBSCRIPTION_FILE, "");
+            if (publishSettings.isEmpty())
+                return null;
+
+            Node node = null;
+
+            NodeList subslist = (NodeList) XmlHelper.getXMLValue(
+                    publishSettings,
+                    "//PublishData/PublishProfile/Subscription",
+                    XPathConstants.NODESET);
+            for (int i = 0; i < subslist.getLength(); i++) {
+                String id = XmlHelper.getAttributeValue(subslist.item(i), "Id");
+                if (id.equals(subscriptionId))
+                    node = subslist.item(i);
+            }
 
-        if (node == null)
-            return null;
+            if (node == null)
+                return null;
 
-        String pfx = XmlHelper.getAttributeValue(node, "ManagementCertificate");
-        String url = XmlHelper.getAttributeValue(node, "ServiceManagementUrl");
+            String pfx = XmlHelper.getAttributeValue(node, "ManagementCertificate");
+            String url = XmlHelper.getAttributeValue(node, "ServiceManagementUrl");
 
-        byte[] decodeBuffer = new BASE64Decoder().decodeBuffer(pfx);
+            byte[] decodeBuffer = new BASE64Decoder().decodeBuffer(pfx);
 
-        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
+            KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance("SunX509");
 
-        InputStream is = new ByteArrayInputStream(decodeBuffer);
+            InputStream is = new ByteArrayInputStream(decodeBuffer);
 
-        KeyStore ks = KeyStore.getInstance("PKCS12");
-        ks.load(is, OpenSSLHelper.PASSWORD.toCharArray());
-        keyManagerFactory.init(ks, OpenSSLHelper.PASSWORD.toCharArray());
+            KeyStore ks = KeyStore.getInstance("PKCS12");
+            ks.load(is, OpenSSLHelper.PASSWORD.toCharArray());
+            keyManagerFactory.init(ks, OpenSSLHelper.PASSWORD.toCharArray());
 
-        SSLContext sslContext = SSLContext.getInstance("TLS");
-        sslContext.init(keyManagerFactory.getKeyManagers(), null, new SecureRandom());
+            SSLContext sslContext = SSLContext.getInstance("TLS");
+            sslContext.init(keyManagerFactory.getKeyManagers(), null, new SecureRandom());
 
-        URL myUrl = new URL(url + path);
-        HttpsURLConnection conn = (HttpsURLConnection) myUrl.openConnection();
-        conn.setSSLSocketFactory(sslContext.getSocketFactory());
-        conn.addRequestProperty(USER_AGENT_HEADER, getPlatformUserAgent());
-        conn.addRequestProperty(TELEMETRY_HEADER, getPlatformUserAgent());
-        conn.addRequestProperty(X_MS_VERSION_HEADER, AZURE_API_VERSION);
-        if (jsonContent) {
-            conn.addRequestProperty(ACCEPT_HEADER, "application/json");
-            conn.addRequestProperty(CONTENT_TYPE_HEADER, "application/json");
-        } else {
-            conn.addRequestProperty(ACCEPT_HEADER, "application/xml");
-            conn.addRequestProperty(CONTENT_TYPE_HEADER, "application/xml");
+            connectionInfo = new CertificateConnectionInfo(url, sslContext.getSocketFactory());
+            certificateConnectionInfoMap.put(subscriptionId, connectionInfo);
+
+            return connectionInfo;
+        } finally {
+            certificateConnectionInfoLock.unlock();
+        }
+    }
+
+    public static void clearCertificateConnectionCache() {
+        certificateConnectionInfoLock.lock();
+
+        try {
+            certificateConnectionInfoMap.clear();
+        } finally {
+            certificateConnectionInfoLock.unlock();
+        }
+
+        // pooled connections were opened with the dropped certificates
+        getTransport().reset();
+    }
+
+    /**
+     * Returns the transport used to send requests, a {@link PooledAzureRestTransport} unless
+     * another one has been installed.
+     */
+    public static synchronized AzureRestTransport getTransport() {
+        if (transport == null) {
+            transport = new PooledAzureRestTransport();
         }
 
-        return conn;
+        return transport;
+    }
+
+    public static void setTransport(AzureRestTransport newTransport) {
+        AzureRestTransport previousTransport;
+
+        synchronized (AzureRestAPIHelper.class) {
+            previousTransport = transport;
+            transport = newTransport;
+        }
+
+        if (previousTransport != null && previousTransport != newTransport) {
+            previousTransport.reset();
+        }
     }
 
     private static String readStream(InputStream is) throws IOException {
@@ -674,6 +955,14 @@ public class AzureRestAPIHelper {
     }
 
     private static String readStream(InputStream is, boolean keepLines) throws IOException {
+        CountingInputStream countingStream = new CountingInputStream(is);
+        String response = readLines(countingStream, keepLines);
+        ServiceMetrics.getMetrics().recordBytes(countingStream.getCount());
+
+        return response;
+    }
+
+    private static String readLines(InputStream is, boolean keepLines) throws IOException {
         BufferedReader in = null;
         try {
             in = new BufferedReader(
@@ -713,22 +1002,18 @@ public class AzureRestAPIHelper {
             NoSubscriptionException,
             ExecutionException {
 
-        runWithSSLConnection(path, true, subscriptionId, new AzureRestCallbackAdapter<Void>() {
-            @Override
-            public int apply(HttpsURLConnection sslConnection) throws IOException {
-                String script = readStream(new FileInputStream(filePath), true);
-
-                sslConnection.setRequestMethod("PUT");
-                sslConnection.setDoOutput(true);
-                sslConnection.setRequestProperty("Accept", "");
-                sslConnection.setRequestProperty("Content-Type", "text/plain");
+        // sent as is, so that the script is stored with its own line endings
+        byte[] script = Files.toByteArray(new File(filePath));
 
-                DataOutputStream wr = new DataOutputStream(sslConnection.getOutputStream());
-                wr.writeBytes(script);
-                wr.flush();
-                wr.close();
+        AzureRestRequest request = new AzureRestRequest("PUT", path, true);
+        request.setHeader(ACCEPT_HEADER, "");
+        request.setHeader(CONTENT_TYPE_HEADER, "text/plain");
+        request.setBody(script);
 
-                return sslConnection.getResponseCode();
+        runWithSSLConnection(request, subscriptionId, new AzureRestCallbackAdapter<Void>() {
+            @Override
+            public int apply(AzureRestTransport.Response response) throws IOException {
+                return response.getStatusCode();
             }
         });
     }
@@ -19,6 +19,7 @@ import com.microsoftopentechnologies.aad.adal4j.AuthenticationResult;
 import com.microsoftopentechnologies.tooling.msservices.helpers.NoSubscriptionException;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureAuthenticationMode;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.Coalesced;
 import com.microsoftopentechnologies.tooling.msservices.model.ms.*;
 import org.xml.sax.SAXException;
 
@@ -43,6 +44,7 @@ public interface AzureRestAPIManager {
 
     ArrayList<Subscription> getSubscriptionList() throws AzureCmdException;
 
+    @Coalesced
     ArrayList<Subscription> getFullSubscriptionList() throws AzureCmdException;
 
     AzureAuthenticationMode getAuthenticationMode();
@@ -57,30 +59,46 @@ public interface AzureRestAPIManager {
 
     void setAuthenticationTokenForSubscription(String subscriptionId, AuthenticationResult authenticationToken);
 
+    /**
+     * Redeems the refresh token of the subscription's token, or of the default token if no
+     * subscription ID is given. Concurrent calls for the same token share a single request to AD.
+     *
+     * @param staleToken the token that was rejected, if known; if it has already been replaced the
+     *                   current token is returned as is
+     * @return the new token, or null if interactive authentication is needed
+     */
+    AuthenticationResult refreshAuthenticationToken(String subscriptionId, AuthenticationResult staleToken)
+            throws AzureCmdException;
+
     Subscription getSubscriptionFromId(final String subscriptionId) throws SAXException, ParserConfigurationException, XPathExpressionException, IOException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, ExecutionException, InterruptedException, KeyManagementException, KeyStoreException, AzureCmdException, NoSubscriptionException;
 
     void loadSubscriptionFile(String subscriptionFile) throws AzureCmdException;
 
     List<SqlDb> getSqlDb(UUID subscriptionId, SqlServer server) throws AzureCmdException;
 
+    @Coalesced
     List<SqlServer> getSqlServers(UUID subscriptionId) throws AzureCmdException;
 
     void createService(UUID subscriptionId, String region, String username, String password, String serviceName, String server, String database) throws AzureCmdException;
 
+    @Coalesced
     List<MobileService> getServiceList(UUID subscriptionId) throws AzureCmdException;
 
+    @Coalesced
     List<Table> getTableList(UUID subscriptionId, String serviceName) throws AzureCmdException;
 
     void createTable(UUID subscriptionId, String serviceName, String tableName, TablePermissions permissions) throws AzureCmdException;
 
     void updateTable(UUID subscriptionId, String serviceName, String tableName, TablePermissions permissions) throws AzureCmdException;
 
+    @Coalesced
     Table showTableDetails(UUID subscriptionId, String serviceName, String tableName) throws AzureCmdException;
 
     void downloadTableScript(UUID subscriptionId, String serviceName, String scriptName, String downloadPath) throws AzureCmdException;
 
     void uploadTableScript(UUID subscriptionId, String serviceName, String scriptName, String filePath) throws AzureCmdException;
 
+    @Coalesced
     List<CustomAPI> getAPIList(UUID subscriptionId, String serviceName) throws AzureCmdException;
 
     void downloadAPIScript(UUID subscriptionId, String serviceName, String scriptName, String downloadPath) throws AzureCmdException;
@@ -91,6 +109,7 @@ public interface AzureRestAPIManager {
 
     void updateCustomAPI(UUID subscriptionId, String serviceName, String tableName, CustomAPIPermissions permissions) throws AzureCmdException;
 
+    @Coalesced
     List<Job> listJobs(UUID subscriptionId, String serviceName) throws AzureCmdException;
 
     void createJob(UUID subscriptionId, String serviceName, String jobName, int interval, String intervalUnit, String startDate) throws AzureCmdException;
@@ -101,8 +120,10 @@ public interface AzureRestAPIManager {
 
     void uploadJobScript(UUID subscriptionId, String serviceName, String scriptName, String filePath) throws AzureCmdException;
 
+    @Coalesced
     List<LogEntry> listLog(UUID subscriptionId, String serviceName, String runtime) throws AzureCmdException, ParseException;
 
+    @Coalesced
     List<String> getLocations(UUID subscriptionId) throws AzureCmdException;
 
     void setSelectedSubscriptions(List<UUID> selectedList) throws AzureCmdException;
@@ -15,19 +15,24 @@
  */
 package com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest;
 
-import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
 import com.google.gson.Gson;
 import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
 import com.microsoftopentechnologies.aad.adal4j.AuthenticationResult;
 import com.microsoftopentechnologies.tooling.msservices.components.AppSettingsNames;
 import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
 import com.microsoftopentechnologies.tooling.msservices.helpers.NoSubscriptionException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
 import com.microsoftopentechnologies.tooling.msservices.helpers.StringHelper;
 import com.microsoftopentechnologies.tooling.msservices.helpers.XmlHelper;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureAuthenticationMode;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.ManagementResponseCache;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.RequestCoalescer;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest.model.*;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk.AzureManagementClientPool;
+import com.microsoftopentechnologies.tooling.msservices.helpers.metrics.ServiceMetrics;
 import com.microsoftopentechnologies.tooling.msservices.model.ms.*;
 import org.apache.commons.lang.StringUtils;
 import org.w3c.dom.Node;
@@ -48,34 +53,43 @@ import java.security.cert.CertificateException;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.locks.ReentrantLock;
 
 public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
     // singleton API manager instance
-    private static AzureRestAPIManagerImpl apiManager = null;
+    private static AzureRestAPIManager apiManager = null;
+
+    // Gson instances are thread safe and cache their type adapters, so one is shared by all calls
+    private static final Gson gson = new Gson();
 
     // This is the authentication token.
     // TODO: Should we store this encrypted in memory?
     // TODO: Implement offline encrypted caching so that user doesn't have to re-authenticate every time they run.
-    private AuthenticationResult authenticationToken;
+    private volatile AuthenticationResult authenticationToken;
     private ReentrantLock authenticationTokenLock = new ReentrantLock();
 
-    // list of azure subscriptions
-    private ArrayList<Subscription> subscriptions;
+    // parsed and indexed azure subscriptions for the current authentication mode; dropped through
+    // notifySubscriptionsChanged whenever the persisted subscriptions change
+    private volatile SubscriptionRegistry subscriptionRegistry;
     private ReentrantLock subscriptionsLock = new ReentrantLock();
 
-    // cache of authentication tokens by azure subscription ID
+    // cache of authentication tokens by azure subscription ID; read without locking, the lock only
+    // keeps the cache and the persisted tokens in step
     private Map<String, AuthenticationResult> authenticationTokenSubscriptionMap =
-            new HashMap<String, AuthenticationResult>();
+            new ConcurrentHashMap<String, AuthenticationResult>();
     private ReentrantLock authenticationTokenSubscriptionMapLock = new ReentrantLock();
 
+    private final AuthenticationTokenRefresher tokenRefresher = new AuthenticationTokenRefresher(this);
+
     private AzureRestAPIManagerImpl() {
     }
 
-    public static AzureRestAPIManager getManager() {
+    public static synchronized AzureRestAPIManager getManager() {
         if (apiManager == null) {
-            apiManager = new AzureRestAPIManagerImpl();
+            apiManager = RequestCoalescer.getCoalescer().decorate(AzureRestAPIManager.class,
+                    ServiceMetrics.getMetrics().decorate(AzureRestAPIManager.class, new AzureRestAPIManagerImpl()));
         }
 
         return apiManager;
@@ -94,6 +108,9 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
         DefaultLoader.getIdeHelper().setProperty(
                 AppSettingsNames.AZURE_AUTHENTICATION_MODE,
                 azureAuthenticationMode.toString());
+
+        // pooled management clients carry the credentials of the previous mode
+        AzureManagementClientPool.getPool().invalidateAll();
     }
 
     public AuthenticationResult getAuthenticationTokenForSubscription(String subscriptionId) {
@@ -101,143 +118,180 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
         String key = AppSettingsNames.AZURE_AUTHENTICATION_TOKEN + "_" + subscriptionId;
 
         // check if the token is already available in our cache
-        if (authenticationTokenSubscriptionMap.containsKey(key)) {
-            return authenticationTokenSubscriptionMap.get(key);
+        AuthenticationResult token = authenticationTokenSubscriptionMap.get(key);
+
+        if (token != null) {
+            return token;
         }
 
         String json = DefaultLoader.getIdeHelper().getProperty(key);
         if (!StringHelper.isNullOrWhiteSpace(json)) {
-            Gson gson = new Gson();
-            AuthenticationResult token = gson.fromJson(json, AuthenticationResult.class);
+            AuthenticationResult persistedToken = gson.fromJson(json, AuthenticationResult.class);
 
             // save the token to the cache
             authenticationTokenSubscriptionMapLock.lock();
             try {
-                authenticationTokenSubscriptionMap.put(key, token);
+                token = authenticationTokenSubscriptionMap.get(key);
+
+                if (token == null && persistedToken != null) {
+                    token = persistedToken;
+                    authenticationTokenSubscriptionMap.put(key, token);
+                    tokenRefresher.schedule(subscriptionId, token);
+                }
             } finally {
                 authenticationTokenSubscriptionMapLock.unlock();
             }
         }
 
-        return authenticationTokenSubscriptionMap.get(key);
+        return token;
     }
 
     public void setAuthenticationTokenForSubscription(
             String subscriptionId,
             AuthenticationResult authenticationToken) {
-        // build key for the properties cache
-        String key = AppSettingsNames.AZURE_AUTHENTICATION_TOKEN + "_" + subscriptionId;
-
-        authenticationTokenSubscriptionMapLock.lock();
-        try {
-            // update the token in the cache
-            if (authenticationToken == null) {
-                if (authenticationTokenSubscriptionMap.containsKey(key)) {
-                    authenticationTokenSubscriptionMap.remove(key);
-                }
-            } else {
-                authenticationTokenSubscriptionMap.put(key, authenticationToken);
-            }
-
-            // save the token in persistent storage
-            String json = "";
-
-            if (authenticationToken != null) {
-                Gson gson = new Gson();
-                json = gson.toJson(authenticationToken, AuthenticationResult.class);
-            }
+        storeAuthenticationTokenForSubscription(subscriptionId, authenticationToken);
 
-            DefaultLoader.getIdeHelper().setProperty(key, json);
-        } finally {
-            authenticationTokenSubscriptionMapLock.unlock();
-        }
+        AzureManagementClientPool.getPool().invalidate(subscriptionId);
     }
 
     @Override
     public AuthenticationResult getAuthenticationToken() {
-        if (authenticationToken == null) {
+        AuthenticationResult token = authenticationToken;
+
+        if (token == null) {
             String json = DefaultLoader.getIdeHelper().getProperty(AppSettingsNames.AZURE_AUTHENTICATION_TOKEN);
 
             if (!StringHelper.isNullOrWhiteSpace(json)) {
-                Gson gson = new Gson();
+                AuthenticationResult persistedToken = gson.fromJson(json, AuthenticationResult.class);
                 authenticationTokenLock.lock();
 
                 try {
-                    authenticationToken = gson.fromJson(json, AuthenticationResult.class);
+                    token = authenticationToken;
+
+                    if (token == null && persistedToken != null) {
+                        token = persistedToken;
+                        authenticationToken = token;
+                        tokenRefresher.schedule(null, token);
+                    }
                 } finally {
                     authenticationTokenLock.unlock();
                 }
             }
         }
 
-        return authenticationToken;
+        return token;
     }
 
     @Override
     public void setAuthenticationToken(AuthenticationResult authenticationToken) {
-        authenticationTokenLock.lock();
-
-        try {
-            this.authenticationToken = authenticationToken;
-            String json = "";
+        storeAuthenticationToken(authenticationToken);
 
-            if (this.authenticationToken != null) {
-                Gson gson = new Gson();
-                json = gson.toJson(this.authenticationToken, AuthenticationResult.class);
-            }
+        AzureManagementClientPool.getPool().invalidateAll();
+    }
 
-            DefaultLoader.getIdeHelper().setProperty(AppSettingsNames.AZURE_AUTHENTICATION_TOKEN, json);
-        } finally {
-            authenticationTokenLock.unlock();
-        }
+    @Override
+    public AuthenticationResult refreshAuthenticationToken(String subscriptionId, AuthenticationResult staleToken)
+            throws AzureCmdException {
+        return tokenRefresher.refresh(subscriptionId, staleToken);
     }
 
     @Override
     public void clearSubscriptions() throws AzureCmdException {
         DefaultLoader.getIdeHelper().unsetProperty(AppSettingsNames.SUBSCRIPTION_FILE);
-        subscriptionsLock.lock();
+        notifySubscriptionsChanged();
 
-        try {
-            if (subscriptions != null) {
-                subscriptions.clear();
-                subscriptions = null;
-            }
-        } finally {
-            subscriptionsLock.unlock();
-        }
+        AzureRestAPIHelper.clearCertificateConnectionCache();
+        AzureManagementClientPool.getPool().invalidateAll();
     }
 
     @Override
     public void clearAuthenticationTokens() {
-        if (subscriptions != null) {
-            for (Subscription subscription : subscriptions) {
+        SubscriptionRegistry registry = subscriptionRegistry;
+
+        if (registry != null) {
+            for (Subscription subscription : registry.getSubscriptions()) {
                 setAuthenticationTokenForSubscription(subscription.getId().toString(), null);
             }
         }
 
         setAuthenticationToken(null);
+        tokenRefresher.cancelAll();
     }
 
-    @Override
-    public ArrayList<Subscription> getSubscriptionList() throws AzureCmdException {
+    /**
+     * Returns the token of the subscription, or the default token if no subscription ID is given.
+     */
+    AuthenticationResult getToken(String subscriptionId) {
+        return StringHelper.isNullOrWhiteSpace(subscriptionId) ?
+                getAuthenticationToken() :
+                getAuthenticationTokenForSubscription(subscriptionId);
+    }
+
+    /**
+     * Saves a token obtained by redeeming a refresh token. Pooled management clients are kept,
+     * since the request filters read the current token on every request.
+     */
+    void storeRefreshedToken(String subscriptionId, AuthenticationResult token) {
+        if (StringHelper.isNullOrWhiteSpace(subscriptionId)) {
+            storeAuthenticationToken(token);
+        } else {
+            storeAuthenticationTokenForSubscription(subscriptionId, token);
+        }
+    }
+
+    private void storeAuthenticationTokenForSubscription(String subscriptionId,
+                                                         AuthenticationResult authenticationToken) {
+        // build key for the properties cache
+        String key = AppSettingsNames.AZURE_AUTHENTICATION_TOKEN + "_" + subscriptionId;
+
+        authenticationTokenSubscriptionMapLock.lock();
         try {
-            AzureAuthenticationMode mode = getAuthenticationMode();
-            ArrayList<Subscription> fullList = null;
+            // update the token in the cache
+            if (authenticationToken == null) {
+                authenticationTokenSubscriptionMap.remove(key);
+            } else {
+                authenticationTokenSubscriptionMap.put(key, authenticationToken);
+            }
 
-            if (mode == AzureAuthenticationMode.SubscriptionSettings) {
-                fullList = getSubscriptionListFromCert();
-            } else if (mode == AzureAuthenticationMode.ActiveDirectory) {
-                fullList = getSubscriptionListFromToken();
+            // save the token in persistent storage
+            String json = "";
+
+            if (authenticationToken != null) {
+                json = gson.toJson(authenticationToken, AuthenticationResult.class);
             }
 
-            if (fullList != null) {
-                ArrayList<Subscription> ret = new ArrayList<Subscription>();
-                for (Subscription subscription : fullList) {
-                    if (subscription.isSelected())
-                        ret.add(subscription);
-                }
+            DefaultLoader.getIdeHelper().setProperty(key, json);
+            tokenRefresher.schedule(subscriptionId, authenticationToken);
+        } finally {
+            authenticationTokenSubscriptionMapLock.unlock();
+        }
+    }
 
-                return ret;
+    private void storeAuthenticationToken(AuthenticationResult authenticationToken) {
+        authenticationTokenLock.lock();
+
+        try {
+            this.authenticationToken = authenticationToken;
+            String json = "";
+
+            if (authenticationToken != null) {
+                json = gson.toJson(authenticationToken, AuthenticationResult.class);
+            }
+
+            DefaultLoader.getIdeHelper().setProperty(AppSettingsNames.AZURE_AUTHENTICATION_TOKEN, json);
+            tokenRefresher.schedule(null, authenticationToken);
+        } finally {
+            authenticationTokenLock.unlock();
+        }
+    }
+
+    @Override
+    public ArrayList<Subscription> getSubscriptionList() throws AzureCmdException {
+        try {
+            SubscriptionRegistry registry = getSubscriptionRegistry();
+
+            if (registry != null) {
+                return registry.getSelectedSubscriptions();
             }
 
             return null;
@@ -250,12 +304,10 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
     @Override
     public ArrayList<Subscription> getFullSubscriptionList() throws AzureCmdException {
         try {
-            AzureAuthenticationMode mode = getAuthenticationMode();
+            SubscriptionRegistry registry = getSubscriptionRegistry();
 
-            if (mode == AzureAuthenticationMode.SubscriptionSettings) {
-                return getSubscriptionListFromCert();
-            } else if (mode == AzureAuthenticationMode.ActiveDirectory) {
-                return getSubscriptionListFromToken();
+            if (registry != null) {
+                return registry.getSubscriptions();
             }
 
             return null;
@@ -288,9 +340,15 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
                     String savedXml = XmlHelper.saveXmlToStreamWriter(subscriptionList.item(0).getOwnerDocument());
                     DefaultLoader.getIdeHelper().setProperty(AppSettingsNames.SUBSCRIPTION_FILE, savedXml);
                 }
+
+                notifySubscriptionsChanged();
             } else if (mode == AzureAuthenticationMode.ActiveDirectory) {
-                if (subscriptions != null) {
-                    for (Subscription subscription : subscriptions) {
+                // the token based list is only fetched from the service once; update it in place
+                // instead of dropping it
+                SubscriptionRegistry registry = subscriptionRegistry;
+
+                if (registry != null) {
+                    for (Subscription subscription : registry.getSubscriptions()) {
                         subscription.setSelected(selectedList.contains(subscription.getId()));
                     }
                 }
@@ -309,27 +367,47 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
     }
 
     public ArrayList<Subscription> getSubscriptionListFromCert() throws SAXException, ParserConfigurationException, XPathExpressionException, IOException {
-        String subscriptionFile = DefaultLoader.getIdeHelper().getProperty(AppSettingsNames.SUBSCRIPTION_FILE, "");
+        SubscriptionRegistry registry = subscriptionRegistry;
 
-        if (subscriptionFile.trim().isEmpty()) {
-            return null;
+        if (registry != null && registry.getAuthenticationMode() == AzureAuthenticationMode.SubscriptionSettings) {
+            return registry.getSubscriptions();
         }
 
-        NodeList subscriptionList = (NodeList) XmlHelper.getXMLValue(subscriptionFile, "//Subscription", XPathConstants.NODESET);
+        subscriptionsLock.lock();
+
+        try {
+            registry = subscriptionRegistry;
 
-        ArrayList<Subscription> list = new ArrayList<Subscription>();
+            if (registry != null && registry.getAuthenticationMode() == AzureAuthenticationMode.SubscriptionSettings) {
+                return registry.getSubscriptions();
+            }
 
-        for (int i = 0; i < subscriptionList.getLength(); i++) {
-            Subscription subscription = new Subscription();
-            subscription.setName(XmlHelper.getAttributeValue(subscriptionList.item(i), "Name"));
-            subscription.setId(UUID.fromString(XmlHelper.getAttributeValue(subscriptionList.item(i), "Id")));
-            String selected = XmlHelper.getAttributeValue(subscriptionList.item(i), "Selected");
-            subscription.setSelected(selected == null || selected.equals("true"));
+            String subscriptionFile = DefaultLoader.getIdeHelper().getProperty(AppSettingsNames.SUBSCRIPTION_FILE, "");
 
-            list.add(subscription);
-        }
+            if (subscriptionFile.trim().isEmpty()) {
+                return null;
+            }
+
+            NodeList subscriptionList = (NodeList) XmlHelper.getXMLValue(subscriptionFile, "//Subscription", XPathConstants.NODESET);
+
+            ArrayList<Subscription> list = new ArrayList<Subscription>();
+
+            for (int i = 0; i < subscriptionList.getLength(); i++) {
+                Subscription subscription = new Subscription();
+                subscription.setName(XmlHelper.getAttributeValue(subscriptionList.item(i), "Name"));
+                subscription.setId(UUID.fromString(XmlHelper.getAttributeValue(subscriptionList.item(i), "Id")));
+                String selected = XmlHelper.getAttributeValue(subscriptionList.item(i), "Selected");
+                subscription.setSelected(selected == null || selected.equals("true"));
+
+                list.add(subscription);
+            }
+
+            subscriptionRegistry = new SubscriptionRegistry(AzureAuthenticationMode.SubscriptionSettings, list);
 
-        return list;
+            return list;
+        } finally {
+            subscriptionsLock.unlock();
+        }
     }
 
     public void refreshSubscriptionListFromToken() throws IOException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, ExecutionException, ParserConfigurationException, InterruptedException, AzureCmdException, SAXException, NoSubscriptionException, KeyStoreException, XPathExpressionException, KeyManagementException {
@@ -354,7 +432,7 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
         subscriptionsLock.lock();
 
         try {
-            subscriptions = new ArrayList<Subscription>();
+            ArrayList<Subscription> subscriptions = new ArrayList<Subscription>();
 
             for (int i = 0; i < subscriptionList.getLength(); i++) {
                 Subscription subscription = new Subscription();
@@ -365,42 +443,68 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
 
                 subscriptions.add(subscription);
             }
+
+            subscriptionRegistry = new SubscriptionRegistry(AzureAuthenticationMode.ActiveDirectory, subscriptions);
         } finally {
             subscriptionsLock.unlock();
         }
     }
 
     public ArrayList<Subscription> getSubscriptionListFromToken() throws AzureCmdException, IOException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, ExecutionException, ParserConfigurationException, InterruptedException, SAXException, NoSubscriptionException, KeyStoreException, XPathExpressionException, KeyManagementException {
-        if (subscriptions == null) {
+        SubscriptionRegistry registry = subscriptionRegistry;
+
+        if (registry == null || registry.getAuthenticationMode() != AzureAuthenticationMode.ActiveDirectory) {
             refreshSubscriptionListFromToken();
-            assert subscriptions != null;
+            registry = subscriptionRegistry;
+            assert registry != null;
         }
 
-        return subscriptions;
+        return registry.getSubscriptions();
     }
 
     public Subscription getSubscriptionFromId(final String subscriptionId) throws SAXException, ParserConfigurationException, XPathExpressionException, IOException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, ExecutionException, InterruptedException, KeyManagementException, KeyStoreException, AzureCmdException, NoSubscriptionException {
-        ArrayList<Subscription> subscriptions = null;
+        SubscriptionRegistry registry = getSubscriptionRegistry();
+
+        if (registry == null) {
+            return null;
+        }
+
+        return registry.getSubscription(UUID.fromString(subscriptionId));
+    }
+
+    /**
+     * Drops the parsed subscription list so that it gets rebuilt from the persisted subscription
+     * XML on next access. Must be called whenever the persisted subscriptions change.
+     */
+    public void notifySubscriptionsChanged() {
+        subscriptionsLock.lock();
+
+        try {
+            subscriptionRegistry = null;
+        } finally {
+            subscriptionsLock.unlock();
+        }
+    }
+
+    private SubscriptionRegistry getSubscriptionRegistry() throws AzureCmdException, IOException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException, ExecutionException, ParserConfigurationException, InterruptedException, SAXException, NoSubscriptionException, KeyStoreException, XPathExpressionException, KeyManagementException {
         AzureAuthenticationMode mode = getAuthenticationMode();
+        SubscriptionRegistry registry = subscriptionRegistry;
 
-        if (mode == AzureAuthenticationMode.SubscriptionSettings) {
-            subscriptions = getSubscriptionListFromCert();
-        } else if (mode == AzureAuthenticationMode.ActiveDirectory) {
-            subscriptions = getSubscriptionListFromToken();
+        if (registry != null && registry.getAuthenticationMode() == mode) {
+            return registry;
         }
 
-        if (subscriptions == null) {
+        if (mode == AzureAuthenticationMode.SubscriptionSettings) {
+            getSubscriptionListFromCert();
+        } else if (mode == AzureAuthenticationMode.ActiveDirectory) {
+            getSubscriptionListFromToken();
+        } else {
             return null;
         }
 
-        final UUID sid = UUID.fromString(subscriptionId);
+        registry = subscriptionRegistry;
 
-        return Iterables.find(subscriptions, new Predicate<Subscription>() {
-            @Override
-            public boolean apply(Subscription subscription) {
-                return subscription.getId().compareTo(sid) == 0;
-            }
-        });
+        return registry != null && registry.getAuthenticationMode() == mode ? registry : null;
     }
 
     @Override
@@ -411,6 +515,7 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
         try {
             apiManager.clearSubscriptions();
             AzureRestAPIHelper.importSubscription(new File(subscriptionFile));
+            notifySubscriptionsChanged();
         } catch (AzureCmdException ex) {
             setAuthenticationMode(AzureAuthenticationMode.Unknown);
 
@@ -419,73 +524,71 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
     }
 
     @Override
-    public List<MobileService> getServiceList(UUID subscriptionId) throws AzureCmdException {
+    public List<MobileService> getServiceList(final UUID subscriptionId) throws AzureCmdException {
         try {
             String path = String.format("/%s/services/mobileservices/mobileservices", subscriptionId.toString());
 
-            String json = AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString());
+            return getJsonArray(path, subscriptionId, MobileServiceData.class, new JsonItemMapper<MobileServiceData, MobileService>() {
+                @Override
+                public MobileService map(@NotNull MobileServiceData item) {
+                    MobileService ser = new MobileService();
+
+                    ser.setName(item.getName());
+                    ser.setType(item.getType());
+                    ser.setState(item.getState());
+                    ser.setSelfLink(item.getSelflink());
+                    ser.setAppUrl(item.getApplicationUrl());
+                    ser.setAppKey(item.getApplicationKey());
+                    ser.setMasterKey(item.getMasterKey());
+                    ser.setWebspace(item.getWebspace());
+                    ser.setRegion(item.getRegion());
+                    ser.setMgmtPortalLink(item.getManagementPortalLink());
+                    ser.setSubcriptionId(subscriptionId);
+
+                    if (item.getPlatform() != null && item.getPlatform().equals("dotNet")) {
+                        ser.setRuntime(MobileService.NET_RUNTIME);
+                    } else {
+                        ser.setRuntime(MobileService.NODE_RUNTIME);
+                    }
 
-            Type type = new TypeToken<ArrayList<MobileServiceData>>() {
-            }.getType();
-            List<MobileServiceData> tempRes = new Gson().fromJson(json, type);
-
-            List<MobileService> res = new ArrayList<MobileService>();
-
-            for (MobileServiceData item : tempRes) {
-                MobileService ser = new MobileService();
-
-                ser.setName(item.getName());
-                ser.setType(item.getType());
-                ser.setState(item.getState());
-                ser.setSelfLink(item.getSelflink());
-                ser.setAppUrl(item.getApplicationUrl());
-                ser.setAppKey(item.getApplicationKey());
-                ser.setMasterKey(item.getMasterKey());
-                ser.setWebspace(item.getWebspace());
-                ser.setRegion(item.getRegion());
-                ser.setMgmtPortalLink(item.getManagementPortalLink());
-                ser.setSubcriptionId(subscriptionId);
-
-                if (item.getPlatform() != null && item.getPlatform().equals("dotNet")) {
-                    ser.setRuntime(MobileService.NET_RUNTIME);
-                } else {
-                    ser.setRuntime(MobileService.NODE_RUNTIME);
-                }
+                    for (MobileServiceData.Table table : item.getTables()) {
+                        Table t = new Table();
+                        t.setName(table.getName());
+                        t.setSelfLink(table.getSelflink());
+                        ser.getTables().add(t);
+                    }
 
-                for (MobileServiceData.Table table : item.getTables()) {
-                    Table t = new Table();
-                    t.setName(table.getName());
-                    t.setSelfLink(table.getSelflink());
-                    ser.getTables().add(t);
+                    return ser;
                 }
-
-                res.add(ser);
-            }
-
-            return res;
+            });
         } catch (Exception e) {
             throw new AzureCmdException("Error getting service list", e);
         }
     }
 
     @Override
-    public List<String> getLocations(UUID subscriptionId) throws AzureCmdException {
+    public List<String> getLocations(final UUID subscriptionId) throws AzureCmdException {
+        return ManagementResponseCache.getCache().get(ManagementResponseCache.Operation.MobileServiceRegions,
+                subscriptionId.toString(), new ManagementResponseCache.Loader<String>() {
+                    @NotNull
+                    @Override
+                    public List<String> load() throws AzureCmdException {
+                        return fetchLocations(subscriptionId);
+                    }
+                });
+    }
+
+    @NotNull
+    private List<String> fetchLocations(UUID subscriptionId) throws AzureCmdException {
         try {
             String path = String.format("/%s/services/mobileservices/regions", subscriptionId.toString());
 
-            String json = AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString());
-
-
-            Type type = new TypeToken<ArrayList<RegionData>>() {
-            }.getType();
-            List<RegionData> tempRes = new Gson().fromJson(json, type);
-            List<String> res = new ArrayList<String>();
-
-            for (RegionData item : tempRes) {
-                res.add(item.getRegion());
-            }
-
-            return res;
+            return getJsonArray(path, subscriptionId, RegionData.class, new JsonItemMapper<RegionData, String>() {
+                @Override
+                public String map(@NotNull RegionData item) {
+                    return item.getRegion();
+                }
+            });
         } catch (Exception e) {
             throw new AzureCmdException("Error getting region list", e);
         }
@@ -625,23 +728,16 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
         try {
             String path = String.format("/%s/services/mobileservices/mobileservices/%s/tables", subscriptionId.toString(), serviceName);
 
-            String json = AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString());
-
-            Type type = new TypeToken<ArrayList<TableData>>() {
-            }.getType();
-            List<TableData> tempRes = new Gson().fromJson(json, type);
-
-            List<Table> res = new ArrayList<Table>();
-
-            for (TableData item : tempRes) {
-                Table t = new Table();
-                t.setName(item.getName());
-                t.setSelfLink(item.getSelflink());
-
-                res.add(t);
-            }
+            return getJsonArray(path, subscriptionId, TableData.class, new JsonItemMapper<TableData, Table>() {
+                @Override
+                public Table map(@NotNull TableData item) {
+                    Table t = new Table();
+                    t.setName(item.getName());
+                    t.setSelfLink(item.getSelflink());
 
-            return res;
+                    return t;
+                }
+            });
         } catch (Exception e) {
             throw new AzureCmdException("Error getting table list", e);
         }
@@ -689,15 +785,13 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
             String path = String.format("/%s/services/mobileservices/mobileservices/%s/tables/%s",
                     subscriptionId.toString(), serviceName, tableName);
 
-            String json = AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString());
-            Gson gson = new Gson();
-            TableData tempRes = gson.fromJson(json, TableData.class);
+            TableData tempRes = getJson(path, subscriptionId, TableData.class);
 
             Table t = new Table();
             t.setName(tempRes.getName());
             t.setSelfLink(tempRes.getSelflink());
 
-            TablePermissionsData restTablePermissions = gson.fromJson(AzureRestAPIHelper.getRestApiCommand(path + "/permissions", subscriptionId.toString()), TablePermissionsData.class);
+            TablePermissionsData restTablePermissions = getJson(path + "/permissions", subscriptionId, TablePermissionsData.class);
 
             TablePermissions tablePermissions = new TablePermissions();
             tablePermissions.setInsert(PermissionItem.getPermitionType(restTablePermissions.getInsert()));
@@ -708,7 +802,7 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
 
             Type colType = new TypeToken<ArrayList<TableColumnData>>() {
             }.getType();
-            List<TableColumnData> colList = gson.fromJson(AzureRestAPIHelper.getRestApiCommand(path + "/columns", subscriptionId.toString()), colType);
+            List<TableColumnData> colList = getJson(path + "/columns", subscriptionId, colType);
             if (colList != null) {
                 for (TableColumnData column : colList) {
                     Column c = new Column();
@@ -725,7 +819,7 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
 
             Type scrType = new TypeToken<ArrayList<TableScriptData>>() {
             }.getType();
-            List<TableScriptData> scrList = gson.fromJson(AzureRestAPIHelper.getRestApiCommand(path + "/scripts", subscriptionId.toString()), scrType);
+            List<TableScriptData> scrList = getJson(path + "/scripts", subscriptionId, scrType);
 
             if (scrList != null) {
                 for (TableScriptData script : scrList) {
@@ -753,12 +847,7 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
             String operation = scriptName.split("\\.")[1];
 
             String path = String.format("/%s/services/mobileservices/mobileservices/%s/tables/%s/scripts/%s/code", subscriptionId.toString(), serviceName, tableName, operation);
-            String script = AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString());
-
-            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(downloadPath), "utf-8"));
-            writer.write(script);
-            writer.flush();
-            writer.close();
+            AzureRestAPIHelper.downloadRestApiContent(path, subscriptionId.toString(), new File(downloadPath));
         } catch (Exception e) {
             //On error, create script for template
         }
@@ -784,28 +873,22 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
         try {
             String path = String.format("/%s/services/mobileservices/mobileservices/%s/apis", subscriptionId.toString(), serviceName);
 
-            String json = AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString());
-
-            Type type = new TypeToken<ArrayList<CustomAPIData>>() {
-            }.getType();
-            List<CustomAPIData> tempRes = new Gson().fromJson(json, type);
-
-            List<CustomAPI> res = new ArrayList<CustomAPI>();
-
-            for (CustomAPIData item : tempRes) {
-                CustomAPI c = new CustomAPI();
-                c.setName(item.getName());
-                CustomAPIPermissions permissions = new CustomAPIPermissions();
-                permissions.setPutPermission(PermissionItem.getPermitionType(item.getPut()));
-                permissions.setPostPermission(PermissionItem.getPermitionType(item.getPost()));
-                permissions.setGetPermission(PermissionItem.getPermitionType(item.getGet()));
-                permissions.setDeletePermission(PermissionItem.getPermitionType(item.getDelete()));
-                permissions.setPatchPermission(PermissionItem.getPermitionType(item.getPatch()));
-                c.setCustomAPIPermissions(permissions);
-                res.add(c);
-            }
-
-            return res;
+            return getJsonArray(path, subscriptionId, CustomAPIData.class, new JsonItemMapper<CustomAPIData, CustomAPI>() {
+                @Override
+                public CustomAPI map(@NotNull CustomAPIData item) {
+                    CustomAPI c = new CustomAPI();
+                    c.setName(item.getName());
+                    CustomAPIPermissions permissions = new CustomAPIPermissions();
+                    permissions.setPutPermission(PermissionItem.getPermitionType(item.getPut()));
+                    permissions.setPostPermission(PermissionItem.getPermitionType(item.getPost()));
+                    permissions.setGetPermission(PermissionItem.getPermitionType(item.getGet()));
+                    permissions.setDeletePermission(PermissionItem.getPermitionType(item.getDelete()));
+                    permissions.setPatchPermission(PermissionItem.getPermitionType(item.getPatch()));
+                    c.setCustomAPIPermissions(permissions);
+
+                    return c;
+                }
+            });
         } catch (Exception e) {
             throw new AzureCmdException("Error getting API list", e);
         }
@@ -817,12 +900,7 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
             String apiName = scriptName.split("\\.")[0];
 
             String path = String.format("/%s/services/mobileservices/mobileservices/%s/apis/%s/script", subscriptionId.toString(), serviceName, apiName);
-            String script = AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString());
-
-            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(downloadPath), "utf-8"));
-            writer.write(script);
-            writer.flush();
-            writer.close();
+            AzureRestAPIHelper.downloadRestApiContent(path, subscriptionId.toString(), new File(downloadPath));
         } catch (Exception e) {
             throw new AzureCmdException("Error getting API list", e);
         }
@@ -883,30 +961,23 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
         try {
             String path = String.format("/%s/services/mobileservices/mobileservices/%s/scheduler/jobs", subscriptionId.toString(), serviceName);
 
-            String json = AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString());
-
-            Type type = new TypeToken<ArrayList<JobData>>() {
-            }.getType();
-            List<JobData> tempRes = new Gson().fromJson(json, type);
-
-            List<Job> res = new ArrayList<Job>();
-
-            for (JobData item : tempRes) {
-                Job j = new Job();
-                j.setAppName(item.getAppName());
-                j.setName(item.getName());
-                j.setEnabled(item.getStatus().equals("enabled"));
-                j.setId(UUID.fromString(item.getId()));
+            return getJsonArray(path, subscriptionId, JobData.class, new JsonItemMapper<JobData, Job>() {
+                @Override
+                public Job map(@NotNull JobData item) {
+                    Job j = new Job();
+                    j.setAppName(item.getAppName());
+                    j.setName(item.getName());
+                    j.setEnabled(item.getStatus().equals("enabled"));
+                    j.setId(UUID.fromString(item.getId()));
+
+                    if (item.getIntervalPeriod() > 0) {
+                        j.setIntervalPeriod(item.getIntervalPeriod());
+                        j.setIntervalUnit(item.getIntervalUnit());
+                    }
 
-                if (item.getIntervalPeriod() > 0) {
-                    j.setIntervalPeriod(item.getIntervalPeriod());
-                    j.setIntervalUnit(item.getIntervalUnit());
+                    return j;
                 }
-
-                res.add(j);
-            }
-
-            return res;
+            });
         } catch (Exception e) {
             throw new AzureCmdException("Error getting job list", e);
         }
@@ -962,12 +1033,7 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
             String jobName = scriptName.split("\\.")[0];
 
             String path = String.format("/%s/services/mobileservices/mobileservices/%s/scheduler/jobs/%s/script", subscriptionId.toString(), serviceName, jobName);
-            String script = AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString());
-
-            Writer writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(downloadPath), "utf-8"));
-            writer.write(script);
-            writer.flush();
-            writer.close();
+            AzureRestAPIHelper.downloadRestApiContent(path, subscriptionId.toString(), new File(downloadPath));
         } catch (Exception e) {
             e.printStackTrace();
             //On error, create script for template
@@ -993,34 +1059,117 @@ public class AzureRestAPIManagerImpl implements AzureRestAPIManager {
         try {
             String path = String.format("/%s/services/mobileservices/mobileservices/%s/logs?$top=10", subscriptionId.toString(), serviceName);
 
-            String json = AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString());
-
-            LogData tempRes = new Gson().fromJson(json, LogData.class);
+            final SimpleDateFormat ISO8601DATEFORMAT;
 
-            List<LogEntry> res = new ArrayList<LogEntry>();
+            if (MobileService.NODE_RUNTIME.equals(runtime)) {
+                ISO8601DATEFORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
+            } else {
+                ISO8601DATEFORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
+            }
 
-            for (LogData.LogEntry item : tempRes.getResults()) {
-                LogEntry logEntry = new LogEntry();
+            final JsonItemMapper<LogData.LogEntry, LogEntry> mapper = new JsonItemMapper<LogData.LogEntry, LogEntry>() {
+                @Override
+                public LogEntry map(@NotNull LogData.LogEntry item) throws IOException {
+                    LogEntry logEntry = new LogEntry();
 
-                logEntry.setMessage(item.getMessage());
-                logEntry.setSource(item.getSource());
-                logEntry.setType(item.getType());
+                    logEntry.setMessage(item.getMessage());
+                    logEntry.setSource(item.getSource());
+                    logEntry.setType(item.getType());
 
-                SimpleDateFormat ISO8601DATEFORMAT;
+                    try {
+                        logEntry.setTimeCreated(ISO8601DATEFORMAT.parse(item.getTimeCreated()));
+                    } catch (ParseException e) {
+                        throw new IOException("Invalid log entry time " + item.getTimeCreated(), e);
+                    }
 
-                if (MobileService.NODE_RUNTIME.equals(runtime)) {
-                    ISO8601DATEFORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'", Locale.ENGLISH);
-                } else {
-                    ISO8601DATEFORMAT = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'", Locale.ENGLISH);
+                    return logEntry;
                 }
-                logEntry.setTimeCreated(ISO8601DATEFORMAT.parse(item.getTimeCreated()));
+            };
+
+            // the entries come wrapped in an object, next to paging information
+            return AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString(), new AzureRestAPIHelper.ResponseReader<List<LogEntry>>() {
+                @Override
+                public List<LogEntry> read(@NotNull InputStream content) throws IOException {
+                    JsonReader reader = new JsonReader(new InputStreamReader(content, "UTF-8"));
+                    List<LogEntry> res = new ArrayList<LogEntry>();
+
+                    reader.beginObject();
+
+                    while (reader.hasNext()) {
+                        if ("results".equals(reader.nextName()) && reader.peek() != JsonToken.NULL) {
+                            res = readJsonArray(reader, LogData.LogEntry.class, mapper);
+                        } else {
+                            reader.skipValue();
+                        }
+                    }
 
-                res.add(logEntry);
-            }
+                    reader.endObject();
 
-            return res;
+                    return res;
+                }
+            });
         } catch (Exception e) {
             throw new AzureCmdException("Error getting log", e);
         }
     }
-}
\ No newline at end of file
+
+    private interface JsonItemMapper<D, T> {
+        T map(@NotNull D item) throws IOException;
+    }
+
+    /**
+     * Decodes a JSON array response element by element, straight off the connection, so that
+     * neither the response text nor the whole list of intermediate objects is held in memory.
+     */
+    @NotNull
+    private static <D, T> List<T> getJsonArray(String path,
+                                               UUID subscriptionId,
+                                               @NotNull final Class<D> itemClass,
+                                               @NotNull final JsonItemMapper<D, T> mapper)
+            throws IOException, SAXException, ParserConfigurationException, XPathExpressionException,
+            NoSuchAlgorithmException, KeyStoreException, CertificateException, UnrecoverableKeyException,
+            KeyManagementException, NoSubscriptionException, AzureCmdException, ExecutionException,
+            InterruptedException {
+        return AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString(), new AzureRestAPIHelper.ResponseReader<List<T>>() {
+            @Override
+            public List<T> read(@NotNull InputStream content) throws IOException {
+                return readJsonArray(new JsonReader(new InputStreamReader(content, "UTF-8")), itemClass, mapper);
+            }
+        });
+    }
+
+    @NotNull
+    private static <D, T> List<T> readJsonArray(@NotNull JsonReader reader,
+                                                @NotNull Class<D> itemClass,
+                                                @NotNull JsonItemMapper<D, T> mapper)
+            throws IOException {
+        List<T> res = new ArrayList<T>();
+
+        reader.beginArray();
+
+        while (reader.hasNext()) {
+            D item = gson.fromJson(reader, itemClass);
+
+            if (item != null) {
+                res.add(mapper.map(item));
+            }
+        }
+
+        reader.endArray();
+
+        return res;
+    }
+
+    private static <T> T getJson(String path, UUID subscriptionId, @NotNull final Type type)
+            throws IOException, SAXException, ParserConfigurationException, XPathExpressionException,
+            NoSuchAlgorithmException, KeyStoreException, CertificateException, UnrecoverableKeyException,
+            KeyManagementException, NoSubscriptionException, AzureCmdException, ExecutionException,
+            InterruptedException {
+        return AzureRestAPIHelper.getRestApiCommand(path, subscriptionId.toString(), new AzureRestAPIHelper.ResponseReader<T>() {
+            @Override
+            public T read(@NotNull InputStream content) throws IOException {
+                return gson.fromJson(new JsonReader(new InputStreamReader(content, "UTF-8")), type);
+            }
+        });
+    }
+}
@@ -0,0 +1,74 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest;
+
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.util.Map;
+
+/**
+ * Sends the HTTP requests of {@link AzureRestAPIHelper}. The default implementation is
+ * {@link PooledAzureRestTransport}; another one can be installed through
+ * {@link AzureRestAPIHelper#setTransport}.
+ */
+public interface AzureRestTransport {
+    interface Response extends Closeable {
+        int getStatusCode();
+
+        @Nullable
+        String getHeader(@NotNull String name);
+
+        /**
+         * Returns the body of the response, already decompressed; the same stream is returned on
+         * every call.
+         */
+        @NotNull
+        InputStream getContent() throws IOException;
+
+        /**
+         * Reads whatever is left of the body and releases the connection, which can then be
+         * reused by later requests.
+         */
+        @Override
+        void close() throws IOException;
+    }
+
+    /**
+     * Sends a request and returns the response once its headers have been received. The caller
+     * must close the response.
+     *
+     * @param sslSocketFactory the factory used to open HTTPS connections, for instance one holding
+     *                         a management certificate, or null for the default one
+     */
+    @NotNull
+    Response execute(@NotNull String method,
+                     @NotNull URL url,
+                     @NotNull Map<String, String> headers,
+                     @Nullable byte[] body,
+                     @Nullable SSLSocketFactory sslSocketFactory) throws IOException;
+
+    /**
+     * Closes all connections; called when the credentials they were opened with are no longer
+     * valid.
+     */
+    void reset();
+}
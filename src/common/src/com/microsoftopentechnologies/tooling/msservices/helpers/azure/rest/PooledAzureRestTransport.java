@@ -0,0 +1,271 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest;
+
+import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
+import com.microsoftopentechnologies.tooling.msservices.components.PluginSettings;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk.AzureSDKHelper;
+import org.apache.http.Header;
+import org.apache.http.HttpEntity;
+import org.apache.http.client.config.RequestConfig;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.RequestBuilder;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.impl.conn.SystemDefaultRoutePlanner;
+import org.apache.http.util.EntityUtils;
+
+import javax.net.ssl.SSLSocketFactory;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProxySelector;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Transport keeping a pool of keep-alive connections per management endpoint and SSL socket
+ * factory, so that successive calls to the same endpoint, such as the status polls of a long
+ * running operation, reuse an open connection instead of going through a new TCP and TLS handshake
+ * each time.
+ * <p/>
+ * Responses are requested and transparently decompressed with gzip, and connect and read timeouts
+ * are taken from the plugin settings.
+ */
+public class PooledAzureRestTransport implements AzureRestTransport {
+    private static final int DEFAULT_CONNECT_TIMEOUT_MS = 30000;
+    private static final int DEFAULT_READ_TIMEOUT_MS = 120000;
+    private static final long IDLE_CONNECTION_TIMEOUT_SECONDS = 60;
+
+    private static class ClientKey {
+        private final String endpoint;
+        private final SSLSocketFactory sslSocketFactory;
+
+        private ClientKey(@NotNull String endpoint, @Nullable SSLSocketFactory sslSocketFactory) {
+            this.endpoint = endpoint;
+            this.sslSocketFactory = sslSocketFactory;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof ClientKey)) {
+                return false;
+            }
+
+            ClientKey other = (ClientKey) o;
+
+            // socket factories are compared by identity since each one holds its own credentials
+            return endpoint.equals(other.endpoint) && sslSocketFactory == other.sslSocketFactory;
+        }
+
+        @Override
+        public int hashCode() {
+            return endpoint.hashCode() * 31 + System.identityHashCode(sslSocketFactory);
+        }
+    }
+
+    private static class PooledClient {
+        private final CloseableHttpClient client;
+        private final PoolingHttpClientConnectionManager connectionManager;
+
+        private PooledClient(@NotNull CloseableHttpClient client,
+                             @NotNull PoolingHttpClientConnectionManager connectionManager) {
+            this.client = client;
+            this.connectionManager = connectionManager;
+        }
+    }
+
+    private static class PooledResponse implements Response {
+        private final CloseableHttpResponse response;
+        private InputStream content;
+        private boolean closed;
+
+        private PooledResponse(@NotNull CloseableHttpResponse response) {
+            this.response = response;
+        }
+
+        @Override
+        public int getStatusCode() {
+            return response.getStatusLine().getStatusCode();
+        }
+
+        @Nullable
+        @Override
+        public String getHeader(@NotNull String name) {
+            Header header = response.getFirstHeader(name);
+            return header != null ? header.getValue() : null;
+        }
+
+        @NotNull
+        @Override
+        public InputStream getContent() throws IOException {
+            if (content == null) {
+                HttpEntity entity = response.getEntity();
+                content = entity != null ? entity.getContent() : new ByteArrayInputStream(new byte[0]);
+            }
+
+            return content;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (closed) {
+                return;
+            }
+
+            closed = true;
+
+            try {
+                // consuming the entity hands the connection back to the pool; closing the
+                // response without doing so would discard it
+                EntityUtils.consume(response.getEntity());
+            } finally {
+                response.close();
+            }
+        }
+    }
+
+    private final Map<ClientKey, PooledClient> clients = new HashMap<ClientKey, PooledClient>();
+    private final ReentrantLock clientsLock = new ReentrantLock();
+
+    @NotNull
+    @Override
+    public Response execute(@NotNull String method,
+                            @NotNull URL url,
+                            @NotNull Map<String, String> headers,
+                            @Nullable byte[] body,
+                            @Nullable SSLSocketFactory sslSocketFactory) throws IOException {
+        RequestBuilder requestBuilder;
+
+        try {
+            requestBuilder = RequestBuilder.create(method).setUri(url.toURI());
+        } catch (URISyntaxException e) {
+            throw new IOException("Invalid request URL " + url, e);
+        }
+
+        for (Map.Entry<String, String> header : headers.entrySet()) {
+            requestBuilder.addHeader(header.getKey(), header.getValue());
+        }
+
+        if (body != null) {
+            requestBuilder.setEntity(new ByteArrayEntity(body));
+        }
+
+        return new PooledResponse(getClient(url, sslSocketFactory).execute(requestBuilder.build()));
+    }
+
+    @Override
+    public void reset() {
+        List<PooledClient> closedClients;
+        clientsLock.lock();
+
+        try {
+            closedClients = new ArrayList<PooledClient>(clients.values());
+            clients.clear();
+        } finally {
+            clientsLock.unlock();
+        }
+
+        for (PooledClient pooledClient : closedClients) {
+            try {
+                pooledClient.client.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    @NotNull
+    private CloseableHttpClient getClient(@NotNull URL url, @Nullable SSLSocketFactory sslSocketFactory) {
+        ClientKey key = new ClientKey(getEndpoint(url), sslSocketFactory);
+        clientsLock.lock();
+
+        try {
+            PooledClient pooledClient = clients.get(key);
+
+            if (pooledClient == null) {
+                pooledClient = createClient(sslSocketFactory);
+                clients.put(key, pooledClient);
+            } else {
+                // connections the server is likely to have dropped by now would only fail the next
+                // request that picks them
+                pooledClient.connectionManager.closeIdleConnections(IDLE_CONNECTION_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            }
+
+            return pooledClient.client;
+        } finally {
+            clientsLock.unlock();
+        }
+    }
+
+    @NotNull
+    private static PooledClient createClient(@Nullable SSLSocketFactory sslSocketFactory) {
+        SSLConnectionSocketFactory sslConnectionSocketFactory = sslSocketFactory != null ?
+                new SSLConnectionSocketFactory(sslSocketFactory,
+                        SSLConnectionSocketFactory.BROWSER_COMPATIBLE_HOSTNAME_VERIFIER) :
+                SSLConnectionSocketFactory.getSocketFactory();
+
+        PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                RegistryBuilder.<ConnectionSocketFactory>create()
+                        .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                        .register("https", sslConnectionSocketFactory)
+                        .build());
+        int maxConnectionsPerRoute = AzureSDKHelper.getMaxConnectionsPerRoute();
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+        connectionManager.setMaxTotal(maxConnectionsPerRoute * 2);
+
+        PluginSettings settings = DefaultLoader.getPluginComponent().getSettings();
+        int connectTimeout = settings.getRestConnectTimeout() > 0 ?
+                settings.getRestConnectTimeout() : DEFAULT_CONNECT_TIMEOUT_MS;
+        int readTimeout = settings.getRestReadTimeout() > 0 ?
+                settings.getRestReadTimeout() : DEFAULT_READ_TIMEOUT_MS;
+
+        RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        // the builder adds "Accept-Encoding: gzip,deflate" to requests and decompresses
+        // responses accordingly; routes are resolved through the default ProxySelector, where
+        // the IDE installs its proxy settings, just like HttpsURLConnection does
+        CloseableHttpClient client = HttpClients.custom()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setRoutePlanner(new SystemDefaultRoutePlanner(ProxySelector.getDefault()))
+                .build();
+
+        return new PooledClient(client, connectionManager);
+    }
+
+    @NotNull
+    private static String getEndpoint(@NotNull URL url) {
+        return url.getProtocol() + "://" + url.getHost() + ":" + (url.getPort() != -1 ? url.getPort() : url.getDefaultPort());
+    }
+}
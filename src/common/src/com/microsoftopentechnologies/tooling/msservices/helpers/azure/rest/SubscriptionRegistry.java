@@ -0,0 +1,72 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest;
+
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureAuthenticationMode;
+import com.microsoftopentechnologies.tooling.msservices.model.ms.Subscription;
+
+import java.util.*;
+
+/**
+ * Parsed snapshot of the subscriptions available under a given authentication mode, indexed by
+ * subscription ID. Instances are built once from the persisted subscription XML (or the token based
+ * subscription list) and replaced wholesale when the subscriptions change.
+ */
+class SubscriptionRegistry {
+    private final AzureAuthenticationMode authenticationMode;
+    private final List<Subscription> subscriptions;
+    private final Map<UUID, Subscription> subscriptionMap;
+
+    SubscriptionRegistry(@NotNull AzureAuthenticationMode authenticationMode, @NotNull List<Subscription> subscriptions) {
+        this.authenticationMode = authenticationMode;
+        this.subscriptions = new ArrayList<Subscription>(subscriptions);
+        this.subscriptionMap = new HashMap<UUID, Subscription>();
+
+        for (Subscription subscription : subscriptions) {
+            subscriptionMap.put(subscription.getId(), subscription);
+        }
+    }
+
+    @NotNull
+    AzureAuthenticationMode getAuthenticationMode() {
+        return authenticationMode;
+    }
+
+    @NotNull
+    ArrayList<Subscription> getSubscriptions() {
+        return new ArrayList<Subscription>(subscriptions);
+    }
+
+    @NotNull
+    ArrayList<Subscription> getSelectedSubscriptions() {
+        ArrayList<Subscription> selected = new ArrayList<Subscription>();
+
+        for (Subscription subscription : subscriptions) {
+            if (subscription.isSelected()) {
+                selected.add(subscription);
+            }
+        }
+
+        return selected;
+    }
+
+    @Nullable
+    Subscription getSubscription(@NotNull UUID subscriptionId) {
+        return subscriptionMap.get(subscriptionId);
+    }
+}
@@ -0,0 +1,315 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
+
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureAuthenticationMode;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest.AzureRestAPIManagerImpl;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps one management client per subscription and client type so that consecutive calls against
+ * the same subscription reuse the client together with its HTTP connection pool instead of paying
+ * for a new connection manager and TLS handshake every time.
+ * <p/>
+ * Clients are leased with {@link #acquire} and handed back with {@link #release}. Entries that have
+ * not been used for {@link #IDLE_TIMEOUT_MS} are closed, and entries created under a different
+ * authentication mode, or explicitly invalidated, are closed as soon as their last lease is released.
+ */
+public class AzureManagementClientPool {
+    public interface ClientFactory<T extends Closeable> {
+        @NotNull
+        T create(@NotNull String subscriptionId) throws Exception;
+    }
+
+    private static class PooledClient {
+        private final String key;
+        private final String subscriptionId;
+        private final AzureAuthenticationMode authenticationMode;
+        private final Closeable client;
+        private int leaseCount;
+        private long lastAccess;
+        private boolean retired;
+
+        private PooledClient(@NotNull String key,
+                             @NotNull String subscriptionId,
+                             @NotNull AzureAuthenticationMode authenticationMode,
+                             @NotNull Closeable client) {
+            this.key = key;
+            this.subscriptionId = subscriptionId;
+            this.authenticationMode = authenticationMode;
+            this.client = client;
+        }
+    }
+
+    private static final long IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+    private static final long EVICTION_INTERVAL_MS = TimeUnit.MINUTES.toMillis(1);
+
+    private static AzureManagementClientPool pool;
+
+    // pooled clients by subscription ID and client type
+    private final Map<String, PooledClient> clients = new HashMap<String, PooledClient>();
+
+    // every client instance still alive, including retired ones with outstanding leases
+    private final Map<Closeable, PooledClient> liveClients = new IdentityHashMap<Closeable, PooledClient>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private long lastEviction = System.currentTimeMillis();
+
+    // bumped on every invalidation, so that clients built from a configuration that was
+    // invalidated while they were being created don't make it into the pool
+    private long invalidationGeneration;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    private AzureManagementClientPool() {
+    }
+
+    @NotNull
+    public static synchronized AzureManagementClientPool getPool() {
+        if (pool == null) {
+            pool = new AzureManagementClientPool();
+        }
+
+        return pool;
+    }
+
+    @NotNull
+    public <T extends Closeable> T acquire(@NotNull String subscriptionId,
+                                           @NotNull Class<T> clientClass,
+                                           @NotNull ClientFactory<T> factory)
+            throws Exception {
+        AzureAuthenticationMode authenticationMode = AzureRestAPIManagerImpl.getManager().getAuthenticationMode();
+        String key = subscriptionId + "|" + clientClass.getName();
+        List<PooledClient> stale = new ArrayList<PooledClient>();
+        long generation;
+
+        lock.lock();
+
+        try {
+            generation = invalidationGeneration;
+            collectIdle(stale);
+
+            PooledClient pooledClient = clients.get(key);
+
+            if (pooledClient != null && pooledClient.authenticationMode != authenticationMode) {
+                retire(pooledClient, stale);
+                pooledClient = null;
+            }
+
+            if (pooledClient != null) {
+                pooledClient.leaseCount++;
+                pooledClient.lastAccess = System.currentTimeMillis();
+                hitCount.incrementAndGet();
+
+                return clientClass.cast(pooledClient.client);
+            }
+        } finally {
+            lock.unlock();
+            closeAll(stale);
+        }
+
+        missCount.incrementAndGet();
+
+        // create the client outside of the lock; building the configuration may involve
+        // key store and network work we do not want to serialize across subscriptions
+        T client = factory.create(subscriptionId);
+        PooledClient pooledClient = new PooledClient(key, subscriptionId, authenticationMode, client);
+        pooledClient.leaseCount = 1;
+        pooledClient.lastAccess = System.currentTimeMillis();
+
+        lock.lock();
+
+        try {
+            liveClients.put(client, pooledClient);
+
+            if (generation != invalidationGeneration) {
+                // the pool was invalidated while the client was being created; serve it for this
+                // lease only, like any client leased at the time of the invalidation, and close it
+                // when released
+                pooledClient.retired = true;
+            } else {
+                PooledClient previous = clients.put(key, pooledClient);
+
+                // another thread may have raced us to create the same client; keep the newest
+                // one and retire the other
+                if (previous != null) {
+                    retire(previous, stale);
+                }
+            }
+        } finally {
+            lock.unlock();
+            closeAll(stale);
+        }
+
+        return client;
+    }
+
+    public void release(@Nullable Closeable client) {
+        if (client == null) {
+            return;
+        }
+
+        List<PooledClient> stale = new ArrayList<PooledClient>();
+        boolean unknown = false;
+
+        lock.lock();
+
+        try {
+            PooledClient pooledClient = liveClients.get(client);
+
+            if (pooledClient == null) {
+                unknown = true;
+            } else {
+                pooledClient.leaseCount = Math.max(0, pooledClient.leaseCount - 1);
+                pooledClient.lastAccess = System.currentTimeMillis();
+
+                if (pooledClient.retired && pooledClient.leaseCount == 0) {
+                    liveClients.remove(client);
+                    stale.add(pooledClient);
+                }
+            }
+        } finally {
+            lock.unlock();
+            closeAll(stale);
+        }
+
+        if (unknown) {
+            // not a pooled client; fall back to the old behavior of closing it right away
+            closeQuietly(client);
+        }
+    }
+
+    /**
+     * Drops every pooled client for the given subscription. Clients currently leased are closed
+     * once the last lease is released.
+     */
+    public void invalidate(@NotNull String subscriptionId) {
+        List<PooledClient> stale = new ArrayList<PooledClient>();
+
+        lock.lock();
+
+        try {
+            invalidationGeneration++;
+
+            for (PooledClient pooledClient : new ArrayList<PooledClient>(clients.values())) {
+                if (pooledClient.subscriptionId.equals(subscriptionId)) {
+                    retire(pooledClient, stale);
+                }
+            }
+        } finally {
+            lock.unlock();
+            closeAll(stale);
+        }
+    }
+
+    /**
+     * Drops every pooled client. Used when the authentication mode, the global authentication token
+     * or the set of imported subscriptions changes.
+     */
+    public void invalidateAll() {
+        List<PooledClient> stale = new ArrayList<PooledClient>();
+
+        lock.lock();
+
+        try {
+            invalidationGeneration++;
+
+            for (PooledClient pooledClient : new ArrayList<PooledClient>(clients.values())) {
+                retire(pooledClient, stale);
+            }
+        } finally {
+            lock.unlock();
+            closeAll(stale);
+        }
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    public int getSize() {
+        lock.lock();
+
+        try {
+            return clients.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void collectIdle(@NotNull List<PooledClient> stale) {
+        long now = System.currentTimeMillis();
+
+        if (now - lastEviction < EVICTION_INTERVAL_MS) {
+            return;
+        }
+
+        lastEviction = now;
+
+        for (PooledClient pooledClient : new ArrayList<PooledClient>(clients.values())) {
+            if (pooledClient.leaseCount == 0 && now - pooledClient.lastAccess > IDLE_TIMEOUT_MS) {
+                evictionCount.incrementAndGet();
+                retire(pooledClient, stale);
+            }
+        }
+    }
+
+    private void retire(@NotNull PooledClient pooledClient, @NotNull List<PooledClient> stale) {
+        if (clients.get(pooledClient.key) == pooledClient) {
+            clients.remove(pooledClient.key);
+        }
+
+        pooledClient.retired = true;
+
+        if (pooledClient.leaseCount == 0) {
+            liveClients.remove(pooledClient.client);
+            stale.add(pooledClient);
+        }
+    }
+
+    private static void closeAll(@NotNull List<PooledClient> stale) {
+        for (PooledClient pooledClient : stale) {
+            closeQuietly(pooledClient.client);
+        }
+
+        stale.clear();
+    }
+
+    private static void closeQuietly(@NotNull Closeable client) {
+        try {
+            client.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -15,20 +15,17 @@
  */
 package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
 
+import com.google.common.io.BaseEncoding;
 import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.windowsazure.Configuration;
 import com.microsoft.windowsazure.core.pipeline.apache.ApacheConfigurationProperties;
 import com.microsoft.windowsazure.core.utils.Base64;
 import com.microsoft.windowsazure.core.utils.KeyStoreType;
 import com.microsoft.windowsazure.management.ManagementClient;
-import com.microsoft.windowsazure.management.ManagementService;
 import com.microsoft.windowsazure.management.compute.ComputeManagementClient;
-import com.microsoft.windowsazure.management.compute.ComputeManagementService;
 import com.microsoft.windowsazure.management.configuration.ManagementConfiguration;
 import com.microsoft.windowsazure.management.network.NetworkManagementClient;
-import com.microsoft.windowsazure.management.network.NetworkManagementService;
 import com.microsoft.windowsazure.management.storage.StorageManagementClient;
-import com.microsoft.windowsazure.management.storage.StorageManagementService;
 import com.microsoftopentechnologies.tooling.msservices.components.AppSettingsNames;
 import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
 import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
@@ -36,8 +33,15 @@ import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
 import com.microsoftopentechnologies.tooling.msservices.helpers.OpenSSLHelper;
 import com.microsoftopentechnologies.tooling.msservices.helpers.XmlHelper;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureAuthenticationMode;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest.AzureRestAPIManagerImpl;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.ClientStorageAccount;
+import com.microsoftopentechnologies.tooling.msservices.model.storage.StorageAccount;
+import org.apache.http.config.RegistryBuilder;
+import org.apache.http.conn.socket.ConnectionSocketFactory;
+import org.apache.http.conn.socket.PlainConnectionSocketFactory;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.w3c.dom.Node;
 import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
@@ -48,28 +52,55 @@ import javax.xml.xpath.XPathExpressionException;
 import java.io.*;
 import java.net.URI;
 import java.net.URISyntaxException;
-import java.security.InvalidKeyException;
-import java.security.KeyStore;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
+import java.security.*;
 import java.security.cert.CertificateException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantLock;
 
 public class AzureSDKHelper {
     private static class SubscriptionInfo {
+        public String subscriptionId;
         public String base64Certificate;
         public String managementURI;
+        public String certificateFingerprint;
+
+        @NotNull
+        public String getKey() {
+            return subscriptionId + "|" + managementURI + "|" + certificateFingerprint;
+        }
     }
 
+    // management configurations built from the publish settings file, keyed by subscription ID,
+    // management URI and certificate fingerprint; rebuilt when the subscription file changes
+    private static String cachedPublishSettings;
+    private static Map<String, SubscriptionInfo> subscriptionInfoMap = new HashMap<String, SubscriptionInfo>();
+    private static final Map<String, Configuration> configurationMap = new HashMap<String, Configuration>();
+    private static final ReentrantLock configurationLock = new ReentrantLock();
+
+    // serializes setting the per-client connection manager on a (possibly shared) configuration
+    // object with the creation of the client that picks it up
+    private static final ReentrantLock clientCreationLock = new ReentrantLock();
+
+    private static final int DEFAULT_MAX_CONNECTIONS_PER_ROUTE = 8;
+
     @Nullable
     public static ComputeManagementClient getComputeManagementClient(@NotNull String subscriptionId)
-            throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, XPathExpressionException, ParserConfigurationException, SAXException {
+            throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, XPathExpressionException, ParserConfigurationException, SAXException,
+            UnrecoverableKeyException, KeyManagementException {
         Configuration configuration = getConfiguration(subscriptionId);
 
         if (configuration == null) {
             return null;
         }
 
-        ComputeManagementClient client = ComputeManagementService.create(configuration);
+        ComputeManagementClient client = createClient(configuration, ComputeManagementClient.class);
+
+        // keep the requests of the client within the rate limits of the subscription
+        RateLimitFilter rateLimitFilter = new RateLimitFilter(subscriptionId);
+        client = client.withRequestFilterLast(rateLimitFilter).withResponseFilterLast(rateLimitFilter);
 
         // add a request filter for tacking on the A/D auth token if the current authentication
         // mode is active directory
@@ -82,14 +113,19 @@ public class AzureSDKHelper {
 
     @Nullable
     public static StorageManagementClient getStorageManagementClient(@NotNull String subscriptionId)
-            throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, XPathExpressionException, ParserConfigurationException, SAXException {
+            throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, XPathExpressionException, ParserConfigurationException, SAXException,
+            UnrecoverableKeyException, KeyManagementException {
         Configuration configuration = getConfiguration(subscriptionId);
 
         if (configuration == null) {
             return null;
         }
 
-        StorageManagementClient client = StorageManagementService.create(configuration);
+        StorageManagementClient client = createClient(configuration, StorageManagementClient.class);
+
+        // keep the requests of the client within the rate limits of the subscription
+        RateLimitFilter rateLimitFilter = new RateLimitFilter(subscriptionId);
+        client = client.withRequestFilterLast(rateLimitFilter).withResponseFilterLast(rateLimitFilter);
 
         // add a request filter for tacking on the A/D auth token if the current authentication
         // mode is active directory
@@ -102,14 +138,19 @@ public class AzureSDKHelper {
 
     @Nullable
     public static NetworkManagementClient getNetworkManagementClient(@NotNull String subscriptionId)
-            throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, XPathExpressionException, ParserConfigurationException, SAXException {
+            throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, XPathExpressionException, ParserConfigurationException, SAXException,
+            UnrecoverableKeyException, KeyManagementException {
         Configuration configuration = getConfiguration(subscriptionId);
 
         if (configuration == null) {
             return null;
         }
 
-        NetworkManagementClient client = NetworkManagementService.create(configuration);
+        NetworkManagementClient client = createClient(configuration, NetworkManagementClient.class);
+
+        // keep the requests of the client within the rate limits of the subscription
+        RateLimitFilter rateLimitFilter = new RateLimitFilter(subscriptionId);
+        client = client.withRequestFilterLast(rateLimitFilter).withResponseFilterLast(rateLimitFilter);
 
         // add a request filter for tacking on the A/D auth token if the current authentication
         // mode is active directory
@@ -122,14 +163,19 @@ public class AzureSDKHelper {
 
     @Nullable
     public static ManagementClient getManagementClient(@NotNull String subscriptionId)
-            throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, XPathExpressionException, ParserConfigurationException, SAXException {
+            throws IOException, CertificateException, NoSuchAlgorithmException, KeyStoreException, XPathExpressionException, ParserConfigurationException, SAXException,
+            UnrecoverableKeyException, KeyManagementException {
         Configuration configuration = getConfiguration(subscriptionId);
 
         if (configuration == null) {
             return null;
         }
 
-        ManagementClient client = ManagementService.create(configuration);
+        ManagementClient client = createClient(configuration, ManagementClient.class);
+
+        // keep the requests of the client within the rate limits of the subscription
+        RateLimitFilter rateLimitFilter = new RateLimitFilter(subscriptionId);
+        client = client.withRequestFilterLast(rateLimitFilter).withResponseFilterLast(rateLimitFilter);
 
         // add a request filter for tacking on the A/D auth token if the current authentication
         // mode is active directory
@@ -140,16 +186,64 @@ public class AzureSDKHelper {
         return client;
     }
 
+    /**
+     * Returns the number of concurrent requests allowed against a single subscription, as
+     * configured in the plugin settings.
+     */
+    public static int getMaxConnectionsPerRoute() {
+        int parallelism = DefaultLoader.getPluginComponent().getSettings().getHostedServiceParallelism();
+        return parallelism > 0 ? parallelism : DEFAULT_MAX_CONNECTIONS_PER_ROUTE;
+    }
+
     @NotNull
     public static CloudStorageAccount getCloudStorageAccount(@NotNull ClientStorageAccount storageAccount)
-            throws URISyntaxException, InvalidKeyException {
+            throws URISyntaxException, InvalidKeyException, AzureCmdException {
+        if (storageAccount instanceof StorageAccount) {
+            // storage accounts listed from a subscription don't carry their keys until needed
+            AzureSDKManagerImpl.getManager().loadStorageAccountKeys((StorageAccount) storageAccount);
+        }
+
         return CloudStorageAccount.parse(storageAccount.getConnectionString());
     }
 
+    @NotNull
+    private static <T> T createClient(@NotNull Configuration configuration, @NotNull Class<T> clientClass) {
+        clientCreationLock.lock();
+
+        try {
+            // the HTTP client built by the SDK defaults to 2 connections per route, which would
+            // serialize concurrent calls made through a pooled client; give every client its own
+            // connection manager sized for the configured parallelism. The connection manager
+            // takes precedence over the SSL socket factory, so the factory has to be registered
+            // with it explicitly.
+            SSLConnectionSocketFactory sslConnectionSocketFactory = SSLConnectionSocketFactory.getSocketFactory();
+            Object credentials = configuration.getProperty(ManagementConfiguration.SUBSCRIPTION_CLOUD_CREDENTIALS);
+
+            if (credentials instanceof KeyStoreCloudCredentials) {
+                sslConnectionSocketFactory = ((KeyStoreCloudCredentials) credentials).getSSLConnectionSocketFactory();
+            }
+
+            PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager(
+                    RegistryBuilder.<ConnectionSocketFactory>create()
+                            .register("http", PlainConnectionSocketFactory.getSocketFactory())
+                            .register("https", sslConnectionSocketFactory)
+                            .build());
+            int maxConnectionsPerRoute = getMaxConnectionsPerRoute();
+            connectionManager.setDefaultMaxPerRoute(maxConnectionsPerRoute);
+            connectionManager.setMaxTotal(maxConnectionsPerRoute * 2);
+
+            configuration.setProperty(ApacheConfigurationProperties.PROPERTY_CONNECTION_MANAGER, connectionManager);
+
+            return configuration.create(clientClass);
+        } finally {
+            clientCreationLock.unlock();
+        }
+    }
+
     @Nullable
     private static Configuration getConfiguration(@NotNull String subscriptionId)
             throws CertificateException, NoSuchAlgorithmException, KeyStoreException, XPathExpressionException,
-            SAXException, ParserConfigurationException, IOException {
+            SAXException, ParserConfigurationException, IOException, UnrecoverableKeyException, KeyManagementException {
         switch (AzureRestAPIManagerImpl.getManager().getAuthenticationMode()) {
             case SubscriptionSettings:
                 return getConfigurationFromPublishSettings(subscriptionId);
@@ -206,80 +300,128 @@ public class AzureSDKHelper {
 
     @Nullable
     private static Configuration getConfigurationFromPublishSettings(@NotNull String subscriptionId)
-            throws KeyStoreException, CertificateException, NoSuchAlgorithmException, IOException, ParserConfigurationException, XPathExpressionException, SAXException {
-        SubscriptionInfo subscriptionInfo = getSubscriptionInfoFromPublishSettings(subscriptionId);
+            throws KeyStoreException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException,
+            KeyManagementException, IOException, ParserConfigurationException, XPathExpressionException, SAXException {
+        String publishSettings = DefaultLoader.getIdeHelper().getProperty(AppSettingsNames.SUBSCRIPTION_FILE, "");
 
-        if (subscriptionInfo == null) {
+        if (publishSettings.isEmpty()) {
             return null;
         }
 
-        String keyStorePath = File.createTempFile("azk", null).getPath();
+        configurationLock.lock();
+
+        try {
+            if (!publishSettings.equals(cachedPublishSettings)) {
+                subscriptionInfoMap = getSubscriptionInfoFromPublishSettings(publishSettings);
+                cachedPublishSettings = publishSettings;
+
+                // keep the configurations whose subscription and certificate are still present; a
+                // change in the selected subscriptions for instance does not require rebuilding them
+                Set<String> keys = new HashSet<String>();
+
+                for (SubscriptionInfo subscriptionInfo : subscriptionInfoMap.values()) {
+                    keys.add(subscriptionInfo.getKey());
+                }
+
+                configurationMap.keySet().retainAll(keys);
+            }
+
+            SubscriptionInfo subscriptionInfo = subscriptionInfoMap.get(subscriptionId);
+
+            if (subscriptionInfo == null) {
+                return null;
+            }
+
+            Configuration configuration = configurationMap.get(subscriptionInfo.getKey());
 
-        initKeyStore(
-                subscriptionInfo.base64Certificate != null ? subscriptionInfo.base64Certificate : "",
-                OpenSSLHelper.PASSWORD,
-                keyStorePath,
-                OpenSSLHelper.PASSWORD);
+            if (configuration == null) {
+                configuration = createConfiguration(subscriptionInfo);
+                configurationMap.put(subscriptionInfo.getKey(), configuration);
+            }
+
+            return configuration;
+        } finally {
+            configurationLock.unlock();
+        }
+    }
+
+    @NotNull
+    private static Configuration createConfiguration(@NotNull SubscriptionInfo subscriptionInfo)
+            throws KeyStoreException, CertificateException, NoSuchAlgorithmException, UnrecoverableKeyException,
+            KeyManagementException, IOException {
+        KeyStore keyStore = initKeyStore(subscriptionInfo.base64Certificate, OpenSSLHelper.PASSWORD);
+        KeyStoreCloudCredentials credentials = new KeyStoreCloudCredentials(
+                subscriptionInfo.subscriptionId, keyStore, OpenSSLHelper.PASSWORD);
 
         ClassLoader old = Thread.currentThread().getContextClassLoader();
         Thread.currentThread().setContextClassLoader(AzureSDKHelper.class.getClassLoader());
 
         try {
-            return ManagementConfiguration.configure(URI.create(subscriptionInfo.managementURI), subscriptionId, keyStorePath, OpenSSLHelper.PASSWORD, KeyStoreType.pkcs12);
+            // use a configuration object of our own instead of the shared Configuration.getInstance()
+            // so that it can be cached per subscription; the key store never touches the disk since
+            // our credentials supply the SSL connection factory directly
+            Configuration configuration = ManagementConfiguration.configure(null, new Configuration(),
+                    URI.create(subscriptionInfo.managementURI), subscriptionInfo.subscriptionId,
+                    null, null, KeyStoreType.pkcs12);
+
+            configuration.setProperty(ManagementConfiguration.SUBSCRIPTION_CLOUD_CREDENTIALS, credentials);
+            configuration.setProperty(ApacheConfigurationProperties.PROPERTY_SSL_CONNECTION_SOCKET_FACTORY,
+                    credentials.getSSLConnectionSocketFactory());
+
+            return configuration;
         } finally {
             Thread.currentThread().setContextClassLoader(old);
         }
     }
 
-    @Nullable
-    private static SubscriptionInfo getSubscriptionInfoFromPublishSettings(@NotNull String subscriptionId)
-            throws SAXException, ParserConfigurationException, XPathExpressionException, IOException {
-        String publishSettings = DefaultLoader.getIdeHelper().getProperty(AppSettingsNames.SUBSCRIPTION_FILE, "");
-
-        if (publishSettings.isEmpty()) {
-            return null;
-        }
-
-        Node node = null;
+    @NotNull
+    private static Map<String, SubscriptionInfo> getSubscriptionInfoFromPublishSettings(@NotNull String publishSettings)
+            throws SAXException, ParserConfigurationException, XPathExpressionException, IOException,
+            NoSuchAlgorithmException {
+        Map<String, SubscriptionInfo> subscriptionInfos = new HashMap<String, SubscriptionInfo>();
 
         NodeList subsList = (NodeList) XmlHelper.getXMLValue(publishSettings, "//PublishData/PublishProfile/Subscription", XPathConstants.NODESET);
 
         for (int i = 0; i < subsList.getLength(); i++) {
-            String id = XmlHelper.getAttributeValue(subsList.item(i), "Id");
+            Node node = subsList.item(i);
 
-            if (id.equals(subscriptionId)) {
-                node = subsList.item(i);
-                break;
+            SubscriptionInfo subscriptionInfo = new SubscriptionInfo();
+            subscriptionInfo.subscriptionId = XmlHelper.getAttributeValue(node, "Id");
+            subscriptionInfo.base64Certificate = XmlHelper.getAttributeValue(node, "ManagementCertificate");
+            subscriptionInfo.managementURI = XmlHelper.getAttributeValue(node, "ServiceManagementUrl");
+
+            if (subscriptionInfo.subscriptionId == null) {
+                continue;
             }
-        }
 
-        if (node == null) {
-            return null;
-        }
+            if (subscriptionInfo.base64Certificate == null) {
+                subscriptionInfo.base64Certificate = "";
+            }
+
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            subscriptionInfo.certificateFingerprint = BaseEncoding.base16().encode(
+                    digest.digest(subscriptionInfo.base64Certificate.getBytes("UTF-8")));
 
-        SubscriptionInfo subscriptionInfo = new SubscriptionInfo();
-        subscriptionInfo.base64Certificate = XmlHelper.getAttributeValue(node, "ManagementCertificate");
-        subscriptionInfo.managementURI = XmlHelper.getAttributeValue(node, "ServiceManagementUrl");
+            subscriptionInfos.put(subscriptionInfo.subscriptionId, subscriptionInfo);
+        }
 
-        return subscriptionInfo;
+        return subscriptionInfos;
     }
 
-    private static void initKeyStore(@NotNull String base64Certificate, @NotNull String certificatePwd, @NotNull String keyStorePath, @NotNull String keyStorePwd)
+    @NotNull
+    private static KeyStore initKeyStore(@NotNull String base64Certificate, @NotNull String certificatePwd)
             throws KeyStoreException, IOException, NoSuchAlgorithmException, CertificateException {
-        FileOutputStream keyStoreOutputStream = new FileOutputStream(keyStorePath);
+        KeyStore store = KeyStore.getInstance("PKCS12");
 
-        try {
-            KeyStore store = KeyStore.getInstance("PKCS12");
-            store.load(null, null);
+        final byte[] decode = Base64.decode(base64Certificate);
+        InputStream sslInputStream = new ByteArrayInputStream(decode);
 
-            final byte[] decode = Base64.decode(base64Certificate);
-            InputStream sslInputStream = new ByteArrayInputStream(decode);
+        try {
             store.load(sslInputStream, certificatePwd.toCharArray());
-
-            // we need to a create a physical key store as well here
-            store.store(keyStoreOutputStream, keyStorePwd.toCharArray());
         } finally {
-            keyStoreOutputStream.close();
+            sslInputStream.close();
         }
+
+        return store;
     }
-}
\ No newline at end of file
+}
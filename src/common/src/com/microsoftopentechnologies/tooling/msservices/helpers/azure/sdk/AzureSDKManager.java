@@ -15,20 +15,35 @@
  */
 package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
 
+import com.microsoftopentechnologies.tooling.msservices.helpers.CallableSingleArg;
 import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.Coalesced;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.StorageAccount;
 import com.microsoftopentechnologies.tooling.msservices.model.vm.*;
 
 import java.util.List;
 
 public interface AzureSDKManager {
+    @Coalesced
     @NotNull
     List<CloudService> getCloudServices(@NotNull String subscriptionId) throws AzureCmdException;
 
+    @Coalesced
     @NotNull
     List<VirtualMachine> getVirtualMachines(@NotNull String subscriptionId) throws AzureCmdException;
 
+    /**
+     * Loads the virtual machines of all hosted services in the subscription concurrently. The
+     * callback, if any, receives the virtual machines of each hosted service as soon as they are
+     * loaded; the returned list holds all of them in hosted service order.
+     */
+    @NotNull
+    List<VirtualMachine> getVirtualMachines(@NotNull String subscriptionId,
+                                            @Nullable CallableSingleArg<Void, List<VirtualMachine>> partialResultCallback)
+            throws AzureCmdException;
+
     @NotNull
     VirtualMachine refreshVirtualMachineInformation(@NotNull VirtualMachine vm) throws AzureCmdException;
 
@@ -43,21 +58,34 @@ public interface AzureSDKManager {
     @NotNull
     byte[] downloadRDP(@NotNull VirtualMachine vm) throws AzureCmdException;
 
+    @Coalesced
     @NotNull
     List<StorageAccount> getStorageAccounts(@NotNull String subscriptionId) throws AzureCmdException;
 
+    /**
+     * Fills in the access keys of a storage account returned by {@link #getStorageAccounts}, which
+     * leaves them empty. Keys are cached for a while, so repeated calls are cheap.
+     */
+    @NotNull
+    StorageAccount loadStorageAccountKeys(@NotNull StorageAccount storageAccount) throws AzureCmdException;
+
+    @Coalesced
     @NotNull
     List<VirtualMachineImage> getVirtualMachineImages(@NotNull String subscriptionId) throws AzureCmdException;
 
+    @Coalesced
     @NotNull
     List<VirtualMachineSize> getVirtualMachineSizes(@NotNull String subscriptionId) throws AzureCmdException;
 
+    @Coalesced
     @NotNull
     List<Location> getLocations(@NotNull String subscriptionId) throws AzureCmdException;
 
+    @Coalesced
     @NotNull
     List<AffinityGroup> getAffinityGroups(@NotNull String subscriptionId) throws AzureCmdException;
 
+    @Coalesced
     @NotNull
     List<VirtualNetwork> getVirtualNetworks(@NotNull String subscriptionId) throws AzureCmdException;
 
@@ -16,11 +16,10 @@
 package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
 
 import com.microsoft.windowsazure.exception.ServiceException;
-import com.microsoftopentechnologies.aad.adal4j.AuthenticationContext;
 import com.microsoftopentechnologies.aad.adal4j.AuthenticationResult;
-import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
-import com.microsoftopentechnologies.tooling.msservices.components.PluginSettings;
+import com.microsoftopentechnologies.tooling.msservices.helpers.CallableSingleArg;
 import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
 import com.microsoftopentechnologies.tooling.msservices.helpers.StringHelper;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest.AzureRestAPIHelper;
@@ -40,6 +39,8 @@ public class AzureSDKManagerADAuthDecorator implements AzureSDKManager {
     }
 
     protected <T> T runWithRetry(String subscriptionId, Func0<T> func) throws AzureCmdException {
+        AuthenticationResult token = AzureRestAPIManagerImpl.getManager().getAuthenticationTokenForSubscription(subscriptionId);
+
         try {
             return func.run();
         } catch (AzureCmdException e) {
@@ -52,7 +53,7 @@ public class AzureSDKManagerADAuthDecorator implements AzureSDKManager {
             ServiceException serviceException = (ServiceException) throwable;
             if (serviceException.getHttpStatusCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
                 // attempt token refresh
-                if (refreshAccessToken(subscriptionId)) {
+                if (refreshAccessToken(subscriptionId, token)) {
                     // retry request
                     return func.run();
                 }
@@ -62,43 +63,26 @@ public class AzureSDKManagerADAuthDecorator implements AzureSDKManager {
         }
     }
 
-    private boolean refreshAccessToken(String subscriptionId) {
-        PluginSettings settings = DefaultLoader.getPluginComponent().getSettings();
+    private boolean refreshAccessToken(String subscriptionId, AuthenticationResult staleToken) {
         AzureRestAPIManager apiManager = AzureRestAPIManagerImpl.getManager();
         AuthenticationResult token = apiManager.getAuthenticationTokenForSubscription(subscriptionId);
 
         // check if we have a refresh token to redeem
         if (token != null && !StringHelper.isNullOrWhiteSpace(token.getRefreshToken())) {
-            AuthenticationContext context = null;
             try {
-                context = new AuthenticationContext(settings.getAdAuthority());
-                token = context.acquireTokenByRefreshToken(
-                        token,
-                        AzureRestAPIHelper.getTenantName(subscriptionId),
-                        settings.getAzureServiceManagementUri(),
-                        settings.getClientId());
-            } catch (Exception e) {
-                // if the error is HTTP status code 400 then we need to
+                // concurrent requests rejected with the same token share a single refresh
+                token = apiManager.refreshAuthenticationToken(subscriptionId, staleToken);
+
+                // a null token means the refresh token was rejected and we need to
                 // do interactive auth
-                if (e.getMessage().contains("HTTP status code 400")) {
-                    try {
-                        token = AzureRestAPIHelper.acquireTokenInteractive(subscriptionId, apiManager);
-                    } catch (Exception ignored) {
-                        token = null;
-                    }
-                } else {
-                    token = null;
-                }
-            } finally {
-                if (context != null) {
-                    context.dispose();
+                if (token == null) {
+                    token = AzureRestAPIHelper.acquireTokenInteractive(subscriptionId, apiManager);
                 }
+            } catch (Exception ignored) {
+                token = null;
             }
 
-            if (token != null) {
-                apiManager.setAuthenticationTokenForSubscription(subscriptionId, token);
-                return true;
-            }
+            return token != null;
         }
 
         return false;
@@ -126,6 +110,19 @@ public class AzureSDKManagerADAuthDecorator implements AzureSDKManager {
         });
     }
 
+    @NotNull
+    @Override
+    public List<VirtualMachine> getVirtualMachines(@NotNull final String subscriptionId,
+                                                   @Nullable final CallableSingleArg<Void, List<VirtualMachine>> partialResultCallback)
+            throws AzureCmdException {
+        return runWithRetry(subscriptionId, new Func0<List<VirtualMachine>>() {
+            @Override
+            public List<VirtualMachine> run() throws AzureCmdException {
+                return sdkManager.getVirtualMachines(subscriptionId, partialResultCallback);
+            }
+        });
+    }
+
     @NotNull
     @Override
     public VirtualMachine refreshVirtualMachineInformation(@NotNull final VirtualMachine vm) throws AzureCmdException {
@@ -203,6 +200,17 @@ public class AzureSDKManagerADAuthDecorator implements AzureSDKManager {
         });
     }
 
+    @NotNull
+    @Override
+    public StorageAccount loadStorageAccountKeys(@NotNull final StorageAccount storageAccount) throws AzureCmdException {
+        return runWithRetry(storageAccount.getSubscriptionId(), new Func0<StorageAccount>() {
+            @Override
+            public StorageAccount run() throws AzureCmdException {
+                return sdkManager.loadStorageAccountKeys(storageAccount);
+            }
+        });
+    }
+
     @NotNull
     @Override
     public List<VirtualMachineImage> getVirtualMachineImages(@NotNull final String subscriptionId) throws AzureCmdException {
@@ -15,10 +15,9 @@
  */
 package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
 
+import com.google.common.base.Joiner;
 import com.google.common.base.Strings;
-import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.SettableFuture;
 import com.microsoft.azure.storage.CloudStorageAccount;
 import com.microsoft.azure.storage.blob.CloudBlobClient;
 import com.microsoft.azure.storage.blob.CloudBlobContainer;
@@ -47,27 +46,43 @@ import com.microsoft.windowsazure.management.network.models.NetworkListResponse.
 import com.microsoft.windowsazure.management.storage.StorageAccountOperations;
 import com.microsoft.windowsazure.management.storage.StorageManagementClient;
 import com.microsoft.windowsazure.management.storage.models.*;
-import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
+import com.microsoftopentechnologies.tooling.msservices.helpers.CallableSingleArg;
 import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
 import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureAuthenticationMode;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureExecutors;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureOperationTracker;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzurePartialResultException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.ManagementResponseCache;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.RequestCoalescer;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest.AzureRestAPIManagerImpl;
+import com.microsoftopentechnologies.tooling.msservices.helpers.metrics.ServiceMetrics;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.ClientStorageAccount;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.StorageAccount;
 import com.microsoftopentechnologies.tooling.msservices.model.vm.*;
 import com.microsoftopentechnologies.tooling.msservices.model.vm.CloudService.Deployment;
 
 import javax.security.cert.X509Certificate;
-import java.io.IOException;
+import java.net.HttpURLConnection;
 import java.net.URI;
 import java.security.MessageDigest;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
 
 import static com.microsoftopentechnologies.tooling.msservices.model.vm.VirtualMachine.Status;
 
 public class AzureSDKManagerImpl implements AzureSDKManager {
+    private interface HostedServiceLoader<T> {
+        @NotNull
+        T load(@NotNull HostedService hostedService) throws Exception;
+    }
+
     private static class StatusLiterals {
         private static final String UNKNOWN = "Unknown";
         private static final String READY_ROLE = "ReadyRole";
@@ -108,8 +123,16 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
     @NotNull
     public static AzureSDKManager getManager() {
         if (apiManager == null) {
-            apiManagerADAuth = new AzureSDKManagerADAuthDecorator(
-                    apiManager = new AzureSDKManagerImpl());
+            AzureSDKManager manager = new AzureSDKManagerImpl();
+            ServiceMetrics metrics = ServiceMetrics.getMetrics();
+            RequestCoalescer coalescer = RequestCoalescer.getCoalescer();
+
+            // calls shared by the coalescer are recorded once by the metrics, as the single
+            // request they really made
+            apiManager = coalescer.decorate(AzureSDKManager.class,
+                    metrics.decorate(AzureSDKManager.class, manager));
+            apiManagerADAuth = coalescer.decorate(AzureSDKManager.class,
+                    metrics.decorate(AzureSDKManager.class, new AzureSDKManagerADAuthDecorator(manager)));
         }
 
         if (AzureRestAPIManagerImpl.getManager().getAuthenticationMode() == AzureAuthenticationMode.ActiveDirectory) {
@@ -121,7 +144,7 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
 
     @NotNull
     @Override
-    public List<CloudService> getCloudServices(@NotNull String subscriptionId) throws AzureCmdException {
+    public List<CloudService> getCloudServices(@NotNull final String subscriptionId) throws AzureCmdException {
         List<CloudService> csList = new ArrayList<CloudService>();
         ComputeManagementClient client = null;
 
@@ -134,56 +157,49 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
                 return csList;
             }
 
-            for (HostedService hostedService : hostedServices) {
-                ListenableFuture<DeploymentGetResponse> productionFuture = getDeploymentAsync(
-                        client,
-                        hostedService.getServiceName(),
-                        DeploymentSlot.Production);
-                ListenableFuture<DeploymentGetResponse> stagingFuture = getDeploymentAsync(
-                        client,
-                        hostedService.getServiceName(),
-                        DeploymentSlot.Staging);
-
-                DeploymentGetResponse prodDGR = productionFuture.get();
-
-                DeploymentGetResponse stagingDGR = stagingFuture.get();
-
-                CloudService cloudService = new CloudService(
-                        hostedService.getServiceName() != null ? hostedService.getServiceName() : "",
-                        hostedService.getProperties() != null && hostedService.getProperties().getLocation() != null ?
-                                hostedService.getProperties().getLocation() :
-                                "",
-                        hostedService.getProperties() != null && hostedService.getProperties().getAffinityGroup() != null ?
-                                hostedService.getProperties().getAffinityGroup() :
-                                "",
-                        subscriptionId);
-
-                loadDeployment(prodDGR, cloudService);
-
-                cloudService = loadDeployment(prodDGR, cloudService);
-                cloudService = loadDeployment(stagingDGR, cloudService);
-
-                csList.add(cloudService);
-            }
+            final ComputeManagementClient sharedClient = client;
+
+            return loadHostedServices(hostedServices, new HostedServiceLoader<CloudService>() {
+                @NotNull
+                @Override
+                public CloudService load(@NotNull HostedService hostedService) throws Exception {
+                    CloudService cloudService = new CloudService(
+                            hostedService.getServiceName() != null ? hostedService.getServiceName() : "",
+                            hostedService.getProperties() != null && hostedService.getProperties().getLocation() != null ?
+                                    hostedService.getProperties().getLocation() :
+                                    "",
+                            hostedService.getProperties() != null && hostedService.getProperties().getAffinityGroup() != null ?
+                                    hostedService.getProperties().getAffinityGroup() :
+                                    "",
+                            subscriptionId);
+
+                    for (DeploymentGetResponse deployment : getDeployments(sharedClient, cloudService.getName())) {
+                        cloudService = loadDeployment(deployment, cloudService);
+                    }
 
-            return csList;
-        } catch (ExecutionException e) {
-            throw new AzureCmdException("Error retrieving the Cloud Service list", e.getCause());
+                    return cloudService;
+                }
+            }, null);
+        } catch (AzurePartialResultException e) {
+            throw e;
         } catch (Throwable t) {
             throw new AzureCmdException("Error retrieving the Cloud Service list", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
     @NotNull
     @Override
     public List<VirtualMachine> getVirtualMachines(@NotNull String subscriptionId) throws AzureCmdException {
+        return getVirtualMachines(subscriptionId, null);
+    }
+
+    @NotNull
+    @Override
+    public List<VirtualMachine> getVirtualMachines(@NotNull final String subscriptionId,
+                                                   @Nullable CallableSingleArg<Void, List<VirtualMachine>> partialResultCallback)
+            throws AzureCmdException {
         List<VirtualMachine> vmList = new ArrayList<VirtualMachine>();
         ComputeManagementClient client = null;
 
@@ -196,21 +212,50 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
                 return vmList;
             }
 
-            for (HostedService hostedService : hostedServices) {
-                String serviceName = hostedService.getServiceName() != null ? hostedService.getServiceName() : "";
-                vmList = loadVirtualMachines(client, subscriptionId, serviceName, vmList);
+            final ComputeManagementClient sharedClient = client;
+
+            List<List<VirtualMachine>> serviceVMLists;
+            AzurePartialResultException partialResult = null;
+
+            try {
+                serviceVMLists = loadHostedServices(hostedServices,
+                        new HostedServiceLoader<List<VirtualMachine>>() {
+                            @NotNull
+                            @Override
+                            public List<VirtualMachine> load(@NotNull HostedService hostedService) throws Exception {
+                                String serviceName = hostedService.getServiceName() != null ? hostedService.getServiceName() : "";
+                                List<VirtualMachine> serviceVMs = new ArrayList<VirtualMachine>();
+
+                                for (DeploymentGetResponse deployment : getDeployments(sharedClient, serviceName)) {
+                                    if (deployment.getDeploymentSlot() == DeploymentSlot.Production) {
+                                        serviceVMs = loadVirtualMachines(deployment, subscriptionId, serviceName, serviceVMs);
+                                    }
+                                }
+
+                                return serviceVMs;
+                            }
+                        }, partialResultCallback);
+            } catch (AzurePartialResultException e) {
+                serviceVMLists = e.getLoadedItems();
+                partialResult = e;
+            }
+
+            for (List<VirtualMachine> serviceVMs : serviceVMLists) {
+                vmList.addAll(serviceVMs);
+            }
+
+            if (partialResult != null) {
+                throw new AzurePartialResultException(partialResult.getMessage(), partialResult.getCause(),
+                        vmList, partialResult.getFailedItems());
             }
 
             return vmList;
+        } catch (AzurePartialResultException e) {
+            throw e;
         } catch (Throwable t) {
             throw new AzureCmdException("Error retrieving the VM list", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -251,12 +296,7 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         } catch (Throwable t) {
             throw new AzureCmdException("Error refreshing the VM information", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -269,18 +309,14 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
 
             VirtualMachineOperations vmo = getVirtualMachineOperations(client);
 
-            OperationStatusResponse osr = vmo.start(vm.getServiceName(), vm.getDeploymentName(), vm.getName());
+            OperationResponse or = vmo.beginStarting(vm.getServiceName(), vm.getDeploymentName(), vm.getName());
+            OperationStatusResponse osr = getOperationStatusResponse(client, or);
 
             validateOperationStatus(osr);
         } catch (Throwable t) {
             throw new AzureCmdException("Error starting the VM", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -296,18 +332,14 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
             VirtualMachineShutdownParameters parameters = new VirtualMachineShutdownParameters();
             parameters.setPostShutdownAction(deallocate ? PostShutdownAction.StoppedDeallocated : PostShutdownAction.Stopped);
 
-            OperationStatusResponse osr = vmo.shutdown(vm.getServiceName(), vm.getDeploymentName(), vm.getName(), parameters);
+            OperationResponse or = vmo.beginShutdown(vm.getServiceName(), vm.getDeploymentName(), vm.getName(), parameters);
+            OperationStatusResponse osr = getOperationStatusResponse(client, or);
 
             validateOperationStatus(osr);
         } catch (Throwable t) {
             throw new AzureCmdException("Error shutting down the VM", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -320,18 +352,14 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
 
             VirtualMachineOperations vmo = getVirtualMachineOperations(client);
 
-            OperationStatusResponse osr = vmo.restart(vm.getServiceName(), vm.getDeploymentName(), vm.getName());
+            OperationResponse or = vmo.beginRestarting(vm.getServiceName(), vm.getDeploymentName(), vm.getName());
+            OperationStatusResponse osr = getOperationStatusResponse(client, or);
 
             validateOperationStatus(osr);
         } catch (Throwable t) {
             throw new AzureCmdException("Error restarting the VM", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -362,12 +390,7 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         } catch (Throwable t) {
             throw new AzureCmdException("Error deleting the VM", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -400,12 +423,7 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         } catch (Throwable t) {
             throw new AzureCmdException("Error downloading the RDP file", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -425,27 +443,48 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
                 return saList;
             }
 
-            List<ListenableFuture<StorageAccount>> saFutureList = new ArrayList<ListenableFuture<StorageAccount>>();
-
+            // keys are not part of the listing; they are fetched on demand by loadStorageAccountKeys
             for (com.microsoft.windowsazure.management.storage.models.StorageAccount storageAccount : storageAccounts) {
-                saFutureList.add(getStorageAccountAsync(subscriptionId, client, storageAccount));
+                saList.add(getStorageAccount(subscriptionId, storageAccount));
             }
 
-            saList.addAll(Futures.allAsList(saFutureList).get());
-
             return saList;
-        } catch (ExecutionException e) {
-            throw new AzureCmdException("Error retrieving the Storage Account list", e.getCause());
         } catch (Throwable t) {
             throw new AzureCmdException("Error retrieving the Storage Account list", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
+            AzureManagementClientPool.getPool().release(client);
+        }
+    }
+
+    @NotNull
+    @Override
+    public StorageAccount loadStorageAccountKeys(@NotNull StorageAccount storageAccount) throws AzureCmdException {
+        StorageAccountKeyCache.StorageAccountKeys keys = StorageAccountKeyCache.getCache().get(
+                storageAccount.getSubscriptionId(), storageAccount.getName());
+
+        if (keys == null) {
+            StorageManagementClient client = null;
+
+            try {
+                client = getStorageManagementClient(storageAccount.getSubscriptionId());
+                StorageAccountGetKeysResponse sak = getStorageAccountKeys(client, storageAccount.getName());
+
+                StorageAccountKeyCache.getCache().put(storageAccount.getSubscriptionId(), storageAccount.getName(),
+                        Strings.nullToEmpty(sak.getPrimaryKey()), Strings.nullToEmpty(sak.getSecondaryKey()));
+                keys = StorageAccountKeyCache.getCache().get(storageAccount.getSubscriptionId(), storageAccount.getName());
+            } catch (Throwable t) {
+                throw new AzureCmdException("Error retrieving the Storage Account keys", t);
+            } finally {
+                AzureManagementClientPool.getPool().release(client);
             }
         }
+
+        if (keys != null) {
+            storageAccount.setPrimaryKey(keys.getPrimaryKey());
+            storageAccount.setSecondaryKey(keys.getSecondaryKey());
+        }
+
+        return storageAccount;
     }
 
     @NotNull
@@ -465,18 +504,25 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         } catch (Throwable t) {
             throw new AzureCmdException("Error retrieving the VM Image list", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
     @NotNull
     @Override
-    public List<VirtualMachineSize> getVirtualMachineSizes(@NotNull String subscriptionId) throws AzureCmdException {
+    public List<VirtualMachineSize> getVirtualMachineSizes(@NotNull final String subscriptionId) throws AzureCmdException {
+        return ManagementResponseCache.getCache().get(ManagementResponseCache.Operation.VirtualMachineSizes, subscriptionId,
+                new ManagementResponseCache.Loader<VirtualMachineSize>() {
+                    @NotNull
+                    @Override
+                    public List<VirtualMachineSize> load() throws AzureCmdException {
+                        return fetchVirtualMachineSizes(subscriptionId);
+                    }
+                });
+    }
+
+    @NotNull
+    private List<VirtualMachineSize> fetchVirtualMachineSizes(@NotNull String subscriptionId) throws AzureCmdException {
         List<VirtualMachineSize> vmSizeList = new ArrayList<VirtualMachineSize>();
         ManagementClient client = null;
 
@@ -488,18 +534,25 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         } catch (Throwable t) {
             throw new AzureCmdException("Error retrieving the VM Size list", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
     @NotNull
     @Override
-    public List<Location> getLocations(@NotNull String subscriptionId) throws AzureCmdException {
+    public List<Location> getLocations(@NotNull final String subscriptionId) throws AzureCmdException {
+        return ManagementResponseCache.getCache().get(ManagementResponseCache.Operation.Locations, subscriptionId,
+                new ManagementResponseCache.Loader<Location>() {
+                    @NotNull
+                    @Override
+                    public List<Location> load() throws AzureCmdException {
+                        return fetchLocations(subscriptionId);
+                    }
+                });
+    }
+
+    @NotNull
+    private List<Location> fetchLocations(@NotNull String subscriptionId) throws AzureCmdException {
         List<Location> locationList = new ArrayList<Location>();
         ManagementClient client = null;
 
@@ -511,18 +564,25 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         } catch (Throwable t) {
             throw new AzureCmdException("Error retrieving the Location list", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
     @NotNull
     @Override
-    public List<AffinityGroup> getAffinityGroups(@NotNull String subscriptionId) throws AzureCmdException {
+    public List<AffinityGroup> getAffinityGroups(@NotNull final String subscriptionId) throws AzureCmdException {
+        return ManagementResponseCache.getCache().get(ManagementResponseCache.Operation.AffinityGroups, subscriptionId,
+                new ManagementResponseCache.Loader<AffinityGroup>() {
+                    @NotNull
+                    @Override
+                    public List<AffinityGroup> load() throws AzureCmdException {
+                        return fetchAffinityGroups(subscriptionId);
+                    }
+                });
+    }
+
+    @NotNull
+    private List<AffinityGroup> fetchAffinityGroups(@NotNull String subscriptionId) throws AzureCmdException {
         List<AffinityGroup> affinityGroupList = new ArrayList<AffinityGroup>();
         ManagementClient client = null;
 
@@ -534,18 +594,25 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         } catch (Throwable t) {
             throw new AzureCmdException("Error retrieving the Affinity Group list", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
     @NotNull
     @Override
-    public List<VirtualNetwork> getVirtualNetworks(@NotNull String subscriptionId) throws AzureCmdException {
+    public List<VirtualNetwork> getVirtualNetworks(@NotNull final String subscriptionId) throws AzureCmdException {
+        return ManagementResponseCache.getCache().get(ManagementResponseCache.Operation.VirtualNetworks, subscriptionId,
+                new ManagementResponseCache.Loader<VirtualNetwork>() {
+                    @NotNull
+                    @Override
+                    public List<VirtualNetwork> load() throws AzureCmdException {
+                        return fetchVirtualNetworks(subscriptionId);
+                    }
+                });
+    }
+
+    @NotNull
+    private List<VirtualNetwork> fetchVirtualNetworks(@NotNull String subscriptionId) throws AzureCmdException {
         List<VirtualNetwork> vnList = new ArrayList<VirtualNetwork>();
         NetworkManagementClient client = null;
 
@@ -586,12 +653,7 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         } catch (Throwable t) {
             throw new AzureCmdException("Error retrieving the Virtual Network list", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -611,17 +673,13 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
                 sacp.setLocation(storageAccount.getLocation());
             }
 
-            OperationStatusResponse osr = sao.create(sacp);
+            OperationResponse or = sao.beginCreating(sacp);
+            OperationStatusResponse osr = getOperationStatusResponse(client, or);
             validateOperationStatus(osr);
         } catch (Throwable t) {
             throw new AzureCmdException("Error creating the Storage Account", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -652,12 +710,7 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         } catch (Throwable t) {
             throw new AzureCmdException("Error creating the Cloud Service", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -689,19 +742,14 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
             VirtualMachineOperations vmo = getVirtualMachineOperations(client);
 
             if (virtualMachine.getDeploymentName().isEmpty()) {
-                createVMDeployment(vmo, virtualMachine, vmImage, mediaLocation, virtualNetwork, username, password, certificate);
+                createVMDeployment(client, vmo, virtualMachine, vmImage, mediaLocation, virtualNetwork, username, password, certificate);
             } else {
-                createVM(vmo, virtualMachine, vmImage, mediaLocation, username, password, certificate);
+                createVM(client, vmo, virtualMachine, vmImage, mediaLocation, username, password, certificate);
             }
         } catch (Throwable t) {
             throw new AzureCmdException("Error creating the VM", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -727,7 +775,11 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
                 throw new Exception("Invalid Storage Account information. No Storage Account matches the specified data.");
             }
 
-            StorageAccount sa = getStorageAccount(storageAccount.getSubscriptionId(), client, sagr.getStorageAccount());
+            // an explicit refresh also picks up regenerated keys
+            StorageAccountKeyCache.getCache().invalidate(storageAccount.getSubscriptionId(), storageAccount.getName());
+
+            StorageAccount sa = loadStorageAccountKeys(getStorageAccount(storageAccount.getSubscriptionId(),
+                    sagr.getStorageAccount()));
             storageAccount.setType(sa.getType());
             storageAccount.setDescription(sa.getDescription());
             storageAccount.setLabel(sa.getLabel());
@@ -750,12 +802,7 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         } catch (Throwable t) {
             throw new AzureCmdException("Error refreshing the Storage Account information", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -777,19 +824,15 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
             ServiceCertificateCreateParameters sccp = new ServiceCertificateCreateParameters(data, CertificateFormat.Pfx);
             sccp.setPassword(password);
 
-            OperationStatusResponse osr = sco.create(serviceName, sccp);
+            OperationResponse or = sco.beginCreating(serviceName, sccp);
+            OperationStatusResponse osr = getOperationStatusResponse(client, or);
             validateOperationStatus(osr);
 
             return thumbprint;
         } catch (Throwable t) {
             throw new AzureCmdException("Error creating the Service Certificate", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
@@ -804,60 +847,85 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
             OperationResponse or = sao.delete(storageAccount.getName());
             OperationStatusResponse osr = getOperationStatusResponse(client, or);
             validateOperationStatus(osr);
+
+            StorageAccountKeyCache.getCache().invalidate(storageAccount.getSubscriptionId(), storageAccount.getName());
         } catch (Throwable t) {
             throw new AzureCmdException("Error deleting the Storage Account", t);
         } finally {
-            if (client != null) {
-                try {
-                    client.close();
-                } catch (IOException ignored) {
-                }
-            }
+            AzureManagementClientPool.getPool().release(client);
         }
     }
 
     @NotNull
     private static ComputeManagementClient getComputeManagementClient(@NotNull String subscriptionId) throws Exception {
-        ComputeManagementClient client = AzureSDKHelper.getComputeManagementClient(subscriptionId);
-
-        if (client == null) {
-            throw new Exception("Unable to instantiate Compute Management client");
-        }
+        return AzureManagementClientPool.getPool().acquire(subscriptionId, ComputeManagementClient.class,
+                new AzureManagementClientPool.ClientFactory<ComputeManagementClient>() {
+                    @NotNull
+                    @Override
+                    public ComputeManagementClient create(@NotNull String subscriptionId) throws Exception {
+                        ComputeManagementClient client = AzureSDKHelper.getComputeManagementClient(subscriptionId);
+
+                        if (client == null) {
+                            throw new Exception("Unable to instantiate Compute Management client");
+                        }
 
-        return client;
+                        return client;
+                    }
+                });
     }
 
     @NotNull
     private static StorageManagementClient getStorageManagementClient(@NotNull String subscriptionId) throws Exception {
-        StorageManagementClient client = AzureSDKHelper.getStorageManagementClient(subscriptionId);
-
-        if (client == null) {
-            throw new Exception("Unable to instantiate Storage Management client");
-        }
+        return AzureManagementClientPool.getPool().acquire(subscriptionId, StorageManagementClient.class,
+                new AzureManagementClientPool.ClientFactory<StorageManagementClient>() {
+                    @NotNull
+                    @Override
+                    public StorageManagementClient create(@NotNull String subscriptionId) throws Exception {
+                        StorageManagementClient client = AzureSDKHelper.getStorageManagementClient(subscriptionId);
+
+                        if (client == null) {
+                            throw new Exception("Unable to instantiate Storage Management client");
+                        }
 
-        return client;
+                        return client;
+                    }
+                });
     }
 
     @NotNull
     private static NetworkManagementClient getNetworkManagementClient(@NotNull String subscriptionId) throws Exception {
-        NetworkManagementClient client = AzureSDKHelper.getNetworkManagementClient(subscriptionId);
-
-        if (client == null) {
-            throw new Exception("Unable to instantiate Network Management client");
-        }
+        return AzureManagementClientPool.getPool().acquire(subscriptionId, NetworkManagementClient.class,
+                new AzureManagementClientPool.ClientFactory<NetworkManagementClient>() {
+                    @NotNull
+                    @Override
+                    public NetworkManagementClient create(@NotNull String subscriptionId) throws Exception {
+                        NetworkManagementClient client = AzureSDKHelper.getNetworkManagementClient(subscriptionId);
+
+                        if (client == null) {
+                            throw new Exception("Unable to instantiate Network Management client");
+                        }
 
-        return client;
+                        return client;
+                    }
+                });
     }
 
     @NotNull
     private static ManagementClient getManagementClient(@NotNull String subscriptionId) throws Exception {
-        ManagementClient client = AzureSDKHelper.getManagementClient(subscriptionId);
-
-        if (client == null) {
-            throw new Exception("Unable to instantiate Management client");
-        }
+        return AzureManagementClientPool.getPool().acquire(subscriptionId, ManagementClient.class,
+                new AzureManagementClientPool.ClientFactory<ManagementClient>() {
+                    @NotNull
+                    @Override
+                    public ManagementClient create(@NotNull String subscriptionId) throws Exception {
+                        ManagementClient client = AzureSDKHelper.getManagementClient(subscriptionId);
+
+                        if (client == null) {
+                            throw new Exception("Unable to instantiate Management client");
+                        }
 
-        return client;
+                        return client;
+                    }
+                });
     }
 
     @NotNull
@@ -1013,26 +1081,6 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         return hslr;
     }
 
-    @NotNull
-    private static ListenableFuture<DeploymentGetResponse> getDeploymentAsync(@NotNull final ComputeManagementClient client,
-                                                                              @NotNull final String serviceName,
-                                                                              @NotNull final DeploymentSlot slot) {
-        final SettableFuture<DeploymentGetResponse> future = SettableFuture.create();
-
-        DefaultLoader.getIdeHelper().executeOnPooledThread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    future.set(getDeployment(client, serviceName, slot));
-                } catch (Exception e) {
-                    future.setException(e);
-                }
-            }
-        });
-
-        return future;
-    }
-
     @NotNull
     private static DeploymentGetResponse getDeployment(@NotNull ComputeManagementClient client,
                                                        @NotNull String serviceName,
@@ -1073,39 +1121,21 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         return salr;
     }
 
-    @NotNull
-    private static ListenableFuture<StorageAccount> getStorageAccountAsync(@NotNull final String subscriptionId,
-                                                                           @NotNull final StorageManagementClient client,
-                                                                           @NotNull final com.microsoft.windowsazure.management.storage.models.StorageAccount storageAccount)
-            throws Exception {
-        final SettableFuture<StorageAccount> future = SettableFuture.create();
-
-        DefaultLoader.getIdeHelper().executeOnPooledThread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    future.set(getStorageAccount(subscriptionId, client, storageAccount));
-                } catch (Exception e) {
-                    future.setException(e);
-                }
-            }
-        });
-
-        return future;
-    }
-
     @NotNull
     private static StorageAccount getStorageAccount(@NotNull String subscriptionId,
-                                                    @NotNull StorageManagementClient client,
-                                                    @NotNull com.microsoft.windowsazure.management.storage.models.StorageAccount storageAccount) throws Exception {
+                                                    @NotNull com.microsoft.windowsazure.management.storage.models.StorageAccount storageAccount) {
         String primaryKey = "";
         String secondaryKey = "";
 
         if (storageAccount.getName() != null) {
-            StorageAccountGetKeysResponse sak = getStorageAccountKeys(client, storageAccount.getName());
+            // reuse keys that were fetched recently; the others are left empty until needed
+            StorageAccountKeyCache.StorageAccountKeys keys = StorageAccountKeyCache.getCache().get(subscriptionId,
+                    storageAccount.getName());
 
-            primaryKey = sak.getPrimaryKey();
-            secondaryKey = sak.getSecondaryKey();
+            if (keys != null) {
+                primaryKey = keys.getPrimaryKey();
+                secondaryKey = keys.getSecondaryKey();
+            }
         }
 
         StorageAccountProperties sap = storageAccount.getProperties() != null ?
@@ -1201,59 +1231,54 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
     }
 
     @Nullable
-    private static OperationStatusResponse getOperationStatusResponse(@NotNull ComputeManagementClient client,
+    private static OperationStatusResponse getOperationStatusResponse(@NotNull final ComputeManagementClient client,
                                                                       @NotNull OperationResponse or)
-            throws InterruptedException, java.util.concurrent.ExecutionException, ServiceException {
-        OperationStatusResponse osr = client.getOperationStatusAsync(or.getRequestId()).get();
-        int delayInSeconds = 30;
+            throws InterruptedException, ExecutionException, ServiceException {
+        final String requestId = or.getRequestId();
 
-        if (client.getLongRunningOperationInitialTimeout() >= 0) {
-            delayInSeconds = client.getLongRunningOperationInitialTimeout();
-        }
-
-        while (osr.getStatus() == OperationStatus.InProgress) {
-            Thread.sleep(delayInSeconds * 1000);
-            osr = client.getOperationStatusAsync(or.getRequestId()).get();
-            delayInSeconds = 30;
-
-            if (client.getLongRunningOperationRetryTimeout() >= 0) {
-                delayInSeconds = client.getLongRunningOperationRetryTimeout();
-            }
-        }
+        return getOperationStatusResponse(AzureOperationTracker.getTracker().track(
+                new AzureOperationTracker.OperationPoll<OperationStatusResponse>() {
+                    @Nullable
+                    @Override
+                    public OperationStatusResponse poll() throws Exception {
+                        OperationStatusResponse osr = client.getOperationStatus(requestId);
 
-        if (osr.getStatus() != OperationStatus.Succeeded) {
-            if (osr.getError() != null) {
-                ServiceException ex = new ServiceException(osr.getError().getCode() + " : " + osr.getError().getMessage());
-                ex.setErrorCode(osr.getError().getCode());
-                ex.setErrorMessage(osr.getError().getMessage());
-                throw ex;
-            } else {
-                throw new ServiceException("");
-            }
-        }
-
-        return osr;
+                        return osr.getStatus() == OperationStatus.InProgress ? null : osr;
+                    }
+                }));
     }
 
     @Nullable
-    private static OperationStatusResponse getOperationStatusResponse(@NotNull StorageManagementClient client,
+    private static OperationStatusResponse getOperationStatusResponse(@NotNull final StorageManagementClient client,
                                                                       @NotNull OperationResponse or)
-            throws InterruptedException, java.util.concurrent.ExecutionException, ServiceException {
-        OperationStatusResponse osr = client.getOperationStatusAsync(or.getRequestId()).get();
-        int delayInSeconds = 30;
+            throws InterruptedException, ExecutionException, ServiceException {
+        final String requestId = or.getRequestId();
 
-        if (client.getLongRunningOperationInitialTimeout() >= 0) {
-            delayInSeconds = client.getLongRunningOperationInitialTimeout();
-        }
+        return getOperationStatusResponse(AzureOperationTracker.getTracker().track(
+                new AzureOperationTracker.OperationPoll<OperationStatusResponse>() {
+                    @Nullable
+                    @Override
+                    public OperationStatusResponse poll() throws Exception {
+                        OperationStatusResponse osr = client.getOperationStatus(requestId);
 
-        while (osr.getStatus() == OperationStatus.InProgress) {
-            Thread.sleep(delayInSeconds * 1000);
-            osr = client.getOperationStatusAsync(or.getRequestId()).get();
-            delayInSeconds = 30;
+                        return osr.getStatus() == OperationStatus.InProgress ? null : osr;
+                    }
+                }));
+    }
+
+    @Nullable
+    private static OperationStatusResponse getOperationStatusResponse(@NotNull ListenableFuture<OperationStatusResponse> future)
+            throws InterruptedException, ExecutionException, ServiceException {
+        OperationStatusResponse osr;
 
-            if (client.getLongRunningOperationRetryTimeout() >= 0) {
-                delayInSeconds = client.getLongRunningOperationRetryTimeout();
+        try {
+            osr = future.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof ServiceException) {
+                throw (ServiceException) e.getCause();
             }
+
+            throw e;
         }
 
         if (osr.getStatus() != OperationStatus.Succeeded) {
@@ -1318,14 +1343,178 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
     }
 
 
+    /**
+     * Runs the loader for every hosted service on a bounded number of pooled threads. Results are
+     * returned in hosted service order. If only some of the hosted services could be loaded, an
+     * {@link AzurePartialResultException} carries the others and the names of the failed ones; if
+     * none could be loaded or the failure is an authorization error, that error is thrown.
+     */
     @NotNull
-    private static List<VirtualMachine> loadVirtualMachines(@NotNull ComputeManagementClient client,
+    private static <T> List<T> loadHostedServices(@NotNull final List<HostedService> hostedServices,
+                                                  @NotNull final HostedServiceLoader<T> loader,
+                                                  @Nullable final CallableSingleArg<Void, T> partialResultCallback)
+            throws Exception {
+        List<T> resultList = new ArrayList<T>();
+
+        if (hostedServices.isEmpty()) {
+            return resultList;
+        }
+
+        // results and errors are kept per hosted service so that the aggregated list comes
+        // out in the same order as the hosted service list regardless of completion order
+        final AtomicReferenceArray<T> results = new AtomicReferenceArray<T>(hostedServices.size());
+        final AtomicReferenceArray<Throwable> errors = new AtomicReferenceArray<Throwable>(hostedServices.size());
+        final AtomicInteger nextIndex = new AtomicInteger();
+        final ReentrantLock callbackLock = new ReentrantLock();
+
+        int workerCount = Math.min(AzureSDKHelper.getMaxConnectionsPerRoute(), hostedServices.size());
+        final CountDownLatch latch = new CountDownLatch(workerCount);
+
+        for (int i = 0; i < workerCount; i++) {
+            AzureExecutors.getExecutor(AzureExecutors.Family.Compute).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        int index;
+
+                        while ((index = nextIndex.getAndIncrement()) < hostedServices.size()) {
+                            try {
+                                T result = loader.load(hostedServices.get(index));
+                                results.set(index, result);
+
+                                if (partialResultCallback != null) {
+                                    // the callback usually updates UI state; don't make it thread safe
+                                    callbackLock.lock();
+
+                                    try {
+                                        partialResultCallback.call(result);
+                                    } finally {
+                                        callbackLock.unlock();
+                                    }
+                                }
+                            } catch (Throwable t) {
+                                errors.set(index, t);
+
+                                if (isUnauthorized(t)) {
+                                    // every remaining call would fail the same way; stop here
+                                    // so the caller can refresh the token and retry
+                                    nextIndex.set(hostedServices.size());
+                                }
+                            }
+                        }
+                    } finally {
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        latch.await();
+
+        Throwable firstError = null;
+        List<String> failedServices = new ArrayList<String>();
+        boolean anyLoaded = false;
+
+        for (int i = 0; i < hostedServices.size(); i++) {
+            Throwable error = errors.get(i);
+
+            if (error != null) {
+                if (isUnauthorized(error)) {
+                    throw (ServiceException) error;
+                }
+
+                if (firstError == null) {
+                    firstError = error;
+                }
+
+                failedServices.add(hostedServices.get(i).getServiceName());
+            }
+
+            T result = results.get(i);
+
+            if (result != null) {
+                anyLoaded = true;
+                resultList.add(result);
+            }
+        }
+
+        // a failing hosted service only drops its own entry from the list; fail the whole call
+        // only if none of the hosted services could be loaded, and report the others by name
+        if (firstError != null) {
+            if (!anyLoaded) {
+                if (firstError instanceof Exception) {
+                    throw (Exception) firstError;
+                }
+
+                throw new Exception(firstError);
+            }
+
+            throw new AzurePartialResultException(
+                    "The following hosted services could not be loaded: " +
+                            Joiner.on(", ").useForNull("").join(failedServices),
+                    firstError, resultList, failedServices);
+        }
+
+        return resultList;
+    }
+
+    /**
+     * Retrieves all deployments of a hosted service with a single detailed hosted service call,
+     * falling back to one call per deployment slot if the detailed call cannot be used.
+     */
+    @NotNull
+    private static List<DeploymentGetResponse> getDeployments(@NotNull ComputeManagementClient client,
+                                                              @NotNull String serviceName)
+            throws Exception {
+        List<DeploymentGetResponse> deployments = new ArrayList<DeploymentGetResponse>();
+        HostedServiceGetDetailedResponse hsgdr = null;
+
+        try {
+            hsgdr = getHostedServiceOperations(client).getDetailed(serviceName);
+        } catch (ServiceException se) {
+            if (se.getHttpStatusCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                return deployments;
+            } else if (se.getHttpStatusCode() == HttpURLConnection.HTTP_UNAUTHORIZED) {
+                throw se;
+            }
+        }
+
+        if (hsgdr == null) {
+            deployments.add(getDeployment(client, serviceName, DeploymentSlot.Production));
+            deployments.add(getDeployment(client, serviceName, DeploymentSlot.Staging));
+
+            return deployments;
+        }
+
+        if (hsgdr.getDeployments() != null) {
+            for (HostedServiceGetDetailedResponse.Deployment deployment : hsgdr.getDeployments()) {
+                // copy over what the CloudService and VirtualMachine models are built from, so the
+                // same code handles both the detailed and the per slot responses
+                DeploymentGetResponse dgr = new DeploymentGetResponse();
+                dgr.setDeploymentSlot(deployment.getDeploymentSlot());
+                dgr.setName(deployment.getName());
+                dgr.setVirtualNetworkName(deployment.getVirtualNetworkName());
+                dgr.setRoles(deployment.getRoles());
+                dgr.setRoleInstances(deployment.getRoleInstances());
+
+                deployments.add(dgr);
+            }
+        }
+
+        return deployments;
+    }
+
+    private static boolean isUnauthorized(@NotNull Throwable t) {
+        return t instanceof ServiceException
+                && ((ServiceException) t).getHttpStatusCode() == HttpURLConnection.HTTP_UNAUTHORIZED;
+    }
+
+    @NotNull
+    private static List<VirtualMachine> loadVirtualMachines(@NotNull DeploymentGetResponse deployment,
                                                             @NotNull String subscriptionId,
                                                             @NotNull String serviceName,
                                                             @NotNull List<VirtualMachine> vmList)
             throws Exception {
-        DeploymentGetResponse deployment = getDeployment(client, serviceName, DeploymentSlot.Production);
-
         if (deployment.getRoles() == null) {
             return vmList;
         }
@@ -1390,7 +1579,8 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
             throws Exception {
         VirtualMachineOperations vmo = getVirtualMachineOperations(client);
 
-        OperationStatusResponse osr = vmo.delete(serviceName, deploymentName, virtualMachineName, deleteFromStorage);
+        OperationResponse or = vmo.beginDeleting(serviceName, deploymentName, virtualMachineName, deleteFromStorage);
+        OperationStatusResponse osr = getOperationStatusResponse(client, or);
 
         validateOperationStatus(osr);
     }
@@ -1400,7 +1590,8 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
             throws Exception {
         DeploymentOperations dop = getDeploymentOperations(client);
 
-        OperationStatusResponse osr = dop.deleteByName(serviceName, deploymentName, deleteFromStorage);
+        OperationResponse or = dop.beginDeletingByName(serviceName, deploymentName, deleteFromStorage);
+        OperationStatusResponse osr = getOperationStatusResponse(client, or);
 
         validateOperationStatus(osr);
     }
@@ -1433,20 +1624,13 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
     @NotNull
     private static ListenableFuture<List<VirtualMachineImage>> getOSImagesAsync(
             @NotNull final ComputeManagementClient client) {
-        final SettableFuture<List<VirtualMachineImage>> future = SettableFuture.create();
-
-        DefaultLoader.getIdeHelper().executeOnPooledThread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    future.set(getOSImages(client));
-                } catch (Exception e) {
-                    future.setException(e);
-                }
-            }
-        });
-
-        return future;
+        return AzureExecutors.getExecutor(AzureExecutors.Family.Compute).submit(
+                new Callable<List<VirtualMachineImage>>() {
+                    @Override
+                    public List<VirtualMachineImage> call() throws Exception {
+                        return getOSImages(client);
+                    }
+                });
     }
 
     @NotNull
@@ -1485,20 +1669,13 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
     @NotNull
     private static ListenableFuture<List<VirtualMachineImage>> getVMImagesAsync(
             @NotNull final ComputeManagementClient client) {
-        final SettableFuture<List<VirtualMachineImage>> future = SettableFuture.create();
-
-        DefaultLoader.getIdeHelper().executeOnPooledThread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    future.set(getVMImages(client));
-                } catch (Exception e) {
-                    future.setException(e);
-                }
-            }
-        });
-
-        return future;
+        return AzureExecutors.getExecutor(AzureExecutors.Family.Compute).submit(
+                new Callable<List<VirtualMachineImage>>() {
+                    @Override
+                    public List<VirtualMachineImage> call() throws Exception {
+                        return getVMImages(client);
+                    }
+                });
     }
 
     @NotNull
@@ -1611,7 +1788,8 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
         return affinityGroupList;
     }
 
-    private static void createVM(@NotNull VirtualMachineOperations vmo,
+    private static void createVM(@NotNull ComputeManagementClient client,
+                                 @NotNull VirtualMachineOperations vmo,
                                  @NotNull VirtualMachine virtualMachine,
                                  @NotNull VirtualMachineImage vmImage,
                                  @NotNull String mediaLocation,
@@ -1644,12 +1822,14 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
             vmcp.getConfigurationSets().add(getNetworkConfigurationSet(virtualMachine));
         }
 
-        OperationStatusResponse osr = vmo.create(virtualMachine.getServiceName(), virtualMachine.getDeploymentName(), vmcp);
+        OperationResponse or = vmo.beginCreating(virtualMachine.getServiceName(), virtualMachine.getDeploymentName(), vmcp);
+        OperationStatusResponse osr = getOperationStatusResponse(client, or);
 
         validateOperationStatus(osr);
     }
 
-    private static void createVMDeployment(@NotNull VirtualMachineOperations vmo,
+    private static void createVMDeployment(@NotNull ComputeManagementClient client,
+                                           @NotNull VirtualMachineOperations vmo,
                                            @NotNull VirtualMachine virtualMachine,
                                            @NotNull VirtualMachineImage vmImage,
                                            @NotNull String mediaLocation,
@@ -1696,7 +1876,8 @@ public class AzureSDKManagerImpl implements AzureSDKManager {
 
         vmcdp.getRoles().add(role);
 
-        OperationStatusResponse osr = vmo.createDeployment(virtualMachine.getServiceName(), vmcdp);
+        OperationResponse or = vmo.beginCreatingDeployment(virtualMachine.getServiceName(), vmcdp);
+        OperationStatusResponse osr = getOperationStatusResponse(client, or);
 
         validateOperationStatus(osr);
     }
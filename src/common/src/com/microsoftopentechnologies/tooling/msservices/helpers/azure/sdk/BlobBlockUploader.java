@@ -0,0 +1,274 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
+
+import com.google.common.base.Charsets;
+import com.google.common.io.ByteStreams;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.BlockEntry;
+import com.microsoft.azure.storage.blob.BlockSearchMode;
+import com.microsoft.azure.storage.blob.CloudBlockBlob;
+import com.microsoft.azure.storage.core.Base64;
+import com.microsoftopentechnologies.tooling.msservices.helpers.CallableSingleArg;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureExecutors;
+import com.microsoftopentechnologies.tooling.msservices.helpers.metrics.ServiceMetrics;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.*;
+
+/**
+ * Uploads the content of a block blob as several blocks sent in parallel on the storage executor,
+ * then commits them in their order in the content.
+ * <p/>
+ * Blocks are read from the content stream on the calling thread into buffers taken from the
+ * {@link BlobBufferPool}, while the blocks read before are being sent; at most the configured
+ * number of blocks is held in memory at a time. A block that fails is sent again a few times
+ * before the whole upload fails.
+ */
+public class BlobBlockUploader {
+    private static final int MAX_BLOCK_ATTEMPTS = 3;
+    private static final long BLOCK_RETRY_DELAY_MS = 1000;
+
+    // the length of the upload keys block IDs are made of
+    static final int UPLOAD_KEY_LENGTH = 24;
+
+    public interface BlockIdGenerator {
+        @NotNull
+        String getBlockId(long offset);
+    }
+
+    private static class Block {
+        private final String id;
+        private final byte[] buffer;
+        private final int size;
+
+        private Block(@NotNull String id, @NotNull byte[] buffer, int size) {
+            this.id = id;
+            this.buffer = buffer;
+            this.size = size;
+        }
+    }
+
+    private final CloudBlockBlob blob;
+    private final int blockSize;
+    private final int parallelism;
+    private final BlobRequestOptions requestOptions;
+
+    public BlobBlockUploader(@NotNull CloudBlockBlob blob, int blockSize, int parallelism) {
+        this.blob = blob;
+        this.blockSize = blockSize;
+        this.parallelism = Math.max(parallelism, 1);
+
+        // failed blocks are retried here; letting the client retry them as well would multiply
+        // the attempts
+        this.requestOptions = new BlobRequestOptions();
+        this.requestOptions.setRetryPolicyFactory(new RetryNoRetry());
+    }
+
+    /**
+     * Uploads the given number of bytes from the content stream and commits them as the content
+     * of the blob.
+     *
+     * @param progress called on the calling thread with the number of bytes uploaded so far, as
+     *                 blocks complete
+     */
+    public void upload(@NotNull InputStream content,
+                       long length,
+                       @Nullable CallableSingleArg<Void, Long> progress) throws Exception {
+        final String uploadKey = UUID.randomUUID().toString().replace("-", "").substring(0, UPLOAD_KEY_LENGTH);
+
+        upload(content, length, new BlockIdGenerator() {
+            @NotNull
+            @Override
+            public String getBlockId(long offset) {
+                return BlobBlockUploader.getBlockId(uploadKey, offset);
+            }
+        }, Collections.<String, Long>emptyMap(), progress);
+    }
+
+    /**
+     * Uploads the given number of bytes from the content stream, naming blocks with the given
+     * generator, and commits them as the content of the blob. The blocks found with the same ID
+     * and size among the given ones, already uploaded but not committed, are skipped.
+     */
+    public void upload(@NotNull InputStream content,
+                       long length,
+                       @NotNull BlockIdGenerator blockIds,
+                       @NotNull Map<String, Long> uploadedBlocks,
+                       @Nullable CallableSingleArg<Void, Long> progress) throws Exception {
+        CompletionService<Block> completionService = new ExecutorCompletionService<Block>(
+                AzureExecutors.getExecutor(AzureExecutors.Family.Storage));
+        Map<Future<Block>, Block> pending = new HashMap<Future<Block>, Block>();
+        List<BlockEntry> blockEntries = new ArrayList<BlockEntry>();
+        BlobBufferPool bufferPool = BlobBufferPool.getPool();
+        long readBytes = 0;
+        long uploadedBytes = 0;
+
+        if (progress != null) {
+            progress.call(uploadedBytes);
+        }
+
+        try {
+            while (readBytes < length || !pending.isEmpty()) {
+                while (readBytes < length && pending.size() < parallelism) {
+                    int size = (int) Math.min(blockSize, length - readBytes);
+                    String blockId = blockIds.getBlockId(readBytes);
+
+                    BlockEntry entry = new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED);
+                    entry.setSize(size);
+                    blockEntries.add(entry);
+
+                    Long uploadedSize = uploadedBlocks.get(blockId);
+
+                    if (uploadedSize != null && uploadedSize == size) {
+                        ByteStreams.skipFully(content, size);
+                        readBytes += size;
+                        uploadedBytes += size;
+
+                        if (progress != null) {
+                            progress.call(uploadedBytes);
+                        }
+
+                        continue;
+                    }
+
+                    byte[] buffer = bufferPool.acquire(blockSize);
+
+                    try {
+                        readFully(content, buffer, size);
+                    } catch (IOException e) {
+                        bufferPool.release(buffer);
+                        throw e;
+                    }
+
+                    final Block block = new Block(blockId, buffer, size);
+
+                    pending.put(completionService.submit(new Callable<Block>() {
+                        @Override
+                        public Block call() throws Exception {
+                            uploadBlock(block);
+                            return block;
+                        }
+                    }), block);
+
+                    readBytes += size;
+                }
+
+                if (pending.isEmpty()) {
+                    // the remaining blocks were all uploaded already
+                    continue;
+                }
+
+                Future<Block> future = completionService.take();
+                pending.remove(future);
+
+                Block block;
+
+                try {
+                    block = future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+
+                bufferPool.release(block.buffer);
+                uploadedBytes += block.size;
+
+                // bytes are only charged to the manager call running on the current thread, so
+                // they are recorded here rather than on the thread that uploaded the block
+                ServiceMetrics.getMetrics().recordBytes(block.size);
+
+                if (progress != null) {
+                    progress.call(uploadedBytes);
+                }
+            }
+        } finally {
+            // on failure or cancellation stop the blocks still in flight; their buffers may still be
+            // in use and are left to the garbage collector
+            for (Future<Block> future : pending.keySet()) {
+                future.cancel(true);
+            }
+        }
+
+        // the list is built in content order, whatever the order the blocks completed in
+        blob.commitBlockList(blockEntries);
+    }
+
+    private void uploadBlock(@NotNull Block block) throws Exception {
+        for (int attempt = 1; ; attempt++) {
+            try {
+                blob.uploadBlock(block.id, new ByteArrayInputStream(block.buffer, 0, block.size), block.size,
+                        null, requestOptions, null);
+
+                return;
+            } catch (Exception e) {
+                if (attempt >= MAX_BLOCK_ATTEMPTS || !isTransient(e)) {
+                    throw e;
+                }
+
+                Thread.sleep(BLOCK_RETRY_DELAY_MS * attempt);
+            }
+        }
+    }
+
+    /**
+     * Returns the ID of the block at the given offset of an upload. All the uncommitted blocks of
+     * a blob must have IDs of the same length, so every upload uses IDs of this form, with a key
+     * of {@link #UPLOAD_KEY_LENGTH} characters.
+     */
+    @NotNull
+    static String getBlockId(@NotNull String uploadKey, long offset) {
+        return Base64.encode(String.format("%s-%015d", uploadKey, offset).getBytes(Charsets.UTF_8));
+    }
+
+    static boolean isTransient(@NotNull Exception e) {
+        if (e instanceof StorageException) {
+            int statusCode = ((StorageException) e).getHttpStatusCode();
+
+            // no status code means that no response was received at all
+            return statusCode <= 0 || statusCode == 408 || statusCode >= 500;
+        }
+
+        return e instanceof IOException;
+    }
+
+    private static void readFully(@NotNull InputStream content, @NotNull byte[] buffer, int size)
+            throws IOException {
+        int offset = 0;
+
+        while (offset < size) {
+            int read = content.read(buffer, offset, size - offset);
+
+            if (read < 0) {
+                throw new EOFException("The content ended before the expected length was read");
+            }
+
+            offset += read;
+        }
+    }
+}
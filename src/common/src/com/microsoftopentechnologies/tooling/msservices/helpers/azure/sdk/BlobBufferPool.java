@@ -0,0 +1,94 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
+
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Pool of the buffers blob transfers read blocks into, so that successive transfers reuse the same
+ * few megabyte sized arrays instead of allocating new ones for every block. Buffers are pooled by
+ * size, and only up to {@link #MAX_RETAINED_BYTES} are kept once released.
+ */
+public class BlobBufferPool {
+    private static final long MAX_RETAINED_BYTES = 64 * 1024 * 1024;
+
+    private static BlobBufferPool pool;
+
+    private final Map<Integer, ArrayDeque<byte[]>> buffers = new HashMap<Integer, ArrayDeque<byte[]>>();
+    private final ReentrantLock lock = new ReentrantLock();
+    private long retainedBytes;
+
+    private BlobBufferPool() {
+    }
+
+    @NotNull
+    public static synchronized BlobBufferPool getPool() {
+        if (pool == null) {
+            pool = new BlobBufferPool();
+        }
+
+        return pool;
+    }
+
+    @NotNull
+    public byte[] acquire(int size) {
+        lock.lock();
+
+        try {
+            ArrayDeque<byte[]> free = buffers.get(size);
+
+            if (free != null && !free.isEmpty()) {
+                retainedBytes -= size;
+                return free.pop();
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return new byte[size];
+    }
+
+    /**
+     * Hands a buffer back to the pool. The caller must not use it afterwards, so buffers still
+     * referenced by a cancelled request should not be released.
+     */
+    public void release(@NotNull byte[] buffer) {
+        lock.lock();
+
+        try {
+            if (retainedBytes + buffer.length > MAX_RETAINED_BYTES) {
+                return;
+            }
+
+            ArrayDeque<byte[]> free = buffers.get(buffer.length);
+
+            if (free == null) {
+                free = new ArrayDeque<byte[]>();
+                buffers.put(buffer.length, free);
+            }
+
+            free.push(buffer);
+            retainedBytes += buffer.length;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
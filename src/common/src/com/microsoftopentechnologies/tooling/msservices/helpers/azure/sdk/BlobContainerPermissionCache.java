@@ -0,0 +1,111 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
+
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the public access level of blob containers whose permissions have been fetched. Listing
+ * containers doesn't return their permissions, which take a request per container, so they are
+ * only fetched when needed and then kept along with the ETag the container had at the time;
+ * changing the permissions of a container changes its ETag, which makes the cached value stale.
+ */
+class BlobContainerPermissionCache {
+    private static class Permissions {
+        private final String eTag;
+        private final String publicReadAccessType;
+        private final long expiration;
+
+        private Permissions(@NotNull String eTag, @NotNull String publicReadAccessType, long expiration) {
+            this.eTag = eTag;
+            this.publicReadAccessType = publicReadAccessType;
+            this.expiration = expiration;
+        }
+    }
+
+    private static final long PERMISSIONS_EXPIRATION_MS = TimeUnit.MINUTES.toMillis(10);
+
+    private static BlobContainerPermissionCache cache;
+
+    private final Map<String, Permissions> permissionsMap = new HashMap<String, Permissions>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private BlobContainerPermissionCache() {
+    }
+
+    @NotNull
+    static synchronized BlobContainerPermissionCache getCache() {
+        if (cache == null) {
+            cache = new BlobContainerPermissionCache();
+        }
+
+        return cache;
+    }
+
+    /**
+     * Returns the cached public access level of the container, or null if it was never fetched,
+     * has expired or was fetched when the container had another ETag.
+     */
+    @Nullable
+    String get(@NotNull String containerUri, @NotNull String eTag) {
+        lock.lock();
+
+        try {
+            Permissions permissions = permissionsMap.get(containerUri);
+
+            if (permissions != null && (permissions.expiration <= System.currentTimeMillis() ||
+                    !permissions.eTag.equals(eTag))) {
+                permissionsMap.remove(containerUri);
+                permissions = null;
+            }
+
+            return permissions != null ? permissions.publicReadAccessType : null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void put(@NotNull String containerUri, @NotNull String eTag, @NotNull String publicReadAccessType) {
+        Permissions permissions = new Permissions(eTag, publicReadAccessType,
+                System.currentTimeMillis() + PERMISSIONS_EXPIRATION_MS);
+        lock.lock();
+
+        try {
+            permissionsMap.put(containerUri, permissions);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the cached permissions of the container; used when the container is gone.
+     */
+    void invalidate(@NotNull String containerUri) {
+        lock.lock();
+
+        try {
+            permissionsMap.remove(containerUri);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
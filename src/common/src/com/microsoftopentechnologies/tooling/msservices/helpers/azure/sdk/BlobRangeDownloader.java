@@ -0,0 +1,213 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
+
+import com.microsoft.azure.storage.AccessCondition;
+import com.microsoft.azure.storage.RetryNoRetry;
+import com.microsoft.azure.storage.StorageException;
+import com.microsoft.azure.storage.blob.BlobRequestOptions;
+import com.microsoft.azure.storage.blob.CloudBlob;
+import com.microsoftopentechnologies.tooling.msservices.helpers.CallableSingleArg;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureExecutors;
+import com.microsoftopentechnologies.tooling.msservices.helpers.metrics.ServiceMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.*;
+
+/**
+ * Downloads a blob to a local file as several byte ranges fetched in parallel on the storage
+ * executor, each written at its own offset in the file, which is sized to the length of the blob
+ * up front.
+ * <p/>
+ * Every range is requested on the condition that the blob still has the ETag it had when the
+ * download started, so that a blob modified in the meantime fails the download instead of
+ * producing a file mixing its old and new content. A range that fails otherwise is requested
+ * again a few times before the whole download fails.
+ */
+public class BlobRangeDownloader {
+    private static final int MAX_RANGE_ATTEMPTS = 3;
+    private static final long RANGE_RETRY_DELAY_MS = 1000;
+
+    private static class Range {
+        private final long offset;
+        private final int size;
+
+        private Range(long offset, int size) {
+            this.offset = offset;
+            this.size = size;
+        }
+    }
+
+    private final CloudBlob blob;
+    private final int rangeSize;
+    private final int parallelism;
+    private final BlobRequestOptions requestOptions;
+
+    public BlobRangeDownloader(@NotNull CloudBlob blob, int rangeSize, int parallelism) {
+        this.blob = blob;
+        this.rangeSize = rangeSize;
+        this.parallelism = Math.max(parallelism, 1);
+
+        // failed ranges are retried here; letting the client retry them as well would multiply
+        // the attempts
+        this.requestOptions = new BlobRequestOptions();
+        this.requestOptions.setRetryPolicyFactory(new RetryNoRetry());
+    }
+
+    /**
+     * Downloads the blob to the given file, replacing its content. The file is deleted if the
+     * download fails.
+     *
+     * @param progress called on the calling thread with the number of bytes downloaded so far, as
+     *                 ranges complete
+     */
+    public void download(@NotNull File targetFile, @Nullable CallableSingleArg<Void, Long> progress)
+            throws Exception {
+        blob.downloadAttributes();
+
+        long length = blob.getProperties().getLength();
+        AccessCondition accessCondition = AccessCondition.generateIfMatchCondition(blob.getProperties().getEtag());
+        boolean completed = false;
+        RandomAccessFile file = new RandomAccessFile(targetFile, "rw");
+
+        try {
+            file.setLength(length);
+            download(file.getChannel(), length, accessCondition, progress);
+            completed = true;
+        } finally {
+            file.close();
+
+            if (!completed) {
+                targetFile.delete();
+            }
+        }
+    }
+
+    private void download(@NotNull final FileChannel channel,
+                          long length,
+                          @NotNull final AccessCondition accessCondition,
+                          @Nullable CallableSingleArg<Void, Long> progress) throws Exception {
+        CompletionService<Range> completionService = new ExecutorCompletionService<Range>(
+                AzureExecutors.getExecutor(AzureExecutors.Family.Storage));
+        Set<Future<Range>> pending = new HashSet<Future<Range>>();
+        long requestedBytes = 0;
+        long downloadedBytes = 0;
+
+        if (progress != null) {
+            progress.call(downloadedBytes);
+        }
+
+        try {
+            while (requestedBytes < length || !pending.isEmpty()) {
+                while (requestedBytes < length && pending.size() < parallelism) {
+                    final Range range = new Range(requestedBytes, (int) Math.min(rangeSize, length - requestedBytes));
+
+                    pending.add(completionService.submit(new Callable<Range>() {
+                        @Override
+                        public Range call() throws Exception {
+                            downloadRange(channel, range, accessCondition);
+                            return range;
+                        }
+                    }));
+
+                    requestedBytes += range.size;
+                }
+
+                Future<Range> future = completionService.take();
+                pending.remove(future);
+
+                Range range;
+
+                try {
+                    range = future.get();
+                } catch (ExecutionException e) {
+                    throw e.getCause() instanceof Exception ? (Exception) e.getCause() : e;
+                }
+
+                downloadedBytes += range.size;
+                // recorded here, where the manager call being measured runs
+                ServiceMetrics.getMetrics().recordBytes(range.size);
+
+                if (progress != null) {
+                    progress.call(downloadedBytes);
+                }
+            }
+        } finally {
+            // on failure or cancellation stop the ranges still in flight
+            for (Future<Range> future : pending) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private void downloadRange(@NotNull FileChannel channel,
+                               @NotNull Range range,
+                               @NotNull AccessCondition accessCondition) throws Exception {
+        BlobBufferPool bufferPool = BlobBufferPool.getPool();
+        byte[] buffer = bufferPool.acquire(rangeSize);
+
+        try {
+            for (int attempt = 1; ; attempt++) {
+                try {
+                    int read = blob.downloadRangeToByteArray(range.offset, (long) range.size, buffer, 0,
+                            accessCondition, requestOptions, null);
+
+                    if (read != range.size) {
+                        throw new IOException("Expected " + range.size + " bytes at offset " + range.offset +
+                                " but received " + read);
+                    }
+
+                    break;
+                } catch (StorageException e) {
+                    if (e.getHttpStatusCode() == HttpURLConnection.HTTP_PRECON_FAILED) {
+                        throw new IOException("The blob was modified while it was being downloaded", e);
+                    }
+
+                    if (attempt >= MAX_RANGE_ATTEMPTS || !BlobBlockUploader.isTransient(e)) {
+                        throw e;
+                    }
+                } catch (IOException e) {
+                    if (attempt >= MAX_RANGE_ATTEMPTS) {
+                        throw e;
+                    }
+                }
+
+                Thread.sleep(RANGE_RETRY_DELAY_MS * attempt);
+            }
+
+            ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, range.size);
+            long position = range.offset;
+
+            // positional writes don't move the position of the channel, so ranges can be written
+            // concurrently
+            while (byteBuffer.hasRemaining()) {
+                position += channel.write(byteBuffer, position);
+            }
+        } finally {
+            // the buffer is no longer referenced once the request is over, even a cancelled one
+            bufferPool.release(buffer);
+        }
+    }
+}
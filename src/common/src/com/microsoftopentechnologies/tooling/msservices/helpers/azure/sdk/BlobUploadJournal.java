@@ -0,0 +1,215 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Remembers the block uploads of local files that have not been committed yet, so that uploading
+ * the same file to the same blob again, after a cancellation or a network failure, only sends the
+ * blocks the service doesn't already have.
+ * <p/>
+ * Block IDs are derived from the identity of the file (its path, length and modification time), the
+ * block size and the offset of the block, so the blocks of an interrupted upload can be recognized
+ * in the uncommitted block list of the blob. The journal only keeps, for each blob, the identity of
+ * the file and the block size its upload started with; entries are dropped once the upload is
+ * committed, or after the service has discarded the uncommitted blocks anyway. Entries are kept in
+ * the IDE's cache folder, which belongs to the current user.
+ */
+public class BlobUploadJournal {
+    private static final String JOURNAL_FOLDER = "azureBlobUploads";
+    private static final String CHARSET = "UTF-8";
+
+    // the service discards uncommitted blocks after a week
+    private static final long MAX_UPLOAD_AGE_MS = TimeUnit.DAYS.toMillis(7);
+
+    public static class Upload implements BlobBlockUploader.BlockIdGenerator {
+        private String blobUri;
+        private String fileKey;
+        private int blockSize;
+        private long started;
+        private transient boolean resumed;
+
+        @NotNull
+        public String getBlobUri() {
+            return blobUri;
+        }
+
+        public int getBlockSize() {
+            return blockSize;
+        }
+
+        /**
+         * Returns whether an earlier upload of the same file to the blob was interrupted, in which
+         * case some of its blocks may already be uploaded.
+         */
+        public boolean isResumed() {
+            return resumed;
+        }
+
+        @NotNull
+        @Override
+        public String getBlockId(long offset) {
+            return BlobBlockUploader.getBlockId(fileKey, offset);
+        }
+    }
+
+    private static BlobUploadJournal journal;
+
+    private final Gson gson = new Gson();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private BlobUploadJournal() {
+    }
+
+    @NotNull
+    public static synchronized BlobUploadJournal getJournal() {
+        if (journal == null) {
+            journal = new BlobUploadJournal();
+        }
+
+        return journal;
+    }
+
+    /**
+     * Starts the upload of a file to a blob, resuming the interrupted upload of the same file to
+     * the same blob with the same block size if there is one.
+     */
+    @NotNull
+    public Upload begin(@NotNull String blobUri, @NotNull File file, int blockSize) throws IOException {
+        lock.lock();
+
+        try {
+            removeExpiredUploads();
+
+            String fileKey = getFileKey(file, blockSize);
+            Upload upload = read(blobUri);
+
+            if (upload != null && fileKey.equals(upload.fileKey)) {
+                upload.resumed = true;
+                return upload;
+            }
+
+            upload = new Upload();
+            upload.blobUri = blobUri;
+            upload.fileKey = fileKey;
+            upload.blockSize = blockSize;
+            upload.started = System.currentTimeMillis();
+            write(upload);
+
+            return upload;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Forgets an upload once its blocks have been committed.
+     */
+    public void complete(@NotNull Upload upload) {
+        lock.lock();
+
+        try {
+            getJournalFile(upload.blobUri).delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called while holding the lock
+    @Nullable
+    private Upload read(@NotNull String blobUri) {
+        File journalFile = getJournalFile(blobUri);
+
+        if (!journalFile.exists()) {
+            return null;
+        }
+
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(journalFile), CHARSET);
+
+            try {
+                Upload upload = gson.fromJson(reader, Upload.class);
+                return upload != null && blobUri.equals(upload.blobUri) ? upload : null;
+            } finally {
+                reader.close();
+            }
+        } catch (Exception ignored) {
+            // an unreadable entry only means that the file is uploaded again from the start
+            return null;
+        }
+    }
+
+    // must be called while holding the lock
+    private void write(@NotNull Upload upload) throws IOException {
+        File folder = getFolder();
+
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Unable to create " + folder);
+        }
+
+        Writer writer = new OutputStreamWriter(new FileOutputStream(getJournalFile(upload.blobUri)), CHARSET);
+
+        try {
+            gson.toJson(upload, writer);
+        } finally {
+            writer.close();
+        }
+    }
+
+    // must be called while holding the lock
+    private static void removeExpiredUploads() {
+        File[] journalFiles = getFolder().listFiles();
+
+        if (journalFiles == null) {
+            return;
+        }
+
+        long now = System.currentTimeMillis();
+
+        for (File journalFile : journalFiles) {
+            if (now - journalFile.lastModified() > MAX_UPLOAD_AGE_MS) {
+                journalFile.delete();
+            }
+        }
+    }
+
+    @NotNull
+    private static String getFileKey(@NotNull File file, int blockSize) throws IOException {
+        String identity = file.getCanonicalPath() + "|" + file.length() + "|" + file.lastModified() + "|" + blockSize;
+        return Hashing.sha1().hashString(identity, Charsets.UTF_8).toString()
+                .substring(0, BlobBlockUploader.UPLOAD_KEY_LENGTH);
+    }
+
+    @NotNull
+    private static File getFolder() {
+        return new File(DefaultLoader.getIdeHelper().getCacheFolder(), JOURNAL_FOLDER);
+    }
+
+    @NotNull
+    private static File getJournalFile(@NotNull String blobUri) {
+        return new File(getFolder(), Hashing.sha1().hashString(blobUri, Charsets.UTF_8).toString() + ".json");
+    }
+}
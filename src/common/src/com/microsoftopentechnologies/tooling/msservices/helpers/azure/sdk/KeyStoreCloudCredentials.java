@@ -0,0 +1,66 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
+
+import com.microsoft.windowsazure.core.pipeline.apache.ApacheConfigurationProperties;
+import com.microsoft.windowsazure.credentials.SubscriptionCloudCredentials;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import org.apache.http.conn.ssl.SSLConnectionSocketFactory;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.security.*;
+import java.util.Map;
+
+/**
+ * Certificate based credentials backed by an in-memory key store. The SDK's own
+ * CertificateCloudCredentials re-reads the key store from disk every time a client is created;
+ * this implementation builds the SSL socket factory once and hands the same instance to every
+ * client created from the owning configuration.
+ */
+public class KeyStoreCloudCredentials extends SubscriptionCloudCredentials {
+    private final String subscriptionId;
+    private final SSLConnectionSocketFactory sslConnectionSocketFactory;
+
+    public KeyStoreCloudCredentials(@NotNull String subscriptionId, @NotNull KeyStore keyStore, @NotNull String keyStorePwd)
+            throws NoSuchAlgorithmException, UnrecoverableKeyException, KeyStoreException, KeyManagementException {
+        this.subscriptionId = subscriptionId;
+
+        KeyManagerFactory keyManagerFactory = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagerFactory.init(keyStore, keyStorePwd.toCharArray());
+
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(keyManagerFactory.getKeyManagers(), null, new SecureRandom());
+
+        this.sslConnectionSocketFactory = new SSLConnectionSocketFactory(sslContext);
+    }
+
+    @Override
+    public String getSubscriptionId() {
+        return subscriptionId;
+    }
+
+    @NotNull
+    public SSLConnectionSocketFactory getSSLConnectionSocketFactory() {
+        return sslConnectionSocketFactory;
+    }
+
+    @Override
+    public <T> void applyConfig(String profile, Map<String, Object> properties) {
+        properties.put(profile + ApacheConfigurationProperties.PROPERTY_SSL_CONNECTION_SOCKET_FACTORY,
+                sslConnectionSocketFactory);
+    }
+}
@@ -0,0 +1,55 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
+
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceRequestContext;
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceRequestFilter;
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceResponseContext;
+import com.microsoft.windowsazure.core.pipeline.filter.ServiceResponseFilter;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.ManagementRateLimiter;
+
+/**
+ * Takes a token from the {@link ManagementRateLimiter} before each request of a management client
+ * and reports the responses the service throttled, so that SDK calls share the request budget of
+ * the subscription with the REST helper.
+ */
+public class RateLimitFilter implements ServiceRequestFilter, ServiceResponseFilter {
+    private static final String RETRY_AFTER_HEADER = "Retry-After";
+
+    private String subscriptionId;
+
+    public RateLimitFilter(String subscriptionId) {
+        this.subscriptionId = subscriptionId;
+    }
+
+    @Override
+    public void filter(ServiceRequestContext request) {
+        try {
+            ManagementRateLimiter.getLimiter().acquire(subscriptionId, request.getURI());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting to send a management request.", e);
+        }
+    }
+
+    @Override
+    public void filter(ServiceRequestContext request, ServiceResponseContext response) {
+        if (ManagementRateLimiter.isThrottlingStatus(response.getStatus())) {
+            ManagementRateLimiter.getLimiter().onThrottled(subscriptionId, request.getURI(),
+                    response.getHeader(RETRY_AFTER_HEADER));
+        }
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
+
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Holds the access keys of storage accounts that have been used recently. Keys are fetched from the
+ * management API only when a connection string is first needed, and are kept for
+ * {@link #KEY_EXPIRATION_MS} so that opening several blob, queue or table editors for the same account
+ * doesn't fetch them again each time.
+ */
+class StorageAccountKeyCache {
+    static class StorageAccountKeys {
+        private final String primaryKey;
+        private final String secondaryKey;
+        private final long expiration;
+
+        private StorageAccountKeys(@NotNull String primaryKey, @NotNull String secondaryKey, long expiration) {
+            this.primaryKey = primaryKey;
+            this.secondaryKey = secondaryKey;
+            this.expiration = expiration;
+        }
+
+        @NotNull
+        String getPrimaryKey() {
+            return primaryKey;
+        }
+
+        @NotNull
+        String getSecondaryKey() {
+            return secondaryKey;
+        }
+    }
+
+    private static final long KEY_EXPIRATION_MS = TimeUnit.MINUTES.toMillis(30);
+
+    private static StorageAccountKeyCache cache;
+
+    private final Map<String, StorageAccountKeys> keyMap = new HashMap<String, StorageAccountKeys>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private StorageAccountKeyCache() {
+    }
+
+    @NotNull
+    static synchronized StorageAccountKeyCache getCache() {
+        if (cache == null) {
+            cache = new StorageAccountKeyCache();
+        }
+
+        return cache;
+    }
+
+    /**
+     * Returns the cached keys of the storage account, or null if they were never fetched or have
+     * expired.
+     */
+    @Nullable
+    StorageAccountKeys get(@NotNull String subscriptionId, @NotNull String storageAccountName) {
+        String key = getKey(subscriptionId, storageAccountName);
+        lock.lock();
+
+        try {
+            StorageAccountKeys keys = keyMap.get(key);
+
+            if (keys != null && keys.expiration <= System.currentTimeMillis()) {
+                keyMap.remove(key);
+                keys = null;
+            }
+
+            return keys;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    void put(@NotNull String subscriptionId,
+             @NotNull String storageAccountName,
+             @NotNull String primaryKey,
+             @NotNull String secondaryKey) {
+        StorageAccountKeys keys = new StorageAccountKeys(primaryKey, secondaryKey,
+                System.currentTimeMillis() + KEY_EXPIRATION_MS);
+        lock.lock();
+
+        try {
+            keyMap.put(getKey(subscriptionId, storageAccountName), keys);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Drops the cached keys of the storage account; used when the keys are known to have changed
+     * or the account is gone.
+     */
+    void invalidate(@NotNull String subscriptionId, @NotNull String storageAccountName) {
+        lock.lock();
+
+        try {
+            keyMap.remove(getKey(subscriptionId, storageAccountName));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    private static String getKey(@NotNull String subscriptionId, @NotNull String storageAccountName) {
+        return subscriptionId + "|" + storageAccountName;
+    }
+}
@@ -17,9 +17,11 @@ package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
 
 import com.microsoftopentechnologies.tooling.msservices.helpers.CallableSingleArg;
 import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.*;
 
+import java.io.File;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.util.List;
@@ -32,6 +34,16 @@ public interface StorageClientSDKManager {
     @NotNull
     List<BlobContainer> getBlobContainers(@NotNull ClientStorageAccount storageAccount) throws AzureCmdException;
 
+    /**
+     * Fills in the public access level of a blob container returned by {@link #getBlobContainers},
+     * which leaves it empty. The access level is cached as long as the ETag of the container
+     * doesn't change, so repeated calls are cheap.
+     */
+    @NotNull
+    BlobContainer loadBlobContainerPermissions(@NotNull ClientStorageAccount storageAccount,
+                                               @NotNull BlobContainer blobContainer)
+            throws AzureCmdException;
+
     @NotNull
     BlobContainer createBlobContainer(@NotNull ClientStorageAccount storageAccount, @NotNull BlobContainer blobContainer)
             throws AzureCmdException;
@@ -47,6 +59,24 @@ public interface StorageClientSDKManager {
     List<BlobItem> getBlobItems(@NotNull ClientStorageAccount storageAccount, @NotNull BlobDirectory blobDirectory)
             throws AzureCmdException;
 
+    /**
+     * Returns a page of at most the given number of items of a blob directory, starting at the
+     * given continuation token, or at the first item if null.
+     * <p/>
+     * Only the items whose names start with the given prefix, relative to the directory, are
+     * listed; the filtering is done by the service. Blobs are grouped into sub-directories by the
+     * given delimiter, the client's default one if null; an empty delimiter lists all the blobs
+     * under the prefix, sub-directories included, by their full path.
+     */
+    @NotNull
+    BlobItemSegment getBlobItemSegment(@NotNull ClientStorageAccount storageAccount,
+                                       @NotNull BlobDirectory blobDirectory,
+                                       @Nullable String prefix,
+                                       @Nullable String delimiter,
+                                       @Nullable String continuationToken,
+                                       int maxResults)
+            throws AzureCmdException;
+
     @NotNull
     BlobDirectory createBlobDirectory(@NotNull ClientStorageAccount storageAccount,
                                       @NotNull BlobDirectory parentBlobDirectory,
@@ -72,11 +102,31 @@ public interface StorageClientSDKManager {
                                long length)
             throws AzureCmdException;
 
+    /**
+     * Uploads a local file to a block blob. If an earlier upload of the same file to the same blob
+     * was interrupted, only the blocks it didn't get to upload are sent.
+     */
+    void uploadBlobFile(@NotNull ClientStorageAccount storageAccount,
+                        @NotNull BlobContainer blobContainer,
+                        @NotNull String filePath,
+                        @NotNull File file,
+                        CallableSingleArg<Void, Long> processBlockEvent)
+            throws AzureCmdException;
+
     void downloadBlobFileContent(@NotNull ClientStorageAccount storageAccount,
                                  @NotNull BlobFile blobFile,
                                  @NotNull OutputStream content)
             throws AzureCmdException;
 
+    /**
+     * Downloads a blob to a local file, fetching its content as several ranges in parallel.
+     */
+    void downloadBlobFile(@NotNull ClientStorageAccount storageAccount,
+                          @NotNull BlobFile blobFile,
+                          @NotNull File targetFile,
+                          CallableSingleArg<Void, Long> processBlockEvent)
+            throws AzureCmdException;
+
     @NotNull
     List<Queue> getQueues(@NotNull ClientStorageAccount storageAccount)
             throws AzureCmdException;
@@ -17,32 +17,43 @@ package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
 
 import com.google.common.base.Strings;
 import com.microsoft.azure.storage.CloudStorageAccount;
+import com.microsoft.azure.storage.Constants;
+import com.microsoft.azure.storage.ResultContinuation;
+import com.microsoft.azure.storage.ResultContinuationType;
+import com.microsoft.azure.storage.ResultSegment;
 import com.microsoft.azure.storage.StorageException;
 import com.microsoft.azure.storage.blob.*;
-import com.microsoft.azure.storage.core.Base64;
 import com.microsoft.azure.storage.core.Utility;
 import com.microsoft.azure.storage.queue.CloudQueue;
 import com.microsoft.azure.storage.queue.CloudQueueClient;
 import com.microsoft.azure.storage.queue.CloudQueueMessage;
 import com.microsoft.azure.storage.queue.QueueListingDetails;
 import com.microsoft.azure.storage.table.*;
+import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
+import com.microsoftopentechnologies.tooling.msservices.components.PluginSettings;
 import com.microsoftopentechnologies.tooling.msservices.helpers.CallableSingleArg;
 import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
 import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.metrics.ServiceMetrics;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.*;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.Queue;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.TableEntity;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.TableEntity.Property;
 
-import java.io.ByteArrayInputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.*;
+import java.net.HttpURLConnection;
 import java.net.URISyntaxException;
 import java.util.*;
 import java.util.Map.Entry;
+import java.util.regex.Pattern;
 
 public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
+    private static final int DEFAULT_UPLOAD_BLOCK_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_UPLOAD_PARALLELISM = 8;
+    private static final int DEFAULT_DOWNLOAD_RANGE_SIZE = 4 * 1024 * 1024;
+    private static final int DEFAULT_DOWNLOAD_PARALLELISM = 8;
+
     private static StorageClientSDKManager apiManager;
 
     private StorageClientSDKManagerImpl() {
@@ -51,7 +62,8 @@ public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
     @NotNull
     public static StorageClientSDKManager getManager() {
         if (apiManager == null) {
-            apiManager = new StorageClientSDKManagerImpl();
+            apiManager = ServiceMetrics.getMetrics().decorate(StorageClientSDKManager.class,
+                    new StorageClientSDKManagerImpl());
         }
 
         return apiManager;
@@ -116,12 +128,10 @@ public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
                     }
                 }
 
-                String publicReadAccessType = "";
-                BlobContainerPermissions blobContainerPermissions = container.downloadPermissions();
-
-                if (blobContainerPermissions != null && blobContainerPermissions.getPublicAccess() != null) {
-                    publicReadAccessType = blobContainerPermissions.getPublicAccess().toString();
-                }
+                // permissions are not part of the listing and take a request per container; they
+                // are fetched on demand by loadBlobContainerPermissions, or taken from the cache
+                String publicReadAccessType = Strings.nullToEmpty(
+                        BlobContainerPermissionCache.getCache().get(uri, eTag));
 
                 bcList.add(new BlobContainer(Strings.nullToEmpty(container.getName()),
                         uri,
@@ -136,6 +146,33 @@ public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
         }
     }
 
+    @NotNull
+    @Override
+    public BlobContainer loadBlobContainerPermissions(@NotNull ClientStorageAccount storageAccount,
+                                                      @NotNull BlobContainer blobContainer)
+            throws AzureCmdException {
+        String publicReadAccessType = BlobContainerPermissionCache.getCache().get(blobContainer.getUri(),
+                blobContainer.getETag());
+
+        if (publicReadAccessType == null) {
+            try {
+                CloudBlobClient client = getCloudBlobClient(storageAccount);
+
+                CloudBlobContainer container = client.getContainerReference(blobContainer.getName());
+                publicReadAccessType = getPublicReadAccessType(container);
+
+                BlobContainerPermissionCache.getCache().put(blobContainer.getUri(), blobContainer.getETag(),
+                        publicReadAccessType);
+            } catch (Throwable t) {
+                throw new AzureCmdException("Error retrieving the Blob Container permissions", t);
+            }
+        }
+
+        blobContainer.setPublicReadAccessType(publicReadAccessType);
+
+        return blobContainer;
+    }
+
     @NotNull
     @Override
     public BlobContainer createBlobContainer(@NotNull ClientStorageAccount storageAccount,
@@ -161,12 +198,8 @@ public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
                 }
             }
 
-            String publicReadAccessType = "";
-            BlobContainerPermissions blobContainerPermissions = container.downloadPermissions();
-
-            if (blobContainerPermissions != null && blobContainerPermissions.getPublicAccess() != null) {
-                publicReadAccessType = blobContainerPermissions.getPublicAccess().toString();
-            }
+            String publicReadAccessType = getPublicReadAccessType(container);
+            BlobContainerPermissionCache.getCache().put(uri, eTag, publicReadAccessType);
 
             blobContainer.setUri(uri);
             blobContainer.setETag(eTag);
@@ -187,6 +220,10 @@ public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
 
             CloudBlobContainer container = client.getContainerReference(blobContainer.getName());
             container.deleteIfExists();
+
+            if (container.getUri() != null) {
+                BlobContainerPermissionCache.getCache().invalidate(container.getUri().toString());
+            }
         } catch (Throwable t) {
             throw new AzureCmdException("Error deleting the Blob Container", t);
         }
@@ -225,57 +262,69 @@ public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
             CloudBlobDirectory directory = container.getDirectoryReference(blobDirectory.getPath());
 
             for (ListBlobItem item : directory.listBlobs()) {
-                String uri = item.getUri() != null ? item.getUri().toString() : "";
-
-                if (item instanceof CloudBlobDirectory) {
-                    CloudBlobDirectory subDirectory = (CloudBlobDirectory) item;
-
-                    String name = extractBlobItemName(subDirectory.getPrefix(), delimiter);
-                    String path = Strings.nullToEmpty(subDirectory.getPrefix());
-
-                    biList.add(new BlobDirectory(name, uri, containerName, path));
-                } else if (item instanceof CloudBlob) {
-                    CloudBlob blob = (CloudBlob) item;
-
-                    String name = extractBlobItemName(blob.getName(), delimiter);
-                    String path = Strings.nullToEmpty(blob.getName());
-                    String type = "";
-                    String cacheControlHeader = "";
-                    String contentEncoding = "";
-                    String contentLanguage = "";
-                    String contentType = "";
-                    String contentMD5Header = "";
-                    String eTag = "";
-                    Calendar lastModified = new GregorianCalendar();
-                    long size = 0;
-
-                    BlobProperties properties = blob.getProperties();
-
-                    if (properties != null) {
-                        if (properties.getBlobType() != null) {
-                            type = properties.getBlobType().toString();
-                        }
+                BlobItem blobItem = toBlobItem(item, containerName, delimiter);
 
-                        cacheControlHeader = Strings.nullToEmpty(properties.getCacheControl());
-                        contentEncoding = Strings.nullToEmpty(properties.getContentEncoding());
-                        contentLanguage = Strings.nullToEmpty(properties.getContentLanguage());
-                        contentType = Strings.nullToEmpty(properties.getContentType());
-                        contentMD5Header = Strings.nullToEmpty(properties.getContentMD5());
-                        eTag = Strings.nullToEmpty(properties.getEtag());
+                if (blobItem != null) {
+                    biList.add(blobItem);
+                }
+            }
 
-                        if (properties.getLastModified() != null) {
-                            lastModified.setTime(properties.getLastModified());
-                        }
+            return biList;
+        } catch (Throwable t) {
+            throw new AzureCmdException("Error retrieving the Blob Item list", t);
+        }
+    }
 
-                        size = properties.getLength();
-                    }
+    @NotNull
+    @Override
+    public BlobItemSegment getBlobItemSegment(@NotNull ClientStorageAccount storageAccount,
+                                              @NotNull BlobDirectory blobDirectory,
+                                              @Nullable String prefix,
+                                              @Nullable String delimiter,
+                                              @Nullable String continuationToken,
+                                              int maxResults)
+            throws AzureCmdException {
+        List<BlobItem> biList = new ArrayList<BlobItem>();
+
+        try {
+            CloudBlobClient client = getCloudBlobClient(storageAccount);
+            String containerName = blobDirectory.getContainerName();
+            boolean flatListing = delimiter != null && delimiter.isEmpty();
 
-                    biList.add(new BlobFile(name, uri, containerName, path, type, cacheControlHeader, contentEncoding,
-                            contentLanguage, contentType, contentMD5Header, eTag, lastModified, size));
+            if (delimiter != null && !flatListing) {
+                client.setDirectoryDelimiter(delimiter);
+            }
+
+            delimiter = flatListing ? null : client.getDirectoryDelimiter();
+
+            CloudBlobContainer container = client.getContainerReference(containerName);
+            CloudBlobDirectory directory = container.getDirectoryReference(blobDirectory.getPath());
+
+            ResultContinuation continuation = null;
+
+            if (continuationToken != null) {
+                continuation = new ResultContinuation();
+                continuation.setContinuationType(ResultContinuationType.BLOB);
+                continuation.setNextMarker(continuationToken);
+            }
+
+            // the prefix is sent along with the delimiter, so that the service only returns the
+            // matching blobs and sub-directories
+            ResultSegment<ListBlobItem> segment = directory.listBlobsSegmented(prefix, flatListing,
+                    EnumSet.noneOf(BlobListingDetails.class), maxResults, continuation, null, null);
+
+            for (ListBlobItem item : segment.getResults()) {
+                BlobItem blobItem = toBlobItem(item, containerName, delimiter);
+
+                if (blobItem != null) {
+                    biList.add(blobItem);
                 }
             }
 
-            return biList;
+            String nextToken = segment.getHasMoreResults() && segment.getContinuationToken() != null ?
+                    segment.getContinuationToken().getNextMarker() : null;
+
+            return new BlobItemSegment(biList, nextToken);
         } catch (Throwable t) {
             throw new AzureCmdException("Error retrieving the Blob Item list", t);
         }
@@ -362,33 +411,64 @@ public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
             String containerName = blobContainer.getName();
 
             CloudBlobContainer container = client.getContainerReference(containerName);
-            final CloudBlockBlob blob = container.getBlockBlobReference(filePath);
-            long uploadedBytes = 0;
+            CloudBlockBlob blob = container.getBlockBlobReference(filePath);
 
-            ArrayList<BlockEntry> blockEntries = new ArrayList<BlockEntry>();
+            new BlobBlockUploader(blob, getUploadBlockSize(maxBlockSize), getUploadParallelism())
+                    .upload(content, length, processBlock);
+        } catch (Throwable t) {
+            throw new AzureCmdException("Error uploading the Blob File content", t);
+        }
+    }
 
-            while (uploadedBytes < length) {
-                String blockId = Base64.encode(UUID.randomUUID().toString().getBytes());
-                BlockEntry entry = new BlockEntry(blockId, BlockSearchMode.UNCOMMITTED);
+    @Override
+    public void uploadBlobFile(@NotNull ClientStorageAccount storageAccount,
+                               @NotNull BlobContainer blobContainer,
+                               @NotNull String filePath,
+                               @NotNull File file,
+                               CallableSingleArg<Void, Long> processBlock)
+            throws AzureCmdException {
+        try {
+            CloudBlobClient client = getCloudBlobClient(storageAccount);
+            String containerName = blobContainer.getName();
 
-                long blockSize = maxBlockSize;
-                if (length - uploadedBytes <= maxBlockSize) {
-                    blockSize = length - uploadedBytes;
-                }
+            CloudBlobContainer container = client.getContainerReference(containerName);
+            CloudBlockBlob blob = container.getBlockBlobReference(filePath);
 
-                if (processBlock != null) {
-                    processBlock.call(uploadedBytes);
-                }
+            BlobUploadJournal journal = BlobUploadJournal.getJournal();
+            BlobUploadJournal.Upload upload = journal.begin(blob.getUri().toString(), file, getUploadBlockSize(0));
+            Map<String, Long> uploadedBlocks = new HashMap<String, Long>();
+
+            if (upload.isResumed()) {
+                int blockIdLength = upload.getBlockId(0).length();
 
-                entry.setSize(blockSize);
+                try {
+                    for (BlockEntry entry : blob.downloadBlockList(BlockListingFilter.UNCOMMITTED, null, null, null)) {
+                        if (entry.getId().length() != blockIdLength) {
+                            // blocks left by another tool; start over rather than mixing ID lengths
+                            uploadedBlocks.clear();
+                            break;
+                        }
 
-                blockEntries.add(entry);
-                blob.uploadBlock(entry.getId(), content, blockSize);
-                uploadedBytes += blockSize;
+                        uploadedBlocks.put(entry.getId(), entry.getSize());
+                    }
+                } catch (StorageException e) {
+                    // the blob doesn't exist when none of the blocks made it
+                    if (e.getHttpStatusCode() != HttpURLConnection.HTTP_NOT_FOUND) {
+                        throw e;
+                    }
+                }
             }
 
-            blob.commitBlockList(blockEntries);
+            InputStream content = new BufferedInputStream(new FileInputStream(file));
+
+            try {
+                new BlobBlockUploader(blob, upload.getBlockSize(), getUploadParallelism())
+                        .upload(content, file.length(), upload, uploadedBlocks, processBlock);
+            } finally {
+                content.close();
+            }
 
+            journal.complete(upload);
         } catch (Throwable t) {
             throw new AzureCmdException("Error uploading the Blob File content", t);
         }
@@ -408,6 +488,33 @@ public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
             CloudBlob blob = getCloudBlob(container, blobFile);
 
             blob.download(content);
+            ServiceMetrics.getMetrics().recordBytes(blob.getProperties().getLength());
+        } catch (Throwable t) {
+            throw new AzureCmdException("Error downloading the Blob File content", t);
+        }
+    }
+
+    @Override
+    public void downloadBlobFile(@NotNull ClientStorageAccount storageAccount,
+                                 @NotNull BlobFile blobFile,
+                                 @NotNull File targetFile,
+                                 CallableSingleArg<Void, Long> processBlock)
+            throws AzureCmdException {
+        try {
+            CloudBlobClient client = getCloudBlobClient(storageAccount);
+            String containerName = blobFile.getContainerName();
+
+            CloudBlobContainer container = client.getContainerReference(containerName);
+
+            CloudBlob blob = getCloudBlob(container, blobFile);
+
+            PluginSettings settings = DefaultLoader.getPluginComponent().getSettings();
+            int rangeSize = settings.getBlobDownloadRangeSize() > 0 ?
+                    settings.getBlobDownloadRangeSize() : DEFAULT_DOWNLOAD_RANGE_SIZE;
+            int parallelism = settings.getBlobDownloadParallelism() > 0 ?
+                    settings.getBlobDownloadParallelism() : DEFAULT_DOWNLOAD_PARALLELISM;
+
+            new BlobRangeDownloader(blob, rangeSize, parallelism).download(targetFile, processBlock);
         } catch (Throwable t) {
             throw new AzureCmdException("Error downloading the Blob File content", t);
         }
@@ -736,6 +843,89 @@ public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
         }
     }
 
+    @NotNull
+    private static String getPublicReadAccessType(@NotNull CloudBlobContainer container) throws StorageException {
+        BlobContainerPermissions blobContainerPermissions = container.downloadPermissions();
+
+        if (blobContainerPermissions != null && blobContainerPermissions.getPublicAccess() != null) {
+            return blobContainerPermissions.getPublicAccess().toString();
+        }
+
+        return "";
+    }
+
+    @Nullable
+    private static BlobItem toBlobItem(@NotNull ListBlobItem item,
+                                       @NotNull String containerName,
+                                       @Nullable String delimiter) throws URISyntaxException {
+        String uri = item.getUri() != null ? item.getUri().toString() : "";
+
+        if (item instanceof CloudBlobDirectory) {
+            CloudBlobDirectory subDirectory = (CloudBlobDirectory) item;
+
+            String name = extractBlobItemName(subDirectory.getPrefix(), delimiter);
+            String path = Strings.nullToEmpty(subDirectory.getPrefix());
+
+            return new BlobDirectory(name, uri, containerName, path);
+        } else if (item instanceof CloudBlob) {
+            CloudBlob blob = (CloudBlob) item;
+
+            String name = extractBlobItemName(blob.getName(), delimiter);
+            String path = Strings.nullToEmpty(blob.getName());
+            String type = "";
+            String cacheControlHeader = "";
+            String contentEncoding = "";
+            String contentLanguage = "";
+            String contentType = "";
+            String contentMD5Header = "";
+            String eTag = "";
+            Calendar lastModified = new GregorianCalendar();
+            long size = 0;
+
+            BlobProperties properties = blob.getProperties();
+
+            if (properties != null) {
+                if (properties.getBlobType() != null) {
+                    type = properties.getBlobType().toString();
+                }
+
+                cacheControlHeader = Strings.nullToEmpty(properties.getCacheControl());
+                contentEncoding = Strings.nullToEmpty(properties.getContentEncoding());
+                contentLanguage = Strings.nullToEmpty(properties.getContentLanguage());
+                contentType = Strings.nullToEmpty(properties.getContentType());
+                contentMD5Header = Strings.nullToEmpty(properties.getContentMD5());
+                eTag = Strings.nullToEmpty(properties.getEtag());
+
+                if (properties.getLastModified() != null) {
+                    lastModified.setTime(properties.getLastModified());
+                }
+
+                size = properties.getLength();
+            }
+
+            return new BlobFile(name, uri, containerName, path, type, cacheControlHeader, contentEncoding,
+                    contentLanguage, contentType, contentMD5Header, eTag, lastModified, size);
+        }
+
+        return null;
+    }
+
+    private static int getUploadBlockSize(long maxBlockSize) {
+        if (maxBlockSize <= 0) {
+            PluginSettings settings = DefaultLoader.getPluginComponent().getSettings();
+            maxBlockSize = settings.getBlobUploadBlockSize() > 0 ?
+                    settings.getBlobUploadBlockSize() : DEFAULT_UPLOAD_BLOCK_SIZE;
+        }
+
+        return (int) Math.min(maxBlockSize, Constants.MAX_BLOCK_SIZE);
+    }
+
+    private static int getUploadParallelism() {
+        PluginSettings settings = DefaultLoader.getPluginComponent().getSettings();
+        return settings.getBlobUploadParallelism() > 0 ?
+                settings.getBlobUploadParallelism() : DEFAULT_UPLOAD_PARALLELISM;
+    }
+
     @NotNull
     private static CloudBlobClient getCloudBlobClient(@NotNull ClientStorageAccount storageAccount)
             throws Exception {
@@ -850,7 +1040,7 @@ public class StorageClientSDKManagerImpl implements StorageClientSDKManager {
         } else if (delimiter == null || delimiter.isEmpty()) {
             return path;
         } else {
-            String[] parts = path.split(delimiter);
+            String[] parts = path.split(Pattern.quote(delimiter));
 
             if (parts.length == 0) {
                 return "";
@@ -0,0 +1,610 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk;
+
+import com.google.gson.Gson;
+import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureExecutors;
+import com.microsoftopentechnologies.tooling.msservices.model.vm.VirtualMachineImage;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Keeps the virtual machine images of each subscription on disk, so that the create virtual
+ * machine wizard doesn't have to download the full OS and VM image lists every time it opens.
+ * <p/>
+ * Each image is stored as a compact record, while its description and the links to its license
+ * terms are kept in a separate file and only read by {@link #loadDetails} when the image is shown.
+ * The records are indexed in memory by category, operating system, the words of their publisher
+ * and the words of their label, name and publisher, which {@link #search} uses to filter them.
+ * The catalog is kept in the IDE's cache folder, which belongs to the current user.
+ * <p/>
+ * A catalog older than {@link #REFRESH_INTERVAL_MS} is still returned, and refreshed in the
+ * background; the refresh only writes the details of images that were added or changed.
+ */
+public class VirtualMachineImageCatalog {
+    private static class ImageRecord {
+        private String name;
+        private String type;
+        private String category;
+        private String publisherName;
+        private long publishedDate;
+        private String label;
+        private String operatingSystemType;
+        private String location;
+        private String recommendedVMSize;
+        private boolean showInGui;
+        private long detailsOffset;
+        private int detailsLength;
+        private int detailsHash;
+    }
+
+    private static class ImageDetails {
+        private String description;
+        private String eulaUri;
+        private String privacyUri;
+        private String pricingUri;
+    }
+
+    private static class StoredCatalog {
+        private long refreshed;
+        private List<ImageRecord> images;
+    }
+
+    private static class Index {
+        private final Map<String, Integer> byName = new HashMap<String, Integer>();
+        private final Map<String, BitSet> byCategory = new HashMap<String, BitSet>();
+        private final TreeMap<String, BitSet> byPublisherToken = new TreeMap<String, BitSet>();
+        private final Map<String, BitSet> byOperatingSystem = new HashMap<String, BitSet>();
+        private final TreeMap<String, BitSet> byToken = new TreeMap<String, BitSet>();
+
+        private Index(@NotNull List<ImageRecord> records) {
+            for (int i = 0; i < records.size(); i++) {
+                ImageRecord record = records.get(i);
+
+                byName.put(record.name, i);
+                add(byCategory, record.category, i);
+                add(byOperatingSystem, record.operatingSystemType, i);
+
+                if (record.publisherName != null) {
+                    for (String token : tokenize(record.publisherName)) {
+                        add(byPublisherToken, token, i);
+                    }
+                }
+
+                for (String token : tokenize(record.label + " " + record.name + " " + record.publisherName)) {
+                    add(byToken, token, i);
+                }
+            }
+        }
+
+        private static void add(@NotNull Map<String, BitSet> map, @Nullable String key, int position) {
+            String normalizedKey = key != null ? key.toLowerCase(Locale.ENGLISH) : "";
+            BitSet positions = map.get(normalizedKey);
+
+            if (positions == null) {
+                positions = new BitSet();
+                map.put(normalizedKey, positions);
+            }
+
+            positions.set(position);
+        }
+    }
+
+    private static class SubscriptionCatalog {
+        private final long refreshed;
+        private final List<ImageRecord> records;
+        private final List<VirtualMachineImage> images;
+        private final Index index;
+
+        private SubscriptionCatalog(long refreshed, @NotNull List<ImageRecord> records) {
+            this.refreshed = refreshed;
+            this.records = records;
+            this.images = new ArrayList<VirtualMachineImage>(records.size());
+
+            for (ImageRecord record : records) {
+                images.add(toImage(record, null));
+            }
+
+            this.index = new Index(records);
+        }
+    }
+
+    private static final long REFRESH_INTERVAL_MS = TimeUnit.HOURS.toMillis(6);
+    private static final String CATALOG_FOLDER = "azureVMImageCatalog";
+    private static final String CHARSET = "UTF-8";
+
+    private static VirtualMachineImageCatalog catalog;
+
+    private final Gson gson = new Gson();
+    private final Map<String, SubscriptionCatalog> catalogs = new HashMap<String, SubscriptionCatalog>();
+    private final Set<String> refreshing = new HashSet<String>();
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private VirtualMachineImageCatalog() {
+    }
+
+    @NotNull
+    public static synchronized VirtualMachineImageCatalog getCatalog() {
+        if (catalog == null) {
+            catalog = new VirtualMachineImageCatalog();
+        }
+
+        return catalog;
+    }
+
+    /**
+     * Returns the images of the subscription without their description and license links, which
+     * {@link #loadDetails} fills in. The images are downloaded only if the subscription has no
+     * catalog yet.
+     */
+    @NotNull
+    public List<VirtualMachineImage> getImages(@NotNull String subscriptionId) throws AzureCmdException {
+        return new ArrayList<VirtualMachineImage>(getSubscriptionCatalog(subscriptionId).images);
+    }
+
+    /**
+     * Returns the images of the subscription matching all the given criteria, in catalog order;
+     * null criteria are ignored. Category and operating system must match exactly, ignoring case.
+     * Each word of the publisher name must start a word of the publisher of the image, and each
+     * word of the text must start a word of its label, name or publisher.
+     */
+    @NotNull
+    public List<VirtualMachineImage> search(@NotNull String subscriptionId,
+                                            @Nullable String category,
+                                            @Nullable String publisherName,
+                                            @Nullable String operatingSystemType,
+                                            @Nullable String text) throws AzureCmdException {
+        SubscriptionCatalog subscriptionCatalog = getSubscriptionCatalog(subscriptionId);
+        Index index = subscriptionCatalog.index;
+
+        BitSet matches = new BitSet();
+        matches.set(0, subscriptionCatalog.records.size());
+
+        matches = intersect(matches, index.byCategory, category);
+        matches = intersect(matches, index.byOperatingSystem, operatingSystemType);
+        intersectTokens(matches, index.byPublisherToken, publisherName);
+        intersectTokens(matches, index.byToken, text);
+
+        List<VirtualMachineImage> images = new ArrayList<VirtualMachineImage>(matches.cardinality());
+
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            images.add(subscriptionCatalog.images.get(i));
+        }
+
+        return images;
+    }
+
+    /**
+     * Returns a copy of the image with its description and license links, read from the catalog.
+     */
+    @NotNull
+    public VirtualMachineImage loadDetails(@NotNull String subscriptionId, @NotNull VirtualMachineImage image)
+            throws AzureCmdException {
+        getSubscriptionCatalog(subscriptionId);
+        lock.lock();
+
+        try {
+            // the offsets are looked up in the current catalog, since a refresh may have moved the
+            // details around since the image was returned
+            SubscriptionCatalog subscriptionCatalog = catalogs.get(subscriptionId);
+            Integer position = subscriptionCatalog != null ? subscriptionCatalog.index.byName.get(image.getName()) : null;
+
+            if (position == null) {
+                return image;
+            }
+
+            ImageRecord record = subscriptionCatalog.records.get(position);
+
+            return toImage(record, readDetails(getDetailsFile(subscriptionId), record));
+        } catch (IOException e) {
+            throw new AzureCmdException("Error reading the virtual machine image details", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Downloads the images of the subscription again and updates its catalog.
+     */
+    public void refresh(@NotNull String subscriptionId) throws AzureCmdException {
+        refreshCatalog(subscriptionId);
+    }
+
+    /**
+     * Drops the catalog of the subscription, in memory and on disk.
+     */
+    public void invalidate(@NotNull String subscriptionId) {
+        lock.lock();
+
+        try {
+            catalogs.remove(subscriptionId);
+            getRecordsFile(subscriptionId).delete();
+            getDetailsFile(subscriptionId).delete();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    private SubscriptionCatalog refreshCatalog(@NotNull String subscriptionId) throws AzureCmdException {
+        List<VirtualMachineImage> images = AzureSDKManagerImpl.getManager().getVirtualMachineImages(subscriptionId);
+        lock.lock();
+
+        try {
+            SubscriptionCatalog subscriptionCatalog = update(subscriptionId, images);
+            catalogs.put(subscriptionId, subscriptionCatalog);
+
+            return subscriptionCatalog;
+        } catch (IOException e) {
+            throw new AzureCmdException("Error saving the virtual machine image catalog", e);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @NotNull
+    private SubscriptionCatalog getSubscriptionCatalog(@NotNull String subscriptionId) throws AzureCmdException {
+        SubscriptionCatalog subscriptionCatalog;
+        lock.lock();
+
+        try {
+            subscriptionCatalog = catalogs.get(subscriptionId);
+
+            if (subscriptionCatalog == null) {
+                subscriptionCatalog = readCatalog(subscriptionId);
+
+                if (subscriptionCatalog != null) {
+                    catalogs.put(subscriptionId, subscriptionCatalog);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (subscriptionCatalog == null) {
+            return refreshCatalog(subscriptionId);
+        }
+
+        if (System.currentTimeMillis() - subscriptionCatalog.refreshed >= REFRESH_INTERVAL_MS) {
+            refreshInBackground(subscriptionId);
+        }
+
+        return subscriptionCatalog;
+    }
+
+    private void refreshInBackground(@NotNull final String subscriptionId) {
+        lock.lock();
+
+        try {
+            if (!refreshing.add(subscriptionId)) {
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            AzureExecutors.getExecutor(AzureExecutors.Family.Management).execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        refresh(subscriptionId);
+                    } catch (Throwable ignored) {
+                        // the current catalog keeps being used and the refresh is attempted again
+                        // the next time it is read
+                    } finally {
+                        endRefresh(subscriptionId);
+                    }
+                }
+            });
+        } catch (RuntimeException e) {
+            endRefresh(subscriptionId);
+        }
+    }
+
+    private void endRefresh(@NotNull String subscriptionId) {
+        lock.lock();
+
+        try {
+            refreshing.remove(subscriptionId);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // must be called while holding the lock
+    @Nullable
+    private SubscriptionCatalog readCatalog(@NotNull String subscriptionId) {
+        File recordsFile = getRecordsFile(subscriptionId);
+
+        if (!recordsFile.exists() || !getDetailsFile(subscriptionId).exists()) {
+            return null;
+        }
+
+        try {
+            Reader reader = new InputStreamReader(new FileInputStream(recordsFile), CHARSET);
+
+            try {
+                StoredCatalog storedCatalog = gson.fromJson(reader, StoredCatalog.class);
+
+                if (storedCatalog == null || storedCatalog.images == null) {
+                    return null;
+                }
+
+                return new SubscriptionCatalog(storedCatalog.refreshed, storedCatalog.images);
+            } finally {
+                reader.close();
+            }
+        } catch (Throwable ignored) {
+            // a catalog that can't be read is simply downloaded again
+            return null;
+        }
+    }
+
+    // must be called while holding the lock
+    @NotNull
+    private SubscriptionCatalog update(@NotNull String subscriptionId, @NotNull List<VirtualMachineImage> images)
+            throws IOException {
+        File folder = getFolder();
+
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Unable to create folder " + folder);
+        }
+
+        SubscriptionCatalog current = catalogs.get(subscriptionId);
+
+        if (current == null) {
+            current = readCatalog(subscriptionId);
+        }
+
+        Map<String, ImageRecord> currentRecords = new HashMap<String, ImageRecord>();
+
+        if (current != null) {
+            for (ImageRecord record : current.records) {
+                currentRecords.put(record.name, record);
+            }
+        }
+
+        File detailsFile = getDetailsFile(subscriptionId);
+        List<ImageRecord> records = new ArrayList<ImageRecord>(images.size());
+        long liveBytes = 0;
+        RandomAccessFile details = new RandomAccessFile(detailsFile, "rw");
+
+        try {
+            if (current == null) {
+                details.setLength(0);
+            }
+
+            for (VirtualMachineImage image : images) {
+                byte[] imageDetails = gson.toJson(toDetails(image)).getBytes(CHARSET);
+                ImageRecord record = toRecord(image);
+                record.detailsHash = Arrays.hashCode(imageDetails);
+
+                ImageRecord currentRecord = currentRecords.get(image.getName());
+
+                if (currentRecord != null && currentRecord.detailsHash == record.detailsHash &&
+                        currentRecord.detailsLength == imageDetails.length) {
+                    // the details of unchanged images are already in the file
+                    record.detailsOffset = currentRecord.detailsOffset;
+                    record.detailsLength = currentRecord.detailsLength;
+                } else {
+                    record.detailsOffset = details.length();
+                    record.detailsLength = imageDetails.length;
+                    details.seek(record.detailsOffset);
+                    details.write(imageDetails);
+                }
+
+                liveBytes += record.detailsLength;
+                records.add(record);
+            }
+
+            // once the details of removed or changed images take up more space than the live
+            // ones, the file is rewritten without them
+            if (details.length() > liveBytes * 2) {
+                details.close();
+                details = null;
+                compact(detailsFile, records);
+            }
+        } finally {
+            if (details != null) {
+                details.close();
+            }
+        }
+
+        StoredCatalog storedCatalog = new StoredCatalog();
+        storedCatalog.refreshed = System.currentTimeMillis();
+        storedCatalog.images = records;
+
+        File recordsFile = getRecordsFile(subscriptionId);
+        File tempFile = new File(folder, recordsFile.getName() + ".tmp");
+        Writer writer = new OutputStreamWriter(new FileOutputStream(tempFile), CHARSET);
+
+        try {
+            gson.toJson(storedCatalog, writer);
+        } finally {
+            writer.close();
+        }
+
+        if (recordsFile.exists() && !recordsFile.delete() || !tempFile.renameTo(recordsFile)) {
+            throw new IOException("Unable to save " + recordsFile);
+        }
+
+        return new SubscriptionCatalog(storedCatalog.refreshed, records);
+    }
+
+    private static void compact(@NotNull File detailsFile, @NotNull List<ImageRecord> records) throws IOException {
+        File compactedFile = new File(detailsFile.getParentFile(), detailsFile.getName() + ".tmp");
+        RandomAccessFile source = new RandomAccessFile(detailsFile, "r");
+
+        try {
+            OutputStream target = new BufferedOutputStream(new FileOutputStream(compactedFile));
+
+            try {
+                long offset = 0;
+
+                for (ImageRecord record : records) {
+                    byte[] imageDetails = new byte[record.detailsLength];
+                    source.seek(record.detailsOffset);
+                    source.readFully(imageDetails);
+                    target.write(imageDetails);
+
+                    record.detailsOffset = offset;
+                    offset += imageDetails.length;
+                }
+            } finally {
+                target.close();
+            }
+        } finally {
+            source.close();
+        }
+
+        if (!detailsFile.delete() || !compactedFile.renameTo(detailsFile)) {
+            throw new IOException("Unable to save " + detailsFile);
+        }
+    }
+
+    @NotNull
+    private ImageDetails readDetails(@NotNull File detailsFile, @NotNull ImageRecord record) throws IOException {
+        RandomAccessFile details = new RandomAccessFile(detailsFile, "r");
+
+        try {
+            byte[] imageDetails = new byte[record.detailsLength];
+            details.seek(record.detailsOffset);
+            details.readFully(imageDetails);
+
+            return gson.fromJson(new String(imageDetails, CHARSET), ImageDetails.class);
+        } finally {
+            details.close();
+        }
+    }
+
+    @NotNull
+    private static ImageRecord toRecord(@NotNull VirtualMachineImage image) {
+        ImageRecord record = new ImageRecord();
+        record.name = image.getName();
+        record.type = image.getType();
+        record.category = image.getCategory();
+        record.publisherName = image.getPublisherName();
+        record.publishedDate = image.getPublishedDate().getTimeInMillis();
+        record.label = image.getLabel();
+        record.operatingSystemType = image.getOperatingSystemType();
+        record.location = image.getLocation();
+        record.recommendedVMSize = image.getRecommendedVMSize();
+        record.showInGui = image.isShowInGui();
+
+        return record;
+    }
+
+    @NotNull
+    private static ImageDetails toDetails(@NotNull VirtualMachineImage image) {
+        ImageDetails details = new ImageDetails();
+        details.description = image.getDescription();
+        details.eulaUri = image.getEulaUri();
+        details.privacyUri = image.getPrivacyUri();
+        details.pricingUri = image.getPricingUri();
+
+        return details;
+    }
+
+    @NotNull
+    private static VirtualMachineImage toImage(@NotNull ImageRecord record, @Nullable ImageDetails details) {
+        Calendar publishedDate = Calendar.getInstance();
+        publishedDate.setTimeInMillis(record.publishedDate);
+
+        return new VirtualMachineImage(
+                record.name,
+                record.type,
+                record.category,
+                record.publisherName,
+                publishedDate,
+                record.label,
+                details != null && details.description != null ? details.description : "",
+                record.operatingSystemType,
+                record.location,
+                details != null && details.eulaUri != null ? details.eulaUri : "",
+                details != null && details.privacyUri != null ? details.privacyUri : "",
+                details != null && details.pricingUri != null ? details.pricingUri : "",
+                record.recommendedVMSize,
+                record.showInGui);
+    }
+
+    @NotNull
+    private static BitSet intersect(@NotNull BitSet matches, @NotNull Map<String, BitSet> map, @Nullable String key) {
+        if (key != null) {
+            BitSet positions = map.get(key.toLowerCase(Locale.ENGLISH));
+
+            if (positions == null) {
+                return new BitSet();
+            }
+
+            matches.and(positions);
+        }
+
+        return matches;
+    }
+
+    private static void intersectTokens(@NotNull BitSet matches,
+                                        @NotNull TreeMap<String, BitSet> map,
+                                        @Nullable String text) {
+        if (text != null) {
+            for (String token : tokenize(text)) {
+                BitSet tokenMatches = new BitSet();
+
+                // every indexed word starting with the token
+                for (BitSet positions : map.subMap(token, token + Character.MAX_VALUE).values()) {
+                    tokenMatches.or(positions);
+                }
+
+                matches.and(tokenMatches);
+            }
+        }
+    }
+
+    @NotNull
+    private static List<String> tokenize(@NotNull String text) {
+        List<String> tokens = new ArrayList<String>();
+
+        for (String token : text.toLowerCase(Locale.ENGLISH).split("[^\\p{L}\\p{N}]+")) {
+            if (!token.isEmpty()) {
+                tokens.add(token);
+            }
+        }
+
+        return tokens;
+    }
+
+    @NotNull
+    private static File getFolder() {
+        return new File(DefaultLoader.getIdeHelper().getCacheFolder(), CATALOG_FOLDER);
+    }
+
+    @NotNull
+    private static File getRecordsFile(@NotNull String subscriptionId) {
+        return new File(getFolder(), subscriptionId + ".json");
+    }
+
+    @NotNull
+    private static File getDetailsFile(@NotNull String subscriptionId) {
+        return new File(getFolder(), subscriptionId + ".details");
+    }
+}
@@ -0,0 +1,78 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.metrics;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets. Each bucket is 25% wider than the previous
+ * one, so percentiles are accurate to within a quarter of their value from 1 ms up to about an hour,
+ * using a fixed amount of memory however many calls are recorded.
+ */
+class LatencyHistogram {
+    private static final double BUCKET_GROWTH = 1.25;
+    private static final int BUCKET_COUNT = 70;
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+
+    void record(long millis) {
+        buckets.incrementAndGet(getBucket(millis));
+    }
+
+    /**
+     * Returns the upper bound of the bucket holding the given percentile, or 0 if nothing was
+     * recorded.
+     */
+    long getPercentile(double percentile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long total = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = buckets.get(i);
+            total += counts[i];
+        }
+
+        if (total == 0) {
+            return 0;
+        }
+
+        long rank = (long) Math.ceil(total * percentile / 100);
+        long seen = 0;
+
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            seen += counts[i];
+
+            if (seen >= rank) {
+                return getUpperBound(i);
+            }
+        }
+
+        return getUpperBound(BUCKET_COUNT - 1);
+    }
+
+    private static int getBucket(long millis) {
+        if (millis <= 1) {
+            return 0;
+        }
+
+        int bucket = (int) Math.ceil(Math.log(millis) / Math.log(BUCKET_GROWTH));
+        return Math.min(bucket, BUCKET_COUNT - 1);
+    }
+
+    private static long getUpperBound(int bucket) {
+        return (long) Math.ceil(Math.pow(BUCKET_GROWTH, bucket));
+    }
+}
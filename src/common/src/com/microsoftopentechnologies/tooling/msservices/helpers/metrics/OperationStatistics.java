@@ -0,0 +1,101 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.metrics;
+
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+
+import java.beans.ConstructorProperties;
+
+/**
+ * Snapshot of the metrics of one service manager method, e.g. "AzureSDKManager.getVirtualMachines".
+ */
+public class OperationStatistics {
+    private final String name;
+    private final long callCount;
+    private final long errorCount;
+    private final long bytesTransferred;
+    private final long totalMillis;
+    private final long p50Millis;
+    private final long p95Millis;
+    private final long p99Millis;
+    private final long maxMillis;
+
+    @ConstructorProperties({"name", "callCount", "errorCount", "bytesTransferred", "totalMillis",
+            "p50Millis", "p95Millis", "p99Millis", "maxMillis"})
+    public OperationStatistics(@NotNull String name, long callCount, long errorCount, long bytesTransferred,
+                               long totalMillis, long p50Millis, long p95Millis, long p99Millis, long maxMillis) {
+        this.name = name;
+        this.callCount = callCount;
+        this.errorCount = errorCount;
+        this.bytesTransferred = bytesTransferred;
+        this.totalMillis = totalMillis;
+        this.p50Millis = p50Millis;
+        this.p95Millis = p95Millis;
+        this.p99Millis = p99Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    @NotNull
+    public String getName() {
+        return name;
+    }
+
+    public long getCallCount() {
+        return callCount;
+    }
+
+    public long getErrorCount() {
+        return errorCount;
+    }
+
+    /**
+     * Bytes sent and received on the calling thread while the method ran.
+     */
+    public long getBytesTransferred() {
+        return bytesTransferred;
+    }
+
+    /**
+     * Time spent in the method across all calls; the methods dominating a refresh or a deployment
+     * are the ones with the highest total.
+     */
+    public long getTotalMillis() {
+        return totalMillis;
+    }
+
+    public long getP50Millis() {
+        return p50Millis;
+    }
+
+    public long getP95Millis() {
+        return p95Millis;
+    }
+
+    public long getP99Millis() {
+        return p99Millis;
+    }
+
+    public long getMaxMillis() {
+        return maxMillis;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s: %d calls, %d errors, %d ms total, p50 %d ms, p95 %d ms, p99 %d ms, max %d ms, %d bytes",
+                name, callCount, errorCount, totalMillis, p50Millis, p95Millis, p99Millis, maxMillis,
+                bytesTransferred);
+    }
+}
@@ -0,0 +1,300 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.metrics;
+
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureExecutors;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.InstrumentedExecutor;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.ManagementRateLimiter;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.RequestCoalescer;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk.AzureManagementClientPool;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Per-method call counts, error counts, latency percentiles and bytes transferred for the service
+ * managers.
+ * <p/>
+ * Managers are instrumented by {@link #decorate}, which wraps them in a decorator recording every
+ * call made through their interface. Code moving data over the network reports it with
+ * {@link #recordBytes}, which charges the bytes to the innermost manager call running on the
+ * current thread.
+ */
+public class ServiceMetrics implements ServiceMetricsMXBean {
+    public static final String OBJECT_NAME = "com.microsoftopentechnologies.tooling.msservices:type=ServiceMetrics";
+
+    private static class OperationMetrics {
+        private final String name;
+        private final AtomicLong callCount = new AtomicLong();
+        private final AtomicLong errorCount = new AtomicLong();
+        private final AtomicLong bytesTransferred = new AtomicLong();
+        private final AtomicLong totalMillis = new AtomicLong();
+        private final AtomicLong maxMillis = new AtomicLong();
+        private final LatencyHistogram histogram = new LatencyHistogram();
+
+        private OperationMetrics(@NotNull String name) {
+            this.name = name;
+        }
+
+        private void record(long millis, boolean failed) {
+            callCount.incrementAndGet();
+
+            if (failed) {
+                errorCount.incrementAndGet();
+            }
+
+            totalMillis.addAndGet(millis);
+            histogram.record(millis);
+
+            long max;
+
+            do {
+                max = maxMillis.get();
+            } while (millis > max && !maxMillis.compareAndSet(max, millis));
+        }
+
+        @NotNull
+        private OperationStatistics getStatistics() {
+            return new OperationStatistics(name,
+                    callCount.get(),
+                    errorCount.get(),
+                    bytesTransferred.get(),
+                    totalMillis.get(),
+                    histogram.getPercentile(50),
+                    histogram.getPercentile(95),
+                    histogram.getPercentile(99),
+                    maxMillis.get());
+        }
+    }
+
+    private static ServiceMetrics metrics;
+
+    private volatile ConcurrentMap<String, OperationMetrics> operations =
+            new ConcurrentHashMap<String, OperationMetrics>();
+
+    // innermost manager call running on each thread, the one bytes are charged to
+    private final ThreadLocal<OperationMetrics> currentOperation = new ThreadLocal<OperationMetrics>();
+
+    private ServiceMetrics() {
+    }
+
+    @NotNull
+    public static synchronized ServiceMetrics getMetrics() {
+        if (metrics == null) {
+            metrics = new ServiceMetrics();
+            metrics.registerMBean();
+        }
+
+        return metrics;
+    }
+
+    /**
+     * Wraps a service manager so that every call made through the given interface is recorded
+     * under "InterfaceName.methodName".
+     */
+    @NotNull
+    @SuppressWarnings("unchecked")
+    public <T> T decorate(@NotNull final Class<T> managerInterface, @NotNull final T manager) {
+        return (T) Proxy.newProxyInstance(managerInterface.getClassLoader(),
+                new Class<?>[]{managerInterface},
+                new InvocationHandler() {
+                    @Override
+                    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+                        if (method.getDeclaringClass() == Object.class) {
+                            return invokeManager(manager, method, args);
+                        }
+
+                        OperationMetrics operation = getOperation(managerInterface.getSimpleName() + "." +
+                                method.getName());
+                        OperationMetrics outerOperation = currentOperation.get();
+                        currentOperation.set(operation);
+
+                        final long start = System.nanoTime();
+                        boolean failed = true;
+                        boolean async = false;
+
+                        try {
+                            Object result = invokeManager(manager, method, args);
+                            failed = false;
+
+                            if (result instanceof ListenableFuture) {
+                                // asynchronous methods are timed until their future completes
+                                async = true;
+                                recordOnCompletion((ListenableFuture<?>) result, operation, start);
+                            }
+
+                            return result;
+                        } finally {
+                            if (!async) {
+                                operation.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), failed);
+                            }
+
+                            if (outerOperation != null) {
+                                currentOperation.set(outerOperation);
+                            } else {
+                                currentOperation.remove();
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Charges bytes sent or received to the manager call running on the current thread; does
+     * nothing when called outside of one.
+     */
+    public void recordBytes(long bytes) {
+        OperationMetrics operation = currentOperation.get();
+
+        if (operation != null && bytes > 0) {
+            operation.bytesTransferred.addAndGet(bytes);
+        }
+    }
+
+    /**
+     * Records a call that doesn't go through a decorated manager, such as loading all the items of
+     * a subscription.
+     */
+    public void recordOperation(@NotNull String name, long millis, boolean failed) {
+        getOperation(name).record(millis, failed);
+    }
+
+    /**
+     * Returns the statistics of all methods called so far, the ones with the highest total time
+     * first.
+     */
+    @NotNull
+    @Override
+    public List<OperationStatistics> getOperationStatistics() {
+        List<OperationStatistics> statistics = new ArrayList<OperationStatistics>();
+
+        for (OperationMetrics operation : operations.values()) {
+            statistics.add(operation.getStatistics());
+        }
+
+        Collections.sort(statistics, new Comparator<OperationStatistics>() {
+            @Override
+            public int compare(OperationStatistics o1, OperationStatistics o2) {
+                long diff = o2.getTotalMillis() - o1.getTotalMillis();
+                return diff > 0 ? 1 : (diff < 0 ? -1 : o1.getName().compareTo(o2.getName()));
+            }
+        });
+
+        return statistics;
+    }
+
+    @NotNull
+    @Override
+    public List<String> getExecutorStatistics() {
+        List<String> statistics = new ArrayList<String>();
+
+        for (InstrumentedExecutor.Statistics executorStatistics : AzureExecutors.getStatistics()) {
+            statistics.add(executorStatistics.toString());
+        }
+
+        AzureManagementClientPool pool = AzureManagementClientPool.getPool();
+        statistics.add(String.format("management-client-pool: %d pooled, %d hits, %d misses, %d evictions",
+                pool.getSize(), pool.getHitCount(), pool.getMissCount(), pool.getEvictionCount()));
+        statistics.addAll(RequestCoalescer.getCoalescer().getStatistics());
+        statistics.addAll(ManagementRateLimiter.getLimiter().getStatistics());
+
+        return statistics;
+    }
+
+    @Override
+    public void reset() {
+        operations = new ConcurrentHashMap<String, OperationMetrics>();
+        RequestCoalescer.getCoalescer().resetStatistics();
+        ManagementRateLimiter.getLimiter().resetStatistics();
+    }
+
+    @NotNull
+    private OperationMetrics getOperation(@NotNull String name) {
+        ConcurrentMap<String, OperationMetrics> map = operations;
+        OperationMetrics operation = map.get(name);
+
+        if (operation == null) {
+            OperationMetrics newOperation = new OperationMetrics(name);
+            operation = map.putIfAbsent(name, newOperation);
+
+            if (operation == null) {
+                operation = newOperation;
+            }
+        }
+
+        return operation;
+    }
+
+    private static void recordOnCompletion(@NotNull ListenableFuture<?> future,
+                                           @NotNull final OperationMetrics operation,
+                                           final long start) {
+        Futures.addCallback(future, new FutureCallback<Object>() {
+            @Override
+            public void onSuccess(Object result) {
+                operation.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), false);
+            }
+
+            @Override
+            public void onFailure(Throwable throwable) {
+                operation.record(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), true);
+            }
+        });
+    }
+
+    @Nullable
+    private static Object invokeManager(@NotNull Object manager, @NotNull Method method, @Nullable Object[] args)
+            throws Throwable {
+        try {
+            return method.invoke(manager, args);
+        } catch (InvocationTargetException e) {
+            throw e.getCause();
+        }
+    }
+
+    private void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+
+            // left behind by a previous instance of the plugin
+            if (server.isRegistered(name)) {
+                server.unregisterMBean(name);
+            }
+
+            server.registerMBean(this, name);
+        } catch (Exception ignored) {
+            // the metrics are still available from the diagnostics tool window
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.helpers.metrics;
+
+import java.util.List;
+
+/**
+ * Management interface of {@link ServiceMetrics}, registered with the platform MBean server as
+ * {@link ServiceMetrics#OBJECT_NAME} so the metrics can be inspected with jconsole or VisualVM.
+ */
+public interface ServiceMetricsMXBean {
+    List<OperationStatistics> getOperationStatistics();
+
+    List<String> getExecutorStatistics();
+
+    void reset();
+}
@@ -41,6 +41,7 @@ import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
 import com.microsoftopentechnologies.tooling.msservices.helpers.StringHelper;
 import com.microsoftopentechnologies.tooling.msservices.helpers.graph.PluginDependencyResolver;
 import com.microsoftopentechnologies.tooling.msservices.helpers.graph.ServicePermissionEntry;
+import com.microsoftopentechnologies.tooling.msservices.helpers.metrics.ServiceMetrics;
 import com.microsoftopentechnologies.tooling.msservices.model.Office365Permission;
 import com.microsoftopentechnologies.tooling.msservices.model.Office365PermissionList;
 import com.microsoftopentechnologies.tooling.msservices.model.Office365Service;
@@ -85,7 +86,7 @@ public class Office365RestAPIManager implements Office365Manager {
     @NotNull
     public static Office365Manager getManager() {
         if (instance == null) {
-            instance = new Office365RestAPIManager();
+            instance = ServiceMetrics.getMetrics().decorate(Office365Manager.class, new Office365RestAPIManager());
         }
 
         return instance;
@@ -0,0 +1,49 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.model.storage;
+
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.Nullable;
+
+import java.util.List;
+
+/**
+ * One page of the items of a blob directory, along with the token to pass back to get the next
+ * one, if any.
+ */
+public class BlobItemSegment {
+    private List<BlobItem> items;
+    private String continuationToken;
+
+    public BlobItemSegment(@NotNull List<BlobItem> items, @Nullable String continuationToken) {
+        this.items = items;
+        this.continuationToken = continuationToken;
+    }
+
+    @NotNull
+    public List<BlobItem> getItems() {
+        return items;
+    }
+
+    @Nullable
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    public boolean hasMoreItems() {
+        return continuationToken != null;
+    }
+}
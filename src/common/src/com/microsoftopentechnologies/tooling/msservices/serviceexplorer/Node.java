@@ -197,6 +197,8 @@ public class Node {
             addAction("Refresh", new NodeActionListener() {
                 @Override
                 public void actionPerformed(NodeActionEvent e) {
+                    invalidateCachedItems();
+
                     Futures.addCallback(load(), new FutureCallback<List<Node>>() {
                         @Override
                         public void onSuccess(List<Node> nodes) {
@@ -338,6 +340,12 @@ public class Node {
         return getName();
     }
 
+    // Called when the user explicitly refreshes the node, before it is
+    // loaded again. Sub-classes holding on to cached data should drop it
+    // here. The default implementation does nothing.
+    protected void invalidateCachedItems() {
+    }
+
     // Sub-classes are expected to override this method if they wish to
     // refresh items synchronously. The default implementation does nothing.
     protected void refreshItems() throws AzureCmdException {
@@ -18,6 +18,7 @@ package com.microsoftopentechnologies.tooling.msservices.serviceexplorer.azure;
 
 import com.microsoftopentechnologies.tooling.msservices.components.DefaultLoader;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.ManagementResponseCache;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest.AzureRestAPIManagerImpl;
 import com.microsoftopentechnologies.tooling.msservices.model.ms.Subscription;
 import com.microsoftopentechnologies.tooling.msservices.serviceexplorer.Node;
@@ -91,6 +92,13 @@ public class AzureServiceModule extends Node {
         }
     }
 
+    @Override
+    protected void invalidateCachedItems() {
+        // lets the create dialogs and wizards pick up new locations, sizes, images and
+        // networks right away instead of waiting for the cached ones to expire
+        ManagementResponseCache.getCache().invalidateAll();
+    }
+
     @Override
     public Object getProject() {
         return project;
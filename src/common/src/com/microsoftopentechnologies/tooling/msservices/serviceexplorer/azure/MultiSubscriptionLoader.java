@@ -0,0 +1,109 @@
+/**
+ * Copyright 2014 Microsoft Open Technologies Inc.
+ * <p/>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p/>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p/>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.microsoftopentechnologies.tooling.msservices.serviceexplorer.azure;
+
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureExecutors;
+import com.microsoftopentechnologies.tooling.msservices.helpers.metrics.ServiceMetrics;
+import com.microsoftopentechnologies.tooling.msservices.model.ms.Subscription;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Loads the items of an explorer module from all subscriptions concurrently. Subscriptions are
+ * loaded on the shared management executor, so the number of subscriptions being queried at the
+ * same time is capped globally, across all modules, by the subscriptionParallelism plugin setting.
+ */
+public class MultiSubscriptionLoader {
+    public static abstract class SubscriptionLoader<T> {
+        /**
+         * Retrieves the items of one subscription; called on a pooled thread.
+         */
+        @NotNull
+        public abstract List<T> load(@NotNull Subscription subscription) throws AzureCmdException;
+
+        /**
+         * Called once the items of a subscription have been retrieved. Calls are serialized, so
+         * implementations may add child nodes without further synchronization.
+         */
+        public abstract void onLoaded(@NotNull Subscription subscription, @NotNull List<T> items)
+                throws AzureCmdException;
+    }
+
+    /**
+     * Loads all subscriptions and waits for them to complete. Subscriptions that fail don't
+     * prevent the others from being loaded; once all of them are done the first failure, if any,
+     * is rethrown. The time spent on each subscription is recorded in the service metrics as
+     * "name[subscription name]".
+     */
+    public static <T> void load(@NotNull final String name,
+                                @NotNull List<Subscription> subscriptions,
+                                @NotNull final SubscriptionLoader<T> loader)
+            throws AzureCmdException {
+        final AzureCmdException[] errors = new AzureCmdException[subscriptions.size()];
+        final CountDownLatch latch = new CountDownLatch(subscriptions.size());
+        final ReentrantLock callbackLock = new ReentrantLock();
+
+        for (int i = 0; i < subscriptions.size(); i++) {
+            final int index = i;
+            final Subscription subscription = subscriptions.get(i);
+
+            AzureExecutors.getExecutor(AzureExecutors.Family.Management).execute(new Runnable() {
+                @Override
+                public void run() {
+                    long start = System.currentTimeMillis();
+
+                    try {
+                        List<T> items = loader.load(subscription);
+
+                        callbackLock.lock();
+
+                        try {
+                            loader.onLoaded(subscription, items);
+                        } finally {
+                            callbackLock.unlock();
+                        }
+                    } catch (AzureCmdException e) {
+                        errors[index] = e;
+                    } catch (Throwable t) {
+                        errors[index] = new AzureCmdException("Error loading subscription " + subscription.getName(), t);
+                    } finally {
+                        ServiceMetrics.getMetrics().recordOperation(
+                                name + "[" + subscription.getName() + "]",
+                                System.currentTimeMillis() - start, errors[index] != null);
+                        latch.countDown();
+                    }
+                }
+            });
+        }
+
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new AzureCmdException("Interrupted while loading subscriptions", e);
+        }
+
+        for (AzureCmdException error : errors) {
+            if (error != null) {
+                throw error;
+            }
+        }
+    }
+}
@@ -16,11 +16,13 @@
 
 package com.microsoftopentechnologies.tooling.msservices.serviceexplorer.azure.mobileservice;
 
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest.AzureRestAPIManagerImpl;
 import com.microsoftopentechnologies.tooling.msservices.model.ms.MobileService;
 import com.microsoftopentechnologies.tooling.msservices.model.ms.Subscription;
 import com.microsoftopentechnologies.tooling.msservices.serviceexplorer.Node;
+import com.microsoftopentechnologies.tooling.msservices.serviceexplorer.azure.MultiSubscriptionLoader;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -42,12 +44,21 @@ public class MobileServiceModule extends Node {
         // load all mobile services
         ArrayList<Subscription> subscriptionList = AzureRestAPIManagerImpl.getManager().getSubscriptionList();
         if(subscriptionList != null) {
-            for (Subscription subscription : subscriptionList) {
-                List<MobileService> mobileServices = AzureRestAPIManagerImpl.getManager().getServiceList(subscription.getId());
-                for(MobileService mobileService : mobileServices) {
-                    addChildNode(new MobileServiceNode(this, mobileService));
-                }
-            }
+            MultiSubscriptionLoader.load(BASE_MODULE_NAME, subscriptionList,
+                    new MultiSubscriptionLoader.SubscriptionLoader<MobileService>() {
+                        @NotNull
+                        @Override
+                        public List<MobileService> load(@NotNull Subscription subscription) throws AzureCmdException {
+                            return AzureRestAPIManagerImpl.getManager().getServiceList(subscription.getId());
+                        }
+
+                        @Override
+                        public void onLoaded(@NotNull Subscription subscription, @NotNull List<MobileService> mobileServices) {
+                            for(MobileService mobileService : mobileServices) {
+                                addChildNode(new MobileServiceNode(MobileServiceModule.this, mobileService));
+                            }
+                        }
+                    });
         }
     }
 }
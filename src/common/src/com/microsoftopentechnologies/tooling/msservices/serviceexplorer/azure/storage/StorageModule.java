@@ -16,6 +16,7 @@
 package com.microsoftopentechnologies.tooling.msservices.serviceexplorer.azure.storage;
 
 import com.microsoftopentechnologies.tooling.msservices.helpers.ExternalStorageHelper;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest.AzureRestAPIManagerImpl;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk.AzureSDKManagerImpl;
@@ -24,6 +25,7 @@ import com.microsoftopentechnologies.tooling.msservices.model.ms.Subscription;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.ClientStorageAccount;
 import com.microsoftopentechnologies.tooling.msservices.model.storage.StorageAccount;
 import com.microsoftopentechnologies.tooling.msservices.serviceexplorer.Node;
+import com.microsoftopentechnologies.tooling.msservices.serviceexplorer.azure.MultiSubscriptionLoader;
 
 import java.util.ArrayList;
 import java.util.List;
@@ -45,12 +47,21 @@ public class StorageModule extends Node {
         ArrayList<Subscription> subscriptionList = AzureRestAPIManagerImpl.getManager().getSubscriptionList();
 
         if (subscriptionList != null) {
-            for (Subscription subscription : subscriptionList) {
-                List<StorageAccount> storageAccounts = AzureSDKManagerImpl.getManager().getStorageAccounts(subscription.getId().toString());
-                for (StorageAccount sm : storageAccounts) {
-                    addChildNode(new StorageNode(this, sm));
-                }
-            }
+            MultiSubscriptionLoader.load(BASE_MODULE_NAME, subscriptionList,
+                    new MultiSubscriptionLoader.SubscriptionLoader<StorageAccount>() {
+                        @NotNull
+                        @Override
+                        public List<StorageAccount> load(@NotNull Subscription subscription) throws AzureCmdException {
+                            return AzureSDKManagerImpl.getManager().getStorageAccounts(subscription.getId().toString());
+                        }
+
+                        @Override
+                        public void onLoaded(@NotNull Subscription subscription, @NotNull List<StorageAccount> storageAccounts) {
+                            for (StorageAccount sm : storageAccounts) {
+                                addChildNode(new StorageNode(StorageModule.this, sm));
+                            }
+                        }
+                    });
         }
 
         // load External Accounts
@@ -59,4 +70,4 @@ public class StorageModule extends Node {
             addChildNode(new ExternalStorageNode(this, storageAccount));
         }
     }
-}
\ No newline at end of file
+}
@@ -16,15 +16,21 @@
 
 package com.microsoftopentechnologies.tooling.msservices.serviceexplorer.azure.vm;
 
+import com.microsoftopentechnologies.tooling.msservices.helpers.CallableSingleArg;
+import com.microsoftopentechnologies.tooling.msservices.helpers.NotNull;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzureCmdException;
+import com.microsoftopentechnologies.tooling.msservices.helpers.azure.AzurePartialResultException;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.rest.AzureRestAPIManagerImpl;
 import com.microsoftopentechnologies.tooling.msservices.helpers.azure.sdk.AzureSDKManagerImpl;
 import com.microsoftopentechnologies.tooling.msservices.model.ms.Subscription;
 import com.microsoftopentechnologies.tooling.msservices.model.vm.VirtualMachine;
 import com.microsoftopentechnologies.tooling.msservices.serviceexplorer.Node;
+import com.microsoftopentechnologies.tooling.msservices.serviceexplorer.azure.MultiSubscriptionLoader;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 public class VMServiceModule extends Node {
     private static final String VM_SERVICE_MODULE_ID = VMServiceModule.class.getName();
@@ -44,9 +50,47 @@ public class VMServiceModule extends Node {
         ArrayList<Subscription> subscriptionList = AzureRestAPIManagerImpl.getManager().getSubscriptionList();
 
         if (subscriptionList != null) {
-            for (Subscription subscription : subscriptionList) {
-                List<VirtualMachine> virtualMachines = AzureSDKManagerImpl.getManager().getVirtualMachines(subscription.getId().toString());
-                for (VirtualMachine vm : virtualMachines) {
+            // VMs are added as each hosted service is loaded, with hosted services and subscriptions
+            // loading concurrently; the set also guards against adding the same VM twice if a call is
+            // retried after refreshing an expired token
+            final Set<String> addedVMs = new HashSet<String>();
+
+            MultiSubscriptionLoader.load(BASE_MODULE_NAME, subscriptionList,
+                    new MultiSubscriptionLoader.SubscriptionLoader<VirtualMachine>() {
+                        @NotNull
+                        @Override
+                        public List<VirtualMachine> load(@NotNull Subscription subscription) throws AzureCmdException {
+                            try {
+                                return AzureSDKManagerImpl.getManager().getVirtualMachines(subscription.getId().toString(),
+                                        new CallableSingleArg<Void, List<VirtualMachine>>() {
+                                            @Override
+                                            public Void call(List<VirtualMachine> virtualMachines) throws Exception {
+                                                addVirtualMachines(virtualMachines, addedVMs);
+                                                return null;
+                                            }
+                                        });
+                            } catch (AzurePartialResultException e) {
+                                // keep the VMs that could be loaded; the missing hosted services are
+                                // reported once the refresh completes
+                                addVirtualMachines(e.<VirtualMachine>getLoadedItems(), addedVMs);
+                                throw e;
+                            }
+                        }
+
+                        @Override
+                        public void onLoaded(@NotNull Subscription subscription, @NotNull List<VirtualMachine> virtualMachines)
+                                throws AzureCmdException {
+                            addVirtualMachines(virtualMachines, addedVMs);
+                        }
+                    });
+        }
+    }
+
+    private void addVirtualMachines(@NotNull List<VirtualMachine> virtualMachines, @NotNull Set<String> addedVMs)
+            throws AzureCmdException {
+        synchronized (addedVMs) {
+            for (VirtualMachine vm : virtualMachines) {
+                if (addedVMs.add(vm.getSubscriptionId() + "/" + vm.getServiceName() + "/" + vm.getName())) {
                     addChildNode(new VMNode(this, vm));
                 }
             }